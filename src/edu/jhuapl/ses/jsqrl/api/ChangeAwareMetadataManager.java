@@ -0,0 +1,25 @@
+package edu.jhuapl.ses.jsqrl.api;
+
+/**
+ * {@link MetadataManager} that can tell whether the metadata its {@link #store()} method would
+ * return have changed, so that serializers may skip calling it when they have not.
+ * 
+ * A serializer that saves repeatedly remembers the metadata returned by each call to store(),
+ * together with the modification count obtained just before that call. When the count is the same
+ * at the next save, the serializer reuses the remembered metadata, and possibly its encoded form,
+ * instead of calling store() again. The metadata returned by store() must therefore not be
+ * modified after they are returned, which is already the case for managers that build new metadata
+ * in each call.
+ */
+public interface ChangeAwareMetadataManager extends MetadataManager {
+  /**
+   * Return a number that changes whenever the state represented by this manager changes, including
+   * when it is changed by a call to {@link #retrieve(Metadata)}. A simple implementation increments
+   * a counter in each method that modifies the state. The count must change no later than the
+   * state does, so a change made while store() is running is detected at the next save.
+   * 
+   * @return the modification count
+   */
+  long getModificationCount();
+
+}
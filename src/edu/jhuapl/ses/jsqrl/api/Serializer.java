@@ -2,6 +2,8 @@ package edu.jhuapl.ses.jsqrl.api;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
 
 public interface Serializer {
   /**
@@ -27,10 +29,53 @@ public interface Serializer {
    */
   void register(Key<? extends Metadata> key, MetadataManager manager);
 
+  /**
+   * Register the provided manager as in {@link #register(Key, MetadataManager)}, additionally
+   * declaring the managers whose retrieve methods must complete before this manager's retrieve
+   * method is called. Serializers that call managers sequentially in registration order satisfy
+   * this automatically, because each dependency must already be registered. Serializers that
+   * call managers concurrently use the dependencies to decide which managers may run at the same
+   * time.
+   * 
+   * This default implementation ignores the dependencies.
+   * 
+   * @param key the key identifying the Metadata objects this manager manages
+   * @param manager the manager for Metadata objects associated with the key
+   * @param dependencies keys of already-registered managers on which this manager depends
+   * @throws IllegalStateException if method is called more than once with the same key
+   * @throws IllegalArgumentException if a dependency is not registered (may not be checked)
+   */
+  default void register(Key<? extends Metadata> key, MetadataManager manager,
+      Iterable<? extends Key<? extends Metadata>> dependencies) {
+    register(key, manager);
+  }
+
   void deregister(Key<? extends Metadata> key);
 
   void load(File file) throws IOException;
 
   void save(File file) throws IOException;
 
+  /**
+   * Save the state of all registered managers to the provided file, returning as soon as possible.
+   * The managers are called to store their state on the calling thread, so that the saved state is
+   * a consistent snapshot. Implementations may encode and write that snapshot on another thread.
+   * 
+   * This default implementation simply saves on the calling thread.
+   * 
+   * @param file the file to write
+   * @return a future that completes when the file has been written. If writing fails, the future
+   *         completes exceptionally with an {@link UncheckedIOException} wrapping the cause
+   */
+  default CompletableFuture<Void> saveAsync(File file) {
+    try {
+      save(file);
+      return CompletableFuture.completedFuture(null);
+    } catch (IOException e) {
+      CompletableFuture<Void> result = new CompletableFuture<>();
+      result.completeExceptionally(new UncheckedIOException(e));
+      return result;
+    }
+  }
+
 }
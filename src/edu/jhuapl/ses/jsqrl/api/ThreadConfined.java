@@ -0,0 +1,16 @@
+package edu.jhuapl.ses.jsqrl.api;
+
+/**
+ * Marker interface for {@link MetadataManager} implementations whose {@link MetadataManager#store()}
+ * and {@link MetadataManager#retrieve(Metadata)} methods must be called only on the thread that
+ * calls {@link Serializer#save(java.io.File)} or {@link Serializer#load(java.io.File)}, for example
+ * because they access GUI components.
+ * 
+ * Serializers that are configured to call managers concurrently on other threads will call
+ * managers that implement this interface on the calling thread, in registration order. Managers
+ * that do not implement this interface must be safe to call from any thread when concurrency is
+ * enabled.
+ */
+public interface ThreadConfined {
+
+}
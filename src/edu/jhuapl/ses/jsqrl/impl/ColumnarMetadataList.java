@@ -0,0 +1,199 @@
+package edu.jhuapl.ses.jsqrl.impl;
+
+import java.lang.reflect.Array;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import edu.jhuapl.ses.jsqrl.api.Key;
+import edu.jhuapl.ses.jsqrl.api.Metadata;
+import edu.jhuapl.ses.jsqrl.api.Version;
+
+/**
+ * Immutable list of Metadata that all have the same version and keys, stored column by column: the
+ * values associated with each key are held in a single array (double[], int[], String[] etc.), with
+ * one element per Metadata. This is how serializers restore lists of record-like Metadata that were
+ * written in columns.
+ * <p>
+ * The Metadata in the list (the rows) are created on demand: {@link #get(int)} returns a new
+ * {@link FixedMetadata} each time it is called. Use {@link #getColumn(List, Key)} to get all the
+ * values associated with a key without creating any rows.
+ * <p>
+ * A ColumnarMetadataList is equal to any list of equal Metadata in the same order.
+ */
+public final class ColumnarMetadataList extends AbstractList<Metadata> implements RandomAccess {
+
+  /**
+   * Return the type of array in which the values associated with the supplied key in the supplied
+   * Metadata may be stored as a column. This is the case if the values are all non-null and of the
+   * same type, which must be one of String, Boolean, Character or one of the boxed number types,
+   * for which the column is a String[], or an array of the corresponding primitive type,
+   * respectively.
+   *
+   * @param rows the Metadata
+   * @param key the key, which must be in all the Metadata
+   * @return the type of column, for example double[].class for Double values, or null if the
+   *         values cannot be stored as a column
+   */
+  public static Class<?> getColumnType(Iterable<? extends Metadata> rows, Key<?> key) {
+    Preconditions.checkNotNull(rows);
+    Preconditions.checkNotNull(key);
+
+    Class<?> valueType = null;
+    for (Metadata row : rows) {
+      Object value = row.get(key);
+      if (value == null) {
+        return null;
+      }
+      if (valueType == null) {
+        valueType = value.getClass();
+      } else if (valueType != value.getClass()) {
+        return null;
+      }
+    }
+
+    return valueType != null ? getColumnTypeFor(valueType) : null;
+  }
+
+  /**
+   * Return all the values associated with the supplied key in the supplied Metadata, as an array
+   * whose type is given by {@link #getColumnType(Iterable, Key)}. If the Metadata are a
+   * ColumnarMetadataList, this returns the stored column without creating any rows; the array is
+   * shared and must not be modified. Otherwise a new array is filled from the Metadata, so
+   * managers need not know how their state was loaded.
+   *
+   * @param rows the Metadata
+   * @param key the key, which must be in all the Metadata
+   * @return the values, for example a double[] if the values are Doubles
+   * @throws IllegalArgumentException if the values cannot be stored as a column
+   */
+  public static Object getColumn(List<? extends Metadata> rows, Key<?> key) {
+    Preconditions.checkNotNull(rows);
+    Preconditions.checkNotNull(key);
+
+    if (rows instanceof ColumnarMetadataList) {
+      ColumnarMetadataList list = (ColumnarMetadataList) rows;
+      int index = list.keys.indexOf(key);
+      Preconditions.checkArgument(index >= 0, "Metadata do not contain key %s", key);
+
+      return list.columns.get(index);
+    }
+
+    Class<?> columnType = getColumnType(rows, key);
+    Preconditions.checkArgument(columnType != null,
+        "Values of key %s are not all non-null values of the same primitive or String type", key);
+
+    Object result = Array.newInstance(columnType.getComponentType(), rows.size());
+    int index = 0;
+    for (Metadata row : rows) {
+      // Array.set unboxes the values of primitive types.
+      Array.set(result, index++, row.get(key));
+    }
+
+    return result;
+  }
+
+  /**
+   * Create a list from its columns.
+   *
+   * @param version the version of all the Metadata
+   * @param keys the keys of all the Metadata, in order
+   * @param columns the column of values for each of the keys, in the same order. Each must be an
+   *        array of one of the types returned by {@link #getColumnType(Iterable, Key)}, and all
+   *        must have the same length, which is the size of the list. The arrays are not copied
+   * @return the list
+   */
+  public static ColumnarMetadataList of(Version version, List<? extends Key<?>> keys,
+      List<?> columns) {
+    Preconditions.checkNotNull(version);
+    Preconditions.checkArgument(keys.size() == columns.size(),
+        "There are %s keys but %s columns", keys.size(), columns.size());
+    Preconditions.checkArgument(!keys.isEmpty(), "Metadata have no keys");
+
+    int size = -1;
+    for (Object column : columns) {
+      Preconditions.checkNotNull(column);
+      Preconditions.checkArgument(column.getClass().isArray()
+          && getColumnTypeFor(column.getClass().getComponentType()) == column.getClass(),
+          "Unsupported type of column %s", column.getClass());
+
+      int length = Array.getLength(column);
+      Preconditions.checkArgument(size < 0 || length == size,
+          "Columns have different lengths %s and %s", size, length);
+      size = length;
+    }
+
+    return new ColumnarMetadataList(version, ImmutableList.copyOf(keys),
+        ImmutableList.copyOf(columns), size);
+  }
+
+  private static Class<?> getColumnTypeFor(Class<?> valueType) {
+    if (valueType == String.class) {
+      return String[].class;
+    } else if (valueType == Double.class || valueType == double.class) {
+      return double[].class;
+    } else if (valueType == Float.class || valueType == float.class) {
+      return float[].class;
+    } else if (valueType == Long.class || valueType == long.class) {
+      return long[].class;
+    } else if (valueType == Integer.class || valueType == int.class) {
+      return int[].class;
+    } else if (valueType == Short.class || valueType == short.class) {
+      return short[].class;
+    } else if (valueType == Byte.class || valueType == byte.class) {
+      return byte[].class;
+    } else if (valueType == Boolean.class || valueType == boolean.class) {
+      return boolean[].class;
+    } else if (valueType == Character.class || valueType == char.class) {
+      return char[].class;
+    }
+
+    return null;
+  }
+
+  private final Version version;
+  private final ImmutableList<Key<?>> keys;
+  private final ImmutableList<Object> columns;
+  private final int size;
+
+  private ColumnarMetadataList(Version version, ImmutableList<Key<?>> keys,
+      ImmutableList<Object> columns, int size) {
+    this.version = version;
+    this.keys = keys;
+    this.columns = columns;
+    this.size = size;
+  }
+
+  public Version getVersion() {
+    return version;
+  }
+
+  public ImmutableList<Key<?>> getKeys() {
+    return keys;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Create the Metadata at the supplied position in the list from its values in the columns.
+   */
+  @Override
+  public FixedMetadata get(int index) {
+    Preconditions.checkElementIndex(index, size);
+
+    ImmutableMap.Builder<Key<?>, Object> builder = ImmutableMap.builder();
+    for (int column = 0; column < keys.size(); ++column) {
+      builder.put(keys.get(column), Array.get(columns.get(column), index));
+    }
+
+    return new FixedMetadata(version, keys, builder.build());
+  }
+
+}
@@ -0,0 +1,117 @@
+package edu.jhuapl.ses.jsqrl.impl;
+
+import java.util.Arrays;
+import java.util.function.ToIntFunction;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Cache of the encodings of immutable {@link FixedMetadata} (see
+ * {@link Utilities#isFixed(Object)}), so that writing the same instance again copies its encoding
+ * instead of encoding it again. Instances are compared by identity, and are held weakly, so the
+ * cache never keeps them from being garbage collected. The total weight of the cached encodings is
+ * bounded; the least recently used are evicted first.
+ * <p>
+ * The same instance may be encoded in several forms, numbered from 0, for example with or without
+ * its version. An encoding is only valid for the format and the settings with which it was
+ * written, so a cache must only be used by one writer, and only in contexts in which those do not
+ * change.
+ *
+ * @param <F> the type of the encodings
+ */
+public final class EncodedFormCache<F> {
+
+  /**
+   * Marker for Metadata whose encodings cannot be reused.
+   */
+  private static final Object[] NOT_REUSABLE = new Object[0];
+
+  /**
+   * @param maximumWeight the maximum total weight of the cached encodings
+   * @param numberOfForms the number of forms in which each Metadata may be encoded
+   * @param weigher the function that returns the weight of an encoding, such as its length
+   */
+  public static <F> EncodedFormCache<F> of(long maximumWeight, int numberOfForms,
+      ToIntFunction<? super F> weigher) {
+    Preconditions.checkArgument(maximumWeight >= 0);
+    Preconditions.checkArgument(numberOfForms > 0);
+    Preconditions.checkNotNull(weigher);
+
+    return new EncodedFormCache<>(CacheBuilder.newBuilder().weakKeys().maximumWeight(maximumWeight)
+        .weigher((FixedMetadata metadata, Object[] forms) -> weigh(forms, weigher)).build(),
+        numberOfForms);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <F> int weigh(Object[] forms, ToIntFunction<? super F> weigher) {
+    int result = 0;
+    for (Object form : forms) {
+      if (form != null) {
+        result += weigher.applyAsInt((F) form);
+      }
+    }
+
+    return result;
+  }
+
+  private final Cache<FixedMetadata, Object[]> forms;
+  private final int numberOfForms;
+
+  private EncodedFormCache(Cache<FixedMetadata, Object[]> forms, int numberOfForms) {
+    this.forms = forms;
+    this.numberOfForms = numberOfForms;
+  }
+
+  /**
+   * @return true unless the Metadata is known to be mutable, or its encoding is known not to be
+   *         reusable
+   */
+  public boolean isReusable(FixedMetadata metadata) {
+    Object[] cached = forms.getIfPresent(metadata);
+    if (cached == null) {
+      if (!Utilities.isFixed(metadata)) {
+        forms.put(metadata, NOT_REUSABLE);
+        return false;
+      }
+      forms.put(metadata, new Object[numberOfForms]);
+      return true;
+    }
+
+    return cached != NOT_REUSABLE;
+  }
+
+  /**
+   * Record that the encoding of the Metadata cannot be reused, for example because it refers to
+   * instances outside of it.
+   */
+  public void setNotReusable(FixedMetadata metadata) {
+    forms.put(metadata, NOT_REUSABLE);
+  }
+
+  /**
+   * @return the cached encoding of the Metadata in the supplied form, or null if there is none
+   */
+  @SuppressWarnings("unchecked")
+  public F get(FixedMetadata metadata, int form) {
+    Preconditions.checkElementIndex(form, numberOfForms);
+
+    Object[] cached = forms.getIfPresent(metadata);
+
+    return cached != null && cached != NOT_REUSABLE ? (F) cached[form] : null;
+  }
+
+  public void put(FixedMetadata metadata, int form, F encoding) {
+    Preconditions.checkElementIndex(form, numberOfForms);
+    Preconditions.checkNotNull(encoding);
+
+    // Entries are replaced rather than modified, so that they are weighed again.
+    Object[] cached = forms.getIfPresent(metadata);
+    Object[] updated = cached != null && cached != NOT_REUSABLE
+        ? Arrays.copyOf(cached, numberOfForms) : new Object[numberOfForms];
+    updated[form] = encoding;
+    forms.put(metadata, updated);
+  }
+
+}
@@ -0,0 +1,428 @@
+package edu.jhuapl.ses.jsqrl.impl;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+
+import edu.jhuapl.ses.jsqrl.api.Key;
+import edu.jhuapl.ses.jsqrl.api.Metadata;
+import edu.jhuapl.ses.jsqrl.api.Version;
+
+/**
+ * Structural difference between two {@link Metadata}, from which the second may be produced from
+ * the first by {@link #apply(Metadata)}. Keys that were added, removed or associated with new
+ * values are recorded; where the old and new values are both Metadata, both maps or both lists,
+ * only the differences between them are recorded, recursively, so the diff of two large, similar
+ * Metadata is small.
+ * <p>
+ * A diff is itself represented as Metadata (see {@link #toMetadata()}), holding only values that
+ * may be stored in Metadata, so any serializer can write it exactly as it writes the state of a
+ * manager, and {@link #of(Metadata)} restores it.
+ * <p>
+ * Values are compared using equals, except that arrays are compared element by element, as
+ * {@link AbstractMetadata#equals(Object)} does. Keys that are added are placed after all the
+ * existing keys, and lists and maps are restored as {@link ArrayList}s and {@link LinkedHashMap}s
+ * ({@link TreeMap}s for sorted maps), as they are when Metadata are read from a file.
+ */
+public final class MetadataDiff {
+
+  private static final Version DIFF_VERSION = Version.of(1, 0);
+
+  // Diffs of Metadata and maps.
+  private static final Key<Version> VERSION_KEY = Key.of("version");
+  private static final Key<Object> PUT_KEY = Key.of("put");
+  private static final Key<List<Object>> REMOVED_KEY = Key.of("removed");
+  private static final Key<Map<Object, Metadata>> CHANGED_KEY = Key.of("changed");
+
+  // Diffs of lists, which also use PUT_KEY and CHANGED_KEY to record replaced and changed elements.
+  private static final Key<Integer> SPLICE_INDEX_KEY = Key.of("spliceIndex");
+  private static final Key<Integer> SPLICE_REMOVED_KEY = Key.of("spliceRemoved");
+  private static final Key<List<Object>> SPLICE_INSERTED_KEY = Key.of("spliceInserted");
+
+  private static final Set<Key<?>> KEYS = ImmutableSet.of(VERSION_KEY, PUT_KEY, REMOVED_KEY,
+      CHANGED_KEY, SPLICE_INDEX_KEY, SPLICE_REMOVED_KEY, SPLICE_INSERTED_KEY);
+
+  /**
+   * Return the difference between the supplied Metadata.
+   *
+   * @param from the old Metadata
+   * @param to the new Metadata
+   * @return the diff, which is empty if the Metadata are equal
+   */
+  public static MetadataDiff of(Metadata from, Metadata to) {
+    Preconditions.checkNotNull(from);
+    Preconditions.checkNotNull(to);
+
+    FixedMetadata representation = diffMetadata(from, to);
+
+    return new MetadataDiff(representation != null ? representation : emptyRepresentation());
+  }
+
+  /**
+   * Return the diff represented by the supplied Metadata, which was returned by
+   * {@link #toMetadata()}, or read from a file to which that was written.
+   *
+   * @param representation the Metadata representation of a diff
+   * @return the diff
+   * @throws IllegalArgumentException if the Metadata does not represent a diff
+   */
+  public static MetadataDiff of(Metadata representation) {
+    Preconditions.checkNotNull(representation);
+    Preconditions.checkArgument(isRepresentation(representation),
+        "Metadata does not represent a diff");
+
+    return new MetadataDiff(FixedMetadata.of(representation));
+  }
+
+  private static boolean isRepresentation(Metadata metadata) {
+    return metadata.getVersion().getMajor() == DIFF_VERSION.getMajor()
+        && KEYS.containsAll(metadata.getKeys());
+  }
+
+  private static FixedMetadata emptyRepresentation() {
+    return FixedMetadata.of(SettableMetadata.of(DIFF_VERSION));
+  }
+
+  private final FixedMetadata representation;
+
+  private MetadataDiff(FixedMetadata representation) {
+    this.representation = representation;
+  }
+
+  /**
+   * @return true if the Metadata from which this diff was computed were equal
+   */
+  public boolean isEmpty() {
+    return representation.getKeys().isEmpty();
+  }
+
+  /**
+   * Return the Metadata that represents this diff, which may be stored or serialized like any other
+   * Metadata. Its values must not be modified.
+   *
+   * @return the representation
+   */
+  public Metadata toMetadata() {
+    return representation;
+  }
+
+  /**
+   * Produce new Metadata by applying this diff to the supplied Metadata, which is not modified. The
+   * result is equal to the new Metadata from which this diff was computed if the supplied Metadata
+   * is equal to the old one. Values that did not change are shared with the supplied Metadata.
+   *
+   * @param from Metadata equal to the old Metadata from which this diff was computed
+   * @return the new Metadata
+   * @throws IllegalArgumentException if the diff cannot be applied to the supplied Metadata, which
+   *         means that it is not the Metadata from which the diff was computed
+   */
+  public Metadata apply(Metadata from) {
+    Preconditions.checkNotNull(from);
+
+    return isEmpty() ? from : applyToMetadata(from, representation);
+  }
+
+  @Override
+  public String toString() {
+    return "(MetadataDiff) " + representation;
+  }
+
+  /**
+   * Record the difference between two values associated with the same key or index: nothing if
+   * they are equal, the diff between them if they are both Metadata, both maps (both sorted or
+   * neither) or both lists, or otherwise the new value.
+   */
+  private static <K> void diffValues(K key, Object from, Object to, Map<K, Object> put,
+      Map<K, Metadata> changed) {
+    if (Objects.deepEquals(from, to)) {
+      return;
+    }
+
+    Metadata diff;
+    if (from instanceof Metadata && to instanceof Metadata) {
+      diff = diffMetadata((Metadata) from, (Metadata) to);
+    } else if (from instanceof Map && to instanceof Map
+        && (from instanceof SortedMap) == (to instanceof SortedMap)) {
+      diff = diffMap((Map<?, ?>) from, (Map<?, ?>) to);
+    } else if (from instanceof List && to instanceof List) {
+      diff = diffList((List<?>) from, (List<?>) to);
+    } else {
+      put.put(key, to);
+      return;
+    }
+
+    // Null if the values are equal after all, which equals does not always find, for example if
+    // they hold arrays.
+    if (diff != null) {
+      changed.put(key, diff);
+    }
+  }
+
+  private static FixedMetadata diffMetadata(Metadata from, Metadata to) {
+    Map<String, Object> put = new LinkedHashMap<>();
+    Map<String, Metadata> changed = new LinkedHashMap<>();
+    List<Object> removed = new ArrayList<>();
+    for (Key<?> key : from.getKeys()) {
+      if (!to.hasKey(key)) {
+        removed.add(key.getId());
+      }
+    }
+    for (Key<?> key : to.getKeys()) {
+      if (from.hasKey(key)) {
+        diffValues(key.getId(), from.get(key), to.get(key), put, changed);
+      } else {
+        put.put(key.getId(), to.get(key));
+      }
+    }
+
+    boolean versionChanged = !from.getVersion().equals(to.getVersion());
+    if (put.isEmpty() && changed.isEmpty() && removed.isEmpty() && !versionChanged) {
+      return null;
+    }
+
+    SettableMetadata result = SettableMetadata.of(DIFF_VERSION);
+    if (versionChanged) {
+      result.put(VERSION_KEY, to.getVersion());
+    }
+    if (!put.isEmpty()) {
+      // Held in Metadata rather than a map, which could not hold values of different types.
+      SettableMetadata putMetadata = SettableMetadata.of(DIFF_VERSION);
+      for (Map.Entry<String, Object> entry : put.entrySet()) {
+        putMetadata.put(Key.of(entry.getKey()), entry.getValue());
+      }
+      result.put(PUT_KEY, putMetadata);
+    }
+    putIfNotEmpty(result, REMOVED_KEY, removed);
+    putIfNotEmpty(result, CHANGED_KEY, changed);
+
+    return FixedMetadata.of(result);
+  }
+
+  private static FixedMetadata diffMap(Map<?, ?> from, Map<?, ?> to) {
+    Map<Object, Object> put = new LinkedHashMap<>();
+    Map<Object, Metadata> changed = new LinkedHashMap<>();
+    List<Object> removed = new ArrayList<>();
+    for (Object key : from.keySet()) {
+      if (!to.containsKey(key)) {
+        removed.add(key);
+      }
+    }
+    for (Map.Entry<?, ?> entry : to.entrySet()) {
+      Object key = entry.getKey();
+      if (from.containsKey(key)) {
+        diffValues(key, from.get(key), entry.getValue(), put, changed);
+      } else {
+        put.put(key, entry.getValue());
+      }
+    }
+
+    if (put.isEmpty() && changed.isEmpty() && removed.isEmpty()) {
+      return null;
+    }
+
+    SettableMetadata result = SettableMetadata.of(DIFF_VERSION);
+    putIfNotEmpty(result, PUT_KEY, put);
+    putIfNotEmpty(result, REMOVED_KEY, removed);
+    putIfNotEmpty(result, CHANGED_KEY, changed);
+
+    return FixedMetadata.of(result);
+  }
+
+  /**
+   * Elements before the first and after the last that differ are left alone. Between them, the
+   * elements at the same indices in both lists are diffed one by one, and the remaining elements of
+   * the longer list are removed or inserted.
+   */
+  private static FixedMetadata diffList(List<?> from, List<?> to) {
+    int start = 0;
+    while (start < from.size() && start < to.size()
+        && Objects.deepEquals(from.get(start), to.get(start))) {
+      ++start;
+    }
+    int fromEnd = from.size();
+    int toEnd = to.size();
+    while (fromEnd > start && toEnd > start
+        && Objects.deepEquals(from.get(fromEnd - 1), to.get(toEnd - 1))) {
+      --fromEnd;
+      --toEnd;
+    }
+
+    int spliceIndex = Math.min(fromEnd, toEnd);
+    Map<Object, Object> put = new LinkedHashMap<>();
+    Map<Object, Metadata> changed = new LinkedHashMap<>();
+    for (int index = start; index < spliceIndex; ++index) {
+      diffValues(index, from.get(index), to.get(index), put, changed);
+    }
+    int spliceRemoved = fromEnd - spliceIndex;
+    List<Object> spliceInserted = new ArrayList<>(to.subList(spliceIndex, toEnd));
+
+    if (put.isEmpty() && changed.isEmpty() && spliceRemoved == 0 && spliceInserted.isEmpty()) {
+      return null;
+    }
+
+    SettableMetadata result = SettableMetadata.of(DIFF_VERSION);
+    putIfNotEmpty(result, PUT_KEY, put);
+    putIfNotEmpty(result, CHANGED_KEY, changed);
+    if (spliceRemoved > 0 || !spliceInserted.isEmpty()) {
+      result.put(SPLICE_INDEX_KEY, spliceIndex);
+      if (spliceRemoved > 0) {
+        result.put(SPLICE_REMOVED_KEY, spliceRemoved);
+      }
+      putIfNotEmpty(result, SPLICE_INSERTED_KEY, spliceInserted);
+    }
+
+    return FixedMetadata.of(result);
+  }
+
+  private static void putIfNotEmpty(SettableMetadata metadata, Key<?> key, Object value) {
+    boolean empty = value instanceof Map ? ((Map<?, ?>) value).isEmpty()
+        : ((List<?>) value).isEmpty();
+    if (!empty) {
+      @SuppressWarnings("unchecked")
+      Key<Object> objectKey = (Key<Object>) key;
+      metadata.put(objectKey, value);
+    }
+  }
+
+  private static <V> V get(Metadata diff, Key<?> key, V defaultValue) {
+    @SuppressWarnings("unchecked")
+    V result = diff.hasKey(key) ? (V) diff.get(key) : defaultValue;
+    return result;
+  }
+
+  private static Object apply(Object from, Metadata diff) {
+    if (from instanceof Metadata) {
+      return applyToMetadata((Metadata) from, diff);
+    } else if (from instanceof Map) {
+      return applyToMap((Map<?, ?>) from, diff);
+    } else if (from instanceof List) {
+      return applyToList((List<?>) from, diff);
+    }
+
+    throw new IllegalArgumentException(
+        "Cannot apply a diff to " + (from != null ? Utilities.simpleName(from.getClass()) : null));
+  }
+
+  private static Metadata applyToMetadata(Metadata from, Metadata diff) {
+    Metadata put = get(diff, PUT_KEY, SettableMetadata.of(DIFF_VERSION));
+    Set<Object> removed = ImmutableSet.copyOf(get(diff, REMOVED_KEY, new ArrayList<>()));
+    Map<Object, Metadata> changed = get(diff, CHANGED_KEY, new LinkedHashMap<>());
+
+    SettableMetadata result = SettableMetadata.of(get(diff, VERSION_KEY, from.getVersion()));
+    for (Key<?> key : from.getKeys()) {
+      @SuppressWarnings("unchecked")
+      Key<Object> objectKey = (Key<Object>) key;
+      if (removed.contains(key.getId())) {
+        continue;
+      } else if (put.hasKey(key)) {
+        result.put(objectKey, put.get(key));
+      } else if (changed.containsKey(key.getId())) {
+        result.put(objectKey, apply(from.get(key), changed.get(key.getId())));
+      } else {
+        result.put(objectKey, from.get(key));
+      }
+    }
+    for (Key<?> key : put.getKeys()) {
+      if (!from.hasKey(key)) {
+        @SuppressWarnings("unchecked")
+        Key<Object> objectKey = (Key<Object>) key;
+        result.put(objectKey, put.get(key));
+      }
+    }
+    checkApplied(removed, changed.keySet(),
+        key -> key instanceof String && from.hasKey(Key.of((String) key)));
+
+    return result;
+  }
+
+  private static Map<?, ?> applyToMap(Map<?, ?> from, Metadata diff) {
+    Map<?, ?> put = get(diff, PUT_KEY, new LinkedHashMap<>());
+    Set<Object> removed = ImmutableSet.copyOf(get(diff, REMOVED_KEY, new ArrayList<>()));
+    Map<Object, Metadata> changed = get(diff, CHANGED_KEY, new LinkedHashMap<>());
+
+    Map<Object, Object> result;
+    if (from instanceof SortedMap) {
+      @SuppressWarnings("unchecked")
+      Comparator<Object> comparator = (Comparator<Object>) ((SortedMap<?, ?>) from).comparator();
+      result = new TreeMap<>(comparator);
+    } else {
+      result = new LinkedHashMap<>();
+    }
+    for (Map.Entry<?, ?> entry : from.entrySet()) {
+      Object key = entry.getKey();
+      if (removed.contains(key)) {
+        continue;
+      } else if (put.containsKey(key)) {
+        result.put(key, put.get(key));
+      } else if (changed.containsKey(key)) {
+        result.put(key, apply(entry.getValue(), changed.get(key)));
+      } else {
+        result.put(key, entry.getValue());
+      }
+    }
+    for (Map.Entry<?, ?> entry : put.entrySet()) {
+      if (!from.containsKey(entry.getKey())) {
+        result.put(entry.getKey(), entry.getValue());
+      }
+    }
+    checkApplied(removed, changed.keySet(), from::containsKey);
+
+    return result;
+  }
+
+  private static List<?> applyToList(List<?> from, Metadata diff) {
+    Map<?, ?> put = get(diff, PUT_KEY, new LinkedHashMap<>());
+    Map<?, Metadata> changed = get(diff, CHANGED_KEY, new LinkedHashMap<>());
+    int spliceIndex = get(diff, SPLICE_INDEX_KEY, from.size());
+    int spliceRemoved = get(diff, SPLICE_REMOVED_KEY, 0);
+    List<Object> spliceInserted = get(diff, SPLICE_INSERTED_KEY, new ArrayList<>());
+    Preconditions.checkArgument(spliceIndex + spliceRemoved <= from.size(),
+        "Diff does not apply to a list of %s elements", from.size());
+
+    List<Object> result = new ArrayList<>(from.size() - spliceRemoved + spliceInserted.size());
+    result.addAll(from);
+    for (Map.Entry<?, ?> entry : put.entrySet()) {
+      result.set(index(entry.getKey(), spliceIndex), entry.getValue());
+    }
+    for (Map.Entry<?, Metadata> entry : changed.entrySet()) {
+      int index = index(entry.getKey(), spliceIndex);
+      result.set(index, apply(from.get(index), entry.getValue()));
+    }
+    result.subList(spliceIndex, spliceIndex + spliceRemoved).clear();
+    result.addAll(spliceIndex, spliceInserted);
+
+    return result;
+  }
+
+  /**
+   * @return the index, which may have been read as any type of number
+   */
+  private static int index(Object index, int spliceIndex) {
+    Preconditions.checkArgument(index instanceof Number, "Invalid list index %s", index);
+    int result = ((Number) index).intValue();
+    Preconditions.checkArgument(result >= 0 && result < spliceIndex, "Invalid list index %s",
+        result);
+
+    return result;
+  }
+
+  /**
+   * Check that the keys that the diff removes or changes exist in the old Metadata or map.
+   */
+  private static void checkApplied(Set<?> removed, Set<?> changed, Predicate<Object> hasKey) {
+    Preconditions.checkArgument(
+        removed.stream().allMatch(hasKey) && changed.stream().allMatch(hasKey),
+        "Diff does not apply: it removes or changes keys that are absent");
+  }
+
+}
@@ -19,10 +19,13 @@ public class MetadataManagerCollection {
 
   private final List<Key<? extends Metadata>> keysInOrder;
   private final SortedMap<Key<? extends Metadata>, MetadataManager> managers;
+  private final SortedMap<Key<? extends Metadata>, ImmutableList<Key<? extends Metadata>>>
+      dependencies;
 
   private MetadataManagerCollection() {
     this.keysInOrder = new ArrayList<>();
     this.managers = new TreeMap<>();
+    this.dependencies = new TreeMap<>();
   }
 
   /**
@@ -43,17 +46,60 @@ public class MetadataManagerCollection {
     managers.put(key, manager);
   }
 
+  /**
+   * Add a manager to this collection of managers, declaring that its retrieve method must not be
+   * called until the retrieve methods of the managers associated with the dependency keys have
+   * completed. Each dependency must already have been added, which guarantees that dependencies
+   * cannot be circular.
+   * 
+   * @param key the key to Metadata objects this manager will manage
+   * @param manager the manager
+   * @param dependencies the keys of the managers on which this manager depends
+   * @throws IllegalStateException if there is already a manager associated with the supplied key
+   * @throws IllegalArgumentException if any of the dependencies has not already been added
+   * @throws NullPointerException if any argument is null
+   */
+  public void add(Key<? extends Metadata> key, MetadataManager manager,
+      Iterable<? extends Key<? extends Metadata>> dependencies) {
+    Preconditions.checkNotNull(dependencies);
+
+    ImmutableList<Key<? extends Metadata>> dependencyList = ImmutableList.copyOf(dependencies);
+    for (Key<? extends Metadata> dependency : dependencyList) {
+      Preconditions.checkArgument(managers.containsKey(dependency),
+          "Dependency %s must be added before %s", dependency, key);
+    }
+
+    add(key, manager);
+    this.dependencies.put(key, dependencyList);
+  }
+
   public void remove(Key<? extends Metadata> key) {
     Preconditions.checkNotNull(key);
 
     keysInOrder.remove(key);
     managers.remove(key);
+    dependencies.remove(key);
   }
 
   public ImmutableList<Key<? extends Metadata>> getKeys() {
     return ImmutableList.copyOf(keysInOrder);
   }
 
+  /**
+   * Return the keys of the managers that were declared as dependencies when the manager with the
+   * supplied key was added. Note that a dependency may since have been removed.
+   * 
+   * @param key the key
+   * @return the dependencies, which is empty if none were declared
+   */
+  public ImmutableList<Key<? extends Metadata>> getDependencies(Key<? extends Metadata> key) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkArgument(managers.containsKey(key));
+
+    ImmutableList<Key<? extends Metadata>> result = dependencies.get(key);
+    return result != null ? result : ImmutableList.of();
+  }
+
   public MetadataManager getManager(Key<? extends Metadata> key) {
     Preconditions.checkNotNull(key);
     Preconditions.checkArgument(managers.containsKey(key));
@@ -107,7 +107,9 @@ public class SettableMetadata extends AbstractMetadata {
 
   @SuppressWarnings("unchecked")
   protected static <V> V copyOrUse(Class<?> storedAsType, V value) {
-    if (SortedMap.class.isAssignableFrom(storedAsType)) {
+    if (value instanceof ColumnarMetadataList) {
+      // Immutable, and copying it would create all of its Metadata.
+    } else if (SortedMap.class.isAssignableFrom(storedAsType)) {
       value = (V) new TreeMap<>((SortedMap<?, ?>) value);
     } else if (Map.class.isAssignableFrom(storedAsType)) {
       value = (V) new LinkedHashMap<>((Map<?, ?>) value);
@@ -141,6 +143,10 @@ public class SettableMetadata extends AbstractMetadata {
     if (object == null) {
       return null;
     }
+    if (object instanceof ColumnarMetadataList) {
+      // Always storable, and validating it would create all of its Metadata.
+      return List.class;
+    }
     if (object instanceof List) {
       validateIterable((Iterable<?>) object);
       return List.class;
@@ -76,6 +76,10 @@ public final class TrackedMetadataManager implements MetadataManager, Representa
     return metadataKey;
   }
 
+  MetadataManager getManager() {
+    return manager;
+  }
+
   /**
    * {@inheritDoc}
    */
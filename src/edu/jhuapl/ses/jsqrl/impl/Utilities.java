@@ -1,5 +1,6 @@
 package edu.jhuapl.ses.jsqrl.impl;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -8,12 +9,15 @@ import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableMap;
+import edu.jhuapl.ses.jsqrl.api.ChangeAwareMetadataManager;
 import edu.jhuapl.ses.jsqrl.api.Key;
 import edu.jhuapl.ses.jsqrl.api.Metadata;
 import edu.jhuapl.ses.jsqrl.api.MetadataManager;
 import edu.jhuapl.ses.jsqrl.api.ProvidesMetadataFromGenericObject;
 import edu.jhuapl.ses.jsqrl.api.StorableAsMetadata;
+import edu.jhuapl.ses.jsqrl.api.ThreadConfined;
 import edu.jhuapl.ses.jsqrl.api.Version;
 import edu.jhuapl.ses.jsqrl.impl.InstanceGetter;
 import edu.jhuapl.ses.jsqrl.impl.SettableMetadata;
@@ -44,6 +48,70 @@ public class Utilities {
     }
   }
 
+  /**
+   * Return true if the supplied manager must only be called on the thread that calls the
+   * serializer, either because it implements {@link ThreadConfined} itself, or because it is a
+   * {@link TrackedMetadataManager} wrapping a manager that does.
+   * 
+   * @param manager the manager
+   * @return true if the manager is confined to the serializer's calling thread
+   */
+  public static boolean isThreadConfined(MetadataManager manager) {
+    if (manager instanceof TrackedMetadataManager) {
+      manager = ((TrackedMetadataManager) manager).getManager();
+    }
+
+    return manager instanceof ThreadConfined;
+  }
+
+  /**
+   * Return the supplied manager as a {@link ChangeAwareMetadataManager}, if it implements that
+   * interface itself, or if it is a {@link TrackedMetadataManager} wrapping a manager that does.
+   * 
+   * @param manager the manager
+   * @return the change-aware manager, or null if the manager cannot report changes
+   */
+  public static ChangeAwareMetadataManager asChangeAware(MetadataManager manager) {
+    if (manager instanceof TrackedMetadataManager) {
+      manager = ((TrackedMetadataManager) manager).getManager();
+    }
+
+    return manager instanceof ChangeAwareMetadataManager ? (ChangeAwareMetadataManager) manager
+        : null;
+  }
+
+  /**
+   * Return true if the supplied value never changes, so that its encoded form may be reused for as
+   * long as the value exists. This is the case for null, strings, boxed primitives, versions, and
+   * FixedMetadata, Guava immutable collections and immutable maps whose values are all such values.
+   * Everything else may change, including other Metadata, objects that are stored as metadata by a
+   * proxy, arrays, {@link ColumnarMetadataList}s, whose columns are arrays, and other collections
+   * and maps, because {@link FixedMetadata#of(Metadata)} keeps them without copying them.
+   * 
+   * @param value the value
+   * @return true if the value never changes
+   */
+  public static boolean isFixed(Object value) {
+    if (value == null || value == AbstractMetadata.getNullObject() || value instanceof String
+        || value instanceof Double || value instanceof Float || value instanceof Long
+        || value instanceof Integer || value instanceof Short || value instanceof Byte
+        || value instanceof Boolean || value instanceof Character || value instanceof Version) {
+      return true;
+    }
+
+    if (value instanceof FixedMetadata) {
+      return ((FixedMetadata) value).getMap().values().stream().allMatch(Utilities::isFixed);
+    } else if (value instanceof ImmutableCollection) {
+      return ((ImmutableCollection<?>) value).stream().allMatch(Utilities::isFixed);
+    } else if (value instanceof ImmutableMap) {
+      ImmutableMap<?, ?> map = (ImmutableMap<?, ?>) value;
+      return map.keySet().stream().allMatch(Utilities::isFixed)
+          && map.values().stream().allMatch(Utilities::isFixed);
+    }
+
+    return false;
+  }
+
   public static Key<?> provideTypeKeyIfPossible(Object object) {
     InstanceGetter instanceGetter = InstanceGetter.defaultInstanceGetter();
 
@@ -0,0 +1,200 @@
+package edu.jhuapl.ses.jsqrl.impl.binary;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Reads the primitive elements written by {@link BinaryOutput}, either from a stream or from a
+ * buffer. When reading from a buffer, blocks may be obtained as slices of the buffer rather than
+ * being copied.
+ */
+final class BinaryInput {
+
+  private final InputStream in;
+  private final ByteBuffer buffer;
+
+  BinaryInput(InputStream in) {
+    this.in = Preconditions.checkNotNull(in);
+    this.buffer = null;
+  }
+
+  /**
+   * Read from the supplied buffer, starting at its position. The position is advanced as the
+   * buffer is read.
+   */
+  BinaryInput(ByteBuffer buffer) {
+    this.in = new ByteBufferInputStream(buffer);
+    this.buffer = buffer;
+  }
+
+  /**
+   * @return true if this reads from a buffer, so that {@link #readSlice(int)} may be used
+   */
+  boolean isBuffered() {
+    return buffer != null;
+  }
+
+  /**
+   * Return the next bytes as a slice of the buffer from which this reads, without copying them.
+   *
+   * @param length the number of bytes
+   * @return the slice, whose position is 0 and whose limit is the length
+   * @throws IllegalStateException if this does not read from a buffer
+   */
+  ByteBuffer readSlice(int length) throws IOException {
+    Preconditions.checkState(buffer != null);
+    if (length > buffer.remaining()) {
+      throw new EOFException();
+    }
+
+    ByteBuffer result = buffer.slice();
+    result.limit(length);
+    buffer.position(buffer.position() + length);
+
+    return result;
+  }
+
+  int readByte() throws IOException {
+    int result = in.read();
+    if (result < 0) {
+      throw new EOFException();
+    }
+    return result;
+  }
+
+  /**
+   * @return true if there is nothing left to read. Otherwise, one byte may have been read
+   */
+  boolean isAtEnd() throws IOException {
+    return buffer != null ? !buffer.hasRemaining() : in.read() < 0;
+  }
+
+  void readBytes(byte[] bytes) throws IOException {
+    readBytes(bytes, 0, bytes.length);
+  }
+
+  void readBytes(byte[] bytes, int offset, int length) throws IOException {
+    ByteStreams.readFully(in, bytes, offset, length);
+  }
+
+  void skipBytes(long length) throws IOException {
+    ByteStreams.skipFully(in, length);
+  }
+
+  BinaryTag readTag() throws IOException {
+    return BinaryTag.of(readByte());
+  }
+
+  boolean readBoolean() throws IOException {
+    return readByte() != 0;
+  }
+
+  long readVarint() throws IOException {
+    long result = 0;
+    for (int shift = 0; shift < Long.SIZE; shift += 7) {
+      int b = readByte();
+      result |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return result;
+      }
+    }
+    throw new IOException("Malformed variable-length integer");
+  }
+
+  /**
+   * Read a variable-length integer that is used as the length of something held in memory.
+   */
+  int readLength() throws IOException {
+    long result = readVarint();
+    if (result < 0 || result > Integer.MAX_VALUE) {
+      throw new IOException("Invalid length " + result);
+    }
+    return (int) result;
+  }
+
+  long readSignedVarint() throws IOException {
+    long zigZag = readVarint();
+    return (zigZag >>> 1) ^ -(zigZag & 1);
+  }
+
+  int readFixed16() throws IOException {
+    return readByte() | (readByte() << 8);
+  }
+
+  int readFixed32() throws IOException {
+    int result = 0;
+    for (int shift = 0; shift < Integer.SIZE; shift += Byte.SIZE) {
+      result |= readByte() << shift;
+    }
+    return result;
+  }
+
+  long readFixed64() throws IOException {
+    long result = 0;
+    for (int shift = 0; shift < Long.SIZE; shift += Byte.SIZE) {
+      result |= (long) readByte() << shift;
+    }
+    return result;
+  }
+
+  double readDouble() throws IOException {
+    return Double.longBitsToDouble(readFixed64());
+  }
+
+  float readFloat() throws IOException {
+    return Float.intBitsToFloat(readFixed32());
+  }
+
+  String readString() throws IOException {
+    byte[] bytes = new byte[readLength()];
+    readBytes(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = Preconditions.checkNotNull(buffer);
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+
+      int count = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, count);
+      return count;
+    }
+
+    @Override
+    public long skip(long length) {
+      int count = (int) Math.max(0, Math.min(length, buffer.remaining()));
+      buffer.position(buffer.position() + count);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+
+  }
+
+}
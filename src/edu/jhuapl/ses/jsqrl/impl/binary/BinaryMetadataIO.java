@@ -0,0 +1,623 @@
+package edu.jhuapl.ses.jsqrl.impl.binary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import edu.jhuapl.ses.jsqrl.api.Key;
+import edu.jhuapl.ses.jsqrl.api.Metadata;
+import edu.jhuapl.ses.jsqrl.api.StorableAsMetadata;
+import edu.jhuapl.ses.jsqrl.api.Version;
+import edu.jhuapl.ses.jsqrl.impl.EncodedFormCache;
+import edu.jhuapl.ses.jsqrl.impl.FixedMetadata;
+import edu.jhuapl.ses.jsqrl.impl.InstanceGetter;
+import edu.jhuapl.ses.jsqrl.impl.SettableMetadata;
+import edu.jhuapl.ses.jsqrl.impl.Utilities;
+import edu.jhuapl.ses.jsqrl.impl.gson.ClassIO;
+import edu.jhuapl.ses.jsqrl.impl.gson.DataTypeInfo;
+import edu.jhuapl.ses.jsqrl.impl.gson.PrimitiveArrayIO;
+import edu.jhuapl.ses.jsqrl.impl.gson.SerializableIO;
+
+/**
+ * Encoder and decoder for the binary file format. A file consists of:
+ * <ol>
+ * <li>the 4 magic bytes "JSQB";
+ * <li>the version of the binary format, then the version of the outermost Metadata;
+ * <li>the number of top-level entries;
+ * <li>for each top-level entry, its key, the length in bytes of its value and then the value.
+ * </ol>
+ * Because each top-level value is preceded by its length, values that are not wanted are skipped
+ * without being decoded.
+ * <p>
+ * Each value is written as a one-byte {@link BinaryTag} followed by the content for that tag.
+ * Versions are written as two variable-length integers. Metadata are written as their version,
+ * the number of keys and then each key followed by its value. Collections and arrays are written as
+ * the number of elements followed by the elements; maps as the number of entries followed by each
+ * key and value. Elements of primitive arrays are written in fixed-width little-endian form,
+ * without tags; for arrays of numbers this is done by copying the whole array as one block (see
+ * {@link PrimitiveArrayIO}). Because such blocks are stored verbatim, an uncompressed file may be
+ * mapped into memory and its large arrays read in place (see {@link #readMapped(File, Predicate)}).
+ * <p>
+ * Values are classified using {@link DataTypeInfo}, and objects of types registered with the
+ * {@link InstanceGetter} are stored through their proxy metadata, so everything that may be stored
+ * in the JSON format may also be stored in this format.
+ */
+public final class BinaryMetadataIO {
+
+  private static final InstanceGetter INSTANCE_GETTER = InstanceGetter.defaultInstanceGetter();
+
+  private static final byte[] MAGIC = new byte[] { 'J', 'S', 'Q', 'B' };
+
+  // Arrays of numbers smaller than this are copied when a file is mapped, because they are cheaper
+  // to copy than to track.
+  private static final int MIN_MAPPED_BYTES = 8 * 1024;
+
+  // Initial version.
+  private static final Version FORMAT_VERSION_1 = Version.of(1, 0);
+
+  // Maximum total length, in bytes, of the cached encodings of immutable Metadata.
+  private static final long ENCODED_METADATA_LENGTH = 64 * 1024 * 1024;
+
+  /**
+   * Encodings of immutable {@link FixedMetadata} already written, which are copied when the same
+   * instances are written again. The encoding of a Metadata does not depend on where it is written,
+   * so the cache is shared by all files.
+   */
+  private static final EncodedFormCache<byte[]> ENCODED_METADATA =
+      EncodedFormCache.of(ENCODED_METADATA_LENGTH, 1, encoding -> encoding.length);
+
+  /**
+   * @return the version of the binary format written by {@link #write(OutputStream, Metadata)}
+   */
+  public static Version getFormatVersion() {
+    return FORMAT_VERSION_1;
+  }
+
+  /**
+   * Determine whether the supplied stream contains the binary format, without consuming any of it.
+   *
+   * @param in the stream, positioned at the start of the (decompressed) content. It must support
+   *        {@link InputStream#mark(int)}
+   * @return true if the content starts with the magic number of the binary format
+   */
+  public static boolean isBinary(InputStream in) throws IOException {
+    Preconditions.checkArgument(in.markSupported());
+
+    in.mark(MAGIC.length);
+    byte[] header = in.readNBytes(MAGIC.length);
+    in.reset();
+
+    return Arrays.equals(header, MAGIC);
+  }
+
+  /**
+   * Write the supplied Metadata, whose values are the top-level entries, in the binary format.
+   *
+   * @param out the stream to which to write, which is not closed
+   * @param metaMetadata the Metadata to write
+   */
+  public static void write(OutputStream out, Metadata metaMetadata) throws IOException {
+    Preconditions.checkNotNull(out);
+    Preconditions.checkNotNull(metaMetadata);
+
+    BinaryOutput output = new BinaryOutput(out);
+    output.writeBytes(MAGIC);
+    writeVersion(output, FORMAT_VERSION_1);
+    writeVersion(output, metaMetadata.getVersion());
+
+    Collection<Key<?>> keys = metaMetadata.getKeys();
+    output.writeVarint(keys.size());
+
+    // Each value is encoded in memory first so that it can be preceded by its length.
+    ByteArrayOutputStream block = new ByteArrayOutputStream();
+    BinaryOutput blockOutput = new BinaryOutput(block);
+    for (Key<?> key : keys) {
+      block.reset();
+      writeValue(blockOutput, metaMetadata.get(key));
+
+      output.writeString(key.getId());
+      output.writeVarint(block.size());
+      block.writeTo(out);
+    }
+  }
+
+  /**
+   * Read a file written by {@link #write(OutputStream, Metadata)}.
+   *
+   * @param in the stream, positioned at the magic number
+   * @param keyFilter predicate that selects the identifiers of the top-level entries to decode. The
+   *        others are skipped
+   * @return the outermost Metadata, containing only the selected entries
+   */
+  public static Metadata read(InputStream in, Predicate<String> keyFilter) throws IOException {
+    Preconditions.checkNotNull(in);
+    Preconditions.checkNotNull(keyFilter);
+
+    return read(new BinaryInput(in), keyFilter);
+  }
+
+  /**
+   * Read a file written by {@link #write(OutputStream, Metadata)}, without compression, by mapping
+   * it into memory. Metadata in the result are {@link MappedMetadata}, in which large arrays of
+   * numbers are not copied out of the file until they are used.
+   *
+   * @param file the file
+   * @param keyFilter predicate that selects the identifiers of the top-level entries to decode. The
+   *        others are skipped
+   * @return the outermost Metadata, containing only the selected entries, or null if the file is
+   *         not an uncompressed binary file, or is too large to be mapped
+   */
+  public static Metadata readMapped(File file, Predicate<String> keyFilter) throws IOException {
+    Preconditions.checkNotNull(file);
+    Preconditions.checkNotNull(keyFilter);
+
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < MAGIC.length || size > Integer.MAX_VALUE) {
+        return null;
+      }
+
+      // The mapping remains valid after the channel is closed.
+      MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, size);
+
+      byte[] header = new byte[MAGIC.length];
+      buffer.duplicate().get(header);
+      if (!Arrays.equals(header, MAGIC)) {
+        return null;
+      }
+
+      return read(new BinaryInput(buffer), keyFilter);
+    }
+  }
+
+  private static Metadata read(BinaryInput input, Predicate<String> keyFilter) throws IOException {
+    byte[] header = new byte[MAGIC.length];
+    input.readBytes(header);
+    if (!Arrays.equals(header, MAGIC)) {
+      throw new IOException("Invalid binary Metadata file format");
+    }
+
+    Version formatVersion = readVersion(input);
+    if (formatVersion.getMajor() != FORMAT_VERSION_1.getMajor()) {
+      throw new IOException("Binary Metadata reader version " + FORMAT_VERSION_1
+          + " cannot read binary format version " + formatVersion);
+    }
+
+    SettableMetadata result = SettableMetadata.of(readVersion(input));
+
+    long numberOfEntries = input.readVarint();
+    for (long index = 0; index < numberOfEntries; ++index) {
+      String keyId = input.readString();
+      long length = input.readVarint();
+      if (keyFilter.test(keyId)) {
+        put(result, keyId, readValue(input, false));
+      } else {
+        input.skipBytes(length);
+      }
+    }
+
+    if (!input.isAtEnd()) {
+      throw new IOException("Binary Metadata file has unexpected content after its entries");
+    }
+
+    return result;
+  }
+
+  private static void writeValue(BinaryOutput out, Object value) throws IOException {
+    if (value == null) {
+      out.writeTag(BinaryTag.NULL);
+      return;
+    }
+
+    Key<?> typeKey = Utilities.provideTypeKeyIfPossible(value);
+    if (typeKey != null) {
+      out.writeTag(BinaryTag.PROVIDED_OBJECT);
+      out.writeString(typeKey.getId());
+      writeMetadata(out, (Metadata) Utilities.provideMetadataIfPossible(value));
+      return;
+    }
+
+    BinaryTag tag = BinaryTag.of(DataTypeInfo.forObject(value));
+
+    if (tag == BinaryTag.SERIALIZABLE) {
+      // As in the JSON format, objects that fail to serialize are stored as null.
+      byte[] data = SerializableIO.encode((Serializable) value);
+      if (data == null) {
+        out.writeTag(BinaryTag.NULL);
+      } else {
+        out.writeTag(tag);
+        out.writeVarint(data.length);
+        out.writeBytes(data);
+      }
+      return;
+    }
+
+    out.writeTag(tag);
+    switch (tag) {
+      case METADATA_KEY:
+        out.writeString(((Key<?>) value).getId());
+        break;
+      case METADATA:
+        if (value instanceof FixedMetadata) {
+          writeFixedMetadata(out, (FixedMetadata) value);
+        } else {
+          writeMetadata(out, (Metadata) value);
+        }
+        break;
+      case VERSION:
+        writeVersion(out, (Version) value);
+        break;
+      case PROXIED_OBJECT:
+        StorableAsMetadata<?> proxy = (StorableAsMetadata<?>) value;
+        out.writeString(proxy.getKey().getId());
+        writeMetadata(out, proxy.store());
+        break;
+      case LIST:
+      case ITERABLE:
+      case SET:
+      case SORTED_SET:
+        writeIterable(out, (Iterable<?>) value);
+        break;
+      case MAP:
+      case SORTED_MAP:
+        writeMap(out, (Map<?, ?>) value);
+        break;
+      case STRING:
+        out.writeString((String) value);
+        break;
+      case CHARACTER_OBJECT:
+        out.writeFixed16((Character) value);
+        break;
+      case BOOLEAN_OBJECT:
+        out.writeBoolean((Boolean) value);
+        break;
+      case DOUBLE_OBJECT:
+        out.writeDouble((Double) value);
+        break;
+      case FLOAT_OBJECT:
+        out.writeFloat((Float) value);
+        break;
+      case INTEGER_OBJECT:
+      case LONG_OBJECT:
+      case SHORT_OBJECT:
+        out.writeSignedVarint(((Number) value).longValue());
+        break;
+      case BYTE_OBJECT:
+        out.writeByte((Byte) value);
+        break;
+      case DATE_OBJECT:
+        out.writeSignedVarint(((Date) value).getTime());
+        break;
+      case STRING_ARRAY:
+      case CHARACTER_OBJECT_ARRAY:
+      case BOOLEAN_OBJECT_ARRAY:
+      case DOUBLE_OBJECT_ARRAY:
+      case FLOAT_OBJECT_ARRAY:
+      case INTEGER_OBJECT_ARRAY:
+      case LONG_OBJECT_ARRAY:
+      case SHORT_OBJECT_ARRAY:
+      case BYTE_OBJECT_ARRAY:
+      case DATE_ARRAY:
+      case METADATA_ARRAY:
+        writeObjectArray(out, (Object[]) value);
+        break;
+      case CHARACTER_ARRAY:
+      case BOOLEAN_ARRAY:
+      case DOUBLE_ARRAY:
+      case FLOAT_ARRAY:
+      case INTEGER_ARRAY:
+      case LONG_ARRAY:
+      case SHORT_ARRAY:
+      case BYTE_ARRAY:
+        writePrimitiveArray(out, tag, value);
+        break;
+      case CLASS:
+        out.writeString(ClassIO.encode((Class<?>) value));
+        break;
+      default:
+        throw new AssertionError("Unhandled binary type tag " + tag);
+    }
+  }
+
+  private static void writeVersion(BinaryOutput out, Version version) throws IOException {
+    out.writeVarint(version.getMajor());
+    out.writeVarint(version.getMinor());
+  }
+
+  private static void writeMetadata(BinaryOutput out, Metadata metadata) throws IOException {
+    writeVersion(out, metadata.getVersion());
+
+    Collection<Key<?>> keys = metadata.getKeys();
+    out.writeVarint(keys.size());
+    for (Key<?> key : keys) {
+      out.writeString(key.getId());
+      writeValue(out, metadata.get(key));
+    }
+  }
+
+  /**
+   * Write a FixedMetadata by copying its encoding from the cache, if it is immutable, encoding it
+   * and adding it to the cache first if it is not there yet. The encoding of a Metadata does not
+   * depend on where it is written, so it may be copied into any file.
+   */
+  private static void writeFixedMetadata(BinaryOutput out, FixedMetadata metadata)
+      throws IOException {
+    if (!ENCODED_METADATA.isReusable(metadata)) {
+      writeMetadata(out, metadata);
+      return;
+    }
+
+    byte[] encoding = ENCODED_METADATA.get(metadata, 0);
+    if (encoding == null) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      writeMetadata(new BinaryOutput(bytes), metadata);
+      encoding = bytes.toByteArray();
+      ENCODED_METADATA.put(metadata, 0, encoding);
+    }
+
+    out.writeBytes(encoding);
+  }
+
+  private static void writeIterable(BinaryOutput out, Iterable<?> iterable) throws IOException {
+    Collection<?> collection =
+        iterable instanceof Collection ? (Collection<?>) iterable : Lists.newArrayList(iterable);
+
+    out.writeVarint(collection.size());
+    for (Object item : collection) {
+      writeValue(out, item);
+    }
+  }
+
+  private static void writeMap(BinaryOutput out, Map<?, ?> map) throws IOException {
+    out.writeVarint(map.size());
+    for (Entry<?, ?> entry : map.entrySet()) {
+      writeValue(out, entry.getKey());
+      writeValue(out, entry.getValue());
+    }
+  }
+
+  private static void writeObjectArray(BinaryOutput out, Object[] array) throws IOException {
+    out.writeVarint(array.length);
+    for (Object item : array) {
+      writeValue(out, item);
+    }
+  }
+
+  private static void writePrimitiveArray(BinaryOutput out, BinaryTag tag, Object array)
+      throws IOException {
+    int length = Array.getLength(array);
+    out.writeVarint(length);
+
+    switch (tag) {
+      case CHARACTER_ARRAY:
+        for (char item : (char[]) array) {
+          out.writeFixed16(item);
+        }
+        break;
+      case BOOLEAN_ARRAY:
+        for (boolean item : (boolean[]) array) {
+          out.writeBoolean(item);
+        }
+        break;
+      default:
+        // Arrays of numbers are copied as one block, which is identical to writing each element in
+        // fixed-width little-endian form.
+        out.writeBytes(PrimitiveArrayIO.encode(array));
+        break;
+    }
+  }
+
+  private static Object readValue(BinaryInput in) throws IOException {
+    return readValue(in, false);
+  }
+
+  /**
+   * @param mappable true if the value may be returned as a {@link MappedArray}, which is only the
+   *        case for values of a {@link MappedMetadata}
+   */
+  private static Object readValue(BinaryInput in, boolean mappable) throws IOException {
+    BinaryTag tag = in.readTag();
+
+    switch (tag) {
+      case NULL:
+        return null;
+      case METADATA_KEY:
+        return Key.of(in.readString());
+      case METADATA:
+        return readMetadata(in);
+      case VERSION:
+        return readVersion(in);
+      case PROXIED_OBJECT:
+      case PROVIDED_OBJECT:
+        Key<Object> proxyKey = Key.of(in.readString());
+        Metadata proxyMetadata = readMetadata(in);
+        return INSTANCE_GETTER.providesGenericObjectFromMetadata(proxyKey).provide(proxyMetadata);
+      case LIST:
+      case ITERABLE:
+        return readCollection(in, new ArrayList<>());
+      case SET:
+        return readCollection(in, new LinkedHashSet<>());
+      case SORTED_SET:
+        return readCollection(in, new TreeSet<>());
+      case MAP:
+        return readMap(in, new LinkedHashMap<>());
+      case SORTED_MAP:
+        return readMap(in, new TreeMap<>());
+      case STRING:
+        return in.readString();
+      case CHARACTER_OBJECT:
+        return (char) in.readFixed16();
+      case BOOLEAN_OBJECT:
+        return in.readBoolean();
+      case DOUBLE_OBJECT:
+        return in.readDouble();
+      case FLOAT_OBJECT:
+        return in.readFloat();
+      case INTEGER_OBJECT:
+        return (int) in.readSignedVarint();
+      case LONG_OBJECT:
+        return in.readSignedVarint();
+      case SHORT_OBJECT:
+        return (short) in.readSignedVarint();
+      case BYTE_OBJECT:
+        return (byte) in.readByte();
+      case DATE_OBJECT:
+        return new Date(in.readSignedVarint());
+      case STRING_ARRAY:
+      case CHARACTER_OBJECT_ARRAY:
+      case BOOLEAN_OBJECT_ARRAY:
+      case DOUBLE_OBJECT_ARRAY:
+      case FLOAT_OBJECT_ARRAY:
+      case INTEGER_OBJECT_ARRAY:
+      case LONG_OBJECT_ARRAY:
+      case SHORT_OBJECT_ARRAY:
+      case BYTE_OBJECT_ARRAY:
+      case DATE_ARRAY:
+      case METADATA_ARRAY:
+        return readObjectArray(in, tag);
+      case CHARACTER_ARRAY:
+      case BOOLEAN_ARRAY:
+      case DOUBLE_ARRAY:
+      case FLOAT_ARRAY:
+      case INTEGER_ARRAY:
+      case LONG_ARRAY:
+      case SHORT_ARRAY:
+      case BYTE_ARRAY:
+        return readPrimitiveArray(in, tag, mappable);
+      case CLASS:
+        return ClassIO.decode(in.readString());
+      case SERIALIZABLE:
+        byte[] data = new byte[in.readLength()];
+        in.readBytes(data);
+        return SerializableIO.decode(data);
+      default:
+        throw new AssertionError("Unhandled binary type tag " + tag);
+    }
+  }
+
+  private static Version readVersion(BinaryInput in) throws IOException {
+    return Version.of(in.readLength(), in.readLength());
+  }
+
+  private static Metadata readMetadata(BinaryInput in) throws IOException {
+    Version version = readVersion(in);
+    boolean mappable = in.isBuffered();
+
+    SettableMetadata result = SettableMetadata.of(version);
+    MappedMetadata.Builder mappedResult = mappable ? MappedMetadata.builder(version) : null;
+    boolean mapped = false;
+
+    int numberOfKeys = in.readLength();
+    for (int index = 0; index < numberOfKeys; ++index) {
+      String keyId = in.readString();
+      Object value = readValue(in, mappable);
+      if (value instanceof MappedArray) {
+        mapped = true;
+      } else {
+        put(result, keyId, value);
+      }
+      if (mappedResult != null) {
+        mappedResult.put(Key.of(keyId), value);
+      }
+    }
+
+    // Metadata without mapped arrays are returned as they are when not mapped, so that they hash
+    // consistently with other Metadata, for example as elements of sets.
+    return mapped ? mappedResult.build() : result;
+  }
+
+  private static <C extends Collection<Object>> C readCollection(BinaryInput in, C result)
+      throws IOException {
+    int size = in.readLength();
+    for (int index = 0; index < size; ++index) {
+      result.add(readValue(in));
+    }
+
+    return result;
+  }
+
+  private static <M extends Map<Object, Object>> M readMap(BinaryInput in, M result)
+      throws IOException {
+    int size = in.readLength();
+    for (int index = 0; index < size; ++index) {
+      Object key = readValue(in);
+      result.put(key, readValue(in));
+    }
+
+    return result;
+  }
+
+  private static Object[] readObjectArray(BinaryInput in, BinaryTag tag) throws IOException {
+    int length = in.readLength();
+    Class<?> componentType = tag.getTypeInfo().getTypeClass().getComponentType();
+
+    Object[] result = (Object[]) Array.newInstance(componentType, length);
+    for (int index = 0; index < length; ++index) {
+      result[index] = readValue(in);
+    }
+
+    return result;
+  }
+
+  private static Object readPrimitiveArray(BinaryInput in, BinaryTag tag, boolean mappable)
+      throws IOException {
+    int length = in.readLength();
+
+    switch (tag) {
+      case CHARACTER_ARRAY:
+        char[] chars = new char[length];
+        for (int index = 0; index < length; ++index) {
+          chars[index] = (char) in.readFixed16();
+        }
+        return chars;
+      case BOOLEAN_ARRAY:
+        boolean[] booleans = new boolean[length];
+        for (int index = 0; index < length; ++index) {
+          booleans[index] = in.readBoolean();
+        }
+        return booleans;
+      default:
+        Class<?> arrayType = tag.getTypeInfo().getTypeClass();
+        int numberOfBytes = Math.multiplyExact(length, PrimitiveArrayIO.getElementSize(arrayType));
+        if (mappable && in.isBuffered() && numberOfBytes >= MIN_MAPPED_BYTES) {
+          return new MappedArray(in.readSlice(numberOfBytes), arrayType);
+        }
+
+        byte[] block = new byte[numberOfBytes];
+        in.readBytes(block);
+        return PrimitiveArrayIO.decode(block, arrayType);
+    }
+  }
+
+  private static void put(SettableMetadata metadata, String keyId, Object value) {
+    Key<Object> key = Key.of(keyId);
+    metadata.put(key, value);
+  }
+
+  private BinaryMetadataIO() {
+    throw new AssertionError();
+  }
+
+}
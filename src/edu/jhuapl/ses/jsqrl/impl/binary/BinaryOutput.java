@@ -0,0 +1,101 @@
+package edu.jhuapl.ses.jsqrl.impl.binary;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Writes the primitive elements of the binary format to a stream. Lengths, counts and integers are
+ * written as variable-length integers (7 bits per byte, least significant group first, high bit
+ * set on all but the last byte); signed integers are zig-zag encoded first so that small negative
+ * values are also short. Floating-point values are written as their IEEE 754 bits, little-endian.
+ * Strings are written as the length of their UTF-8 encoding followed by the encoding.
+ */
+final class BinaryOutput {
+
+  private final OutputStream out;
+
+  BinaryOutput(OutputStream out) {
+    this.out = Preconditions.checkNotNull(out);
+  }
+
+  void writeByte(int value) throws IOException {
+    out.write(value);
+  }
+
+  void writeBytes(byte[] bytes) throws IOException {
+    out.write(bytes);
+  }
+
+  void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+    out.write(bytes, offset, length);
+  }
+
+  void writeTag(BinaryTag tag) throws IOException {
+    out.write(tag.getCode());
+  }
+
+  void writeBoolean(boolean value) throws IOException {
+    out.write(value ? 1 : 0);
+  }
+
+  /**
+   * Write a non-negative value, such as a length or count, as a variable-length integer.
+   */
+  void writeVarint(long value) throws IOException {
+    Preconditions.checkArgument(value >= 0);
+
+    while ((value & ~0x7fL) != 0) {
+      out.write((int) (value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  /**
+   * Write a value of any sign as a zig-zag encoded variable-length integer.
+   */
+  void writeSignedVarint(long value) throws IOException {
+    long zigZag = (value << 1) ^ (value >> 63);
+
+    while ((zigZag & ~0x7fL) != 0) {
+      out.write((int) (zigZag & 0x7f) | 0x80);
+      zigZag >>>= 7;
+    }
+    out.write((int) zigZag);
+  }
+
+  void writeFixed16(int value) throws IOException {
+    out.write(value);
+    out.write(value >>> 8);
+  }
+
+  void writeFixed32(int value) throws IOException {
+    for (int shift = 0; shift < Integer.SIZE; shift += Byte.SIZE) {
+      out.write(value >>> shift);
+    }
+  }
+
+  void writeFixed64(long value) throws IOException {
+    for (int shift = 0; shift < Long.SIZE; shift += Byte.SIZE) {
+      out.write((int) (value >>> shift));
+    }
+  }
+
+  void writeDouble(double value) throws IOException {
+    writeFixed64(Double.doubleToRawLongBits(value));
+  }
+
+  void writeFloat(float value) throws IOException {
+    writeFixed32(Float.floatToRawIntBits(value));
+  }
+
+  void writeString(String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeVarint(bytes.length);
+    out.write(bytes);
+  }
+
+}
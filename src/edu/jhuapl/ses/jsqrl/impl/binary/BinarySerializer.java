@@ -0,0 +1,63 @@
+package edu.jhuapl.ses.jsqrl.impl.binary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.google.common.base.Preconditions;
+
+import edu.jhuapl.ses.jsqrl.api.Metadata;
+import edu.jhuapl.ses.jsqrl.api.Version;
+import edu.jhuapl.ses.jsqrl.impl.gson.GsonSerializer;
+import edu.jhuapl.ses.jsqrl.impl.gson.SerializerOptions;
+
+/**
+ * Serializer that saves files in the compact binary format described in {@link BinaryMetadataIO}
+ * instead of JSON. Binary files are considerably smaller than JSON files and much faster to write
+ * and read, but they are not human readable.
+ * <p>
+ * Loading is identical to {@link GsonSerializer}: either serializer loads files in either format,
+ * which is determined from the content of the file. Of the {@link SerializerOptions}, those that
+ * control compression, buffering and calling managers concurrently apply to this serializer; those
+ * that control the JSON layout, the character encoding and the index do not.
+ */
+public class BinarySerializer extends GsonSerializer {
+
+  public static BinarySerializer of() {
+    return of(SerializerOptions.of());
+  }
+
+  public static BinarySerializer of(SerializerOptions options) {
+    Preconditions.checkNotNull(options);
+
+    return new BinarySerializer(options);
+  }
+
+  protected BinarySerializer() {
+    this(SerializerOptions.of());
+  }
+
+  protected BinarySerializer(SerializerOptions options) {
+    super(options);
+  }
+
+  @Override
+  public Version getVersion() {
+    return BinaryMetadataIO.getFormatVersion();
+  }
+
+  @Override
+  protected void write(File file, Metadata metaMetadata) throws IOException {
+    try (OutputStream out = newOutputStream(file)) {
+      BinaryMetadataIO.write(out, metaMetadata);
+    }
+  }
+
+  @Override
+  protected void write(OutputStream out, Metadata metaMetadata) throws IOException {
+    try (OutputStream compressedStream = newOutputStream(out)) {
+      BinaryMetadataIO.write(compressedStream, metaMetadata);
+    }
+  }
+
+}
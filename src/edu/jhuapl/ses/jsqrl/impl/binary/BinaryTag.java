@@ -0,0 +1,143 @@
+package edu.jhuapl.ses.jsqrl.impl.binary;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import edu.jhuapl.ses.jsqrl.impl.gson.DataTypeInfo;
+
+/**
+ * One-byte tags that precede each value in the binary format. Apart from {@link #PROVIDED_OBJECT},
+ * each tag stands for one {@link DataTypeInfo}, so values are classified exactly as they are by the
+ * JSON format. The codes are written to files, so they must never be changed or reused; new tags
+ * must be given new codes.
+ */
+enum BinaryTag {
+  NULL(0, DataTypeInfo.NULL), //
+
+  ////////////////////////////////////////////////////////////////
+  // Metadata-specific types.
+  METADATA_KEY(1, DataTypeInfo.METADATA_KEY), //
+  METADATA(2, DataTypeInfo.METADATA), //
+  VERSION(3, DataTypeInfo.VERSION), //
+  PROXIED_OBJECT(4, DataTypeInfo.PROXIED_OBJECT), //
+  // An object of a type registered with the InstanceGetter, stored as its proxy type key followed
+  // by its metadata. The JSON format writes such objects as Metadata tagged with the key.
+  PROVIDED_OBJECT(5, null), //
+  ////////////////////////////////////////////////////////////////
+
+  ////////////////////////////////////////////////////////////////
+  // Collection types.
+  LIST(10, DataTypeInfo.LIST), //
+  SORTED_MAP(11, DataTypeInfo.SORTED_MAP), //
+  MAP(12, DataTypeInfo.MAP), //
+  SORTED_SET(13, DataTypeInfo.SORTED_SET), //
+  SET(14, DataTypeInfo.SET), //
+  ITERABLE(15, DataTypeInfo.ITERABLE), //
+  ////////////////////////////////////////////////////////////////
+
+  ////////////////////////////////////////////////////////////////
+  // Common object types.
+  STRING(20, DataTypeInfo.STRING), //
+  CHARACTER_OBJECT(21, DataTypeInfo.CHARACTER_OBJECT), //
+  BOOLEAN_OBJECT(22, DataTypeInfo.BOOLEAN_OBJECT), //
+  DOUBLE_OBJECT(23, DataTypeInfo.DOUBLE_OBJECT), //
+  FLOAT_OBJECT(24, DataTypeInfo.FLOAT_OBJECT), //
+  INTEGER_OBJECT(25, DataTypeInfo.INTEGER_OBJECT), //
+  LONG_OBJECT(26, DataTypeInfo.LONG_OBJECT), //
+  SHORT_OBJECT(27, DataTypeInfo.SHORT_OBJECT), //
+  BYTE_OBJECT(28, DataTypeInfo.BYTE_OBJECT), //
+  DATE_OBJECT(29, DataTypeInfo.DATE_OBJECT), //
+  ////////////////////////////////////////////////////////////////
+
+  ////////////////////////////////////////////////////////////////
+  // Arrays of common object types.
+  STRING_ARRAY(40, DataTypeInfo.STRING_ARRAY), //
+  CHARACTER_OBJECT_ARRAY(41, DataTypeInfo.CHARACTER_OBJECT_ARRAY), //
+  BOOLEAN_OBJECT_ARRAY(42, DataTypeInfo.BOOLEAN_OBJECT_ARRAY), //
+  DOUBLE_OBJECT_ARRAY(43, DataTypeInfo.DOUBLE_OBJECT_ARRAY), //
+  FLOAT_OBJECT_ARRAY(44, DataTypeInfo.FLOAT_OBJECT_ARRAY), //
+  INTEGER_OBJECT_ARRAY(45, DataTypeInfo.INTEGER_OBJECT_ARRAY), //
+  LONG_OBJECT_ARRAY(46, DataTypeInfo.LONG_OBJECT_ARRAY), //
+  SHORT_OBJECT_ARRAY(47, DataTypeInfo.SHORT_OBJECT_ARRAY), //
+  BYTE_OBJECT_ARRAY(48, DataTypeInfo.BYTE_OBJECT_ARRAY), //
+  DATE_ARRAY(49, DataTypeInfo.DATE_ARRAY), //
+  METADATA_ARRAY(50, DataTypeInfo.METADATA_ARRAY), //
+  ////////////////////////////////////////////////////////////////
+
+  ////////////////////////////////////////////////////////////////
+  // Arrays of primitive types.
+  CHARACTER_ARRAY(60, DataTypeInfo.CHARACTER_ARRAY), //
+  BOOLEAN_ARRAY(61, DataTypeInfo.BOOLEAN_ARRAY), //
+  DOUBLE_ARRAY(62, DataTypeInfo.DOUBLE_ARRAY), //
+  FLOAT_ARRAY(63, DataTypeInfo.FLOAT_ARRAY), //
+  INTEGER_ARRAY(64, DataTypeInfo.INTEGER_ARRAY), //
+  LONG_ARRAY(65, DataTypeInfo.LONG_ARRAY), //
+  SHORT_ARRAY(66, DataTypeInfo.SHORT_ARRAY), //
+  BYTE_ARRAY(67, DataTypeInfo.BYTE_ARRAY), //
+  ////////////////////////////////////////////////////////////////
+
+  CLASS(80, DataTypeInfo.CLASS), //
+  SERIALIZABLE(81, DataTypeInfo.SERIALIZABLE), //
+  ;
+
+  private static final BinaryTag[] BY_CODE = new BinaryTag[256];
+  private static final Map<DataTypeInfo, BinaryTag> BY_TYPE_INFO =
+      new EnumMap<>(DataTypeInfo.class);
+
+  static {
+    for (BinaryTag tag : values()) {
+      BY_CODE[tag.code] = tag;
+      if (tag.typeInfo != null) {
+        BY_TYPE_INFO.put(tag.typeInfo, tag);
+      }
+    }
+  }
+
+  /**
+   * @param code the code read from a file
+   * @return the tag with the supplied code
+   * @throws IllegalArgumentException if no tag has the supplied code
+   */
+  static BinaryTag of(int code) {
+    BinaryTag result = code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    if (result == null) {
+      throw new IllegalArgumentException("Cannot decode unknown binary type tag " + code);
+    }
+    return result;
+  }
+
+  /**
+   * @param typeInfo the type info of a value
+   * @return the tag for the type info
+   * @throws IllegalArgumentException if values with this type info cannot be written in the
+   *         binary format
+   */
+  static BinaryTag of(DataTypeInfo typeInfo) {
+    BinaryTag result = BY_TYPE_INFO.get(typeInfo);
+    if (result == null) {
+      throw new IllegalArgumentException(
+          "Cannot serialize type " + typeInfo.getTypeId() + " to binary format");
+    }
+    return result;
+  }
+
+  private final int code;
+  private final DataTypeInfo typeInfo;
+
+  private BinaryTag(int code, DataTypeInfo typeInfo) {
+    this.code = code;
+    this.typeInfo = typeInfo;
+  }
+
+  int getCode() {
+    return code;
+  }
+
+  /**
+   * @return the type info for this tag, or null for {@link #PROVIDED_OBJECT}
+   */
+  DataTypeInfo getTypeInfo() {
+    return typeInfo;
+  }
+
+}
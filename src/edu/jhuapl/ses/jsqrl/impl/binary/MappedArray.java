@@ -0,0 +1,67 @@
+package edu.jhuapl.ses.jsqrl.impl.binary;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import com.google.common.base.Preconditions;
+
+import edu.jhuapl.ses.jsqrl.impl.gson.PrimitiveArrayIO;
+
+/**
+ * An array of numbers in a {@link MappedMetadata} that has not necessarily been copied out of the
+ * memory-mapped file. The array is copied the first time it is requested, and the copy is retained.
+ */
+final class MappedArray {
+
+  private final ByteBuffer block;
+  private final Class<?> arrayType;
+  private volatile Object array;
+
+  MappedArray(ByteBuffer block, Class<?> arrayType) {
+    this.block = Preconditions.checkNotNull(block);
+    this.arrayType = Preconditions.checkNotNull(arrayType);
+    this.array = null;
+  }
+
+  Class<?> getArrayType() {
+    return arrayType;
+  }
+
+  int getLength() {
+    return block.remaining() / PrimitiveArrayIO.getElementSize(arrayType);
+  }
+
+  /**
+   * @return true if the array has already been copied onto the heap
+   */
+  boolean isCopied() {
+    return array != null;
+  }
+
+  /**
+   * @return the array, copying it from the file if this is the first time it is requested
+   */
+  Object getArray() {
+    Object result = array;
+    if (result == null) {
+      // Two threads may both copy the array; either copy is correct.
+      result = PrimitiveArrayIO.decode(block, arrayType);
+      array = result;
+    }
+
+    return result;
+  }
+
+  /**
+   * @return a read-only view of the elements in the file, which does not copy them
+   */
+  Buffer getView() {
+    return PrimitiveArrayIO.view(block, arrayType);
+  }
+
+  @Override
+  public String toString() {
+    return arrayType.getComponentType().getSimpleName() + "[" + getLength() + "] (mapped)";
+  }
+
+}
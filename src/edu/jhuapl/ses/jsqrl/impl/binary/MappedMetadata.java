@@ -0,0 +1,238 @@
+package edu.jhuapl.ses.jsqrl.impl.binary;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.Map;
+import java.util.Objects;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import edu.jhuapl.ses.jsqrl.api.Key;
+import edu.jhuapl.ses.jsqrl.api.Metadata;
+import edu.jhuapl.ses.jsqrl.api.Version;
+import edu.jhuapl.ses.jsqrl.impl.gson.PrimitiveArrayIO;
+
+/**
+ * Read-only Metadata loaded from a memory-mapped binary file (see
+ * {@link edu.jhuapl.ses.jsqrl.impl.gson.SerializerOptions#withMemoryMapping(boolean)}). Large
+ * arrays of numbers (double[], int[] etc.) are left in the file until they are used:
+ * <ul>
+ * <li>{@link #get(Key)} copies such an array onto the heap the first time it is called for its
+ * key, and returns the same copy thereafter;
+ * <li>{@link #getView(Metadata, Key)} returns a read-only {@link DoubleBuffer}, {@link IntBuffer}
+ * etc. that reads the elements directly from the file without copying them.
+ * </ul>
+ * All other values are decoded when the file is loaded, exactly as for files that are not mapped,
+ * as are Metadata that contain no large arrays.
+ * <p>
+ * The mapping remains valid until this Metadata and all views of it are no longer reachable, even
+ * after the file is closed. The file must not be modified or truncated while it is mapped; note in
+ * particular that on some platforms a mapped file cannot be replaced, so a session should be saved
+ * to a different file than the one from which it was loaded in this mode.
+ * <p>
+ * A MappedMetadata is equal to any Metadata that has the same version, keys and values.
+ */
+public final class MappedMetadata implements Metadata {
+
+  private static final Object NULL_OBJECT = new Object() {
+    @Override
+    public String toString() {
+      return "NULL";
+    }
+  };
+
+  /**
+   * Return a read-only view of the array of numbers associated with the supplied key, without
+   * copying it if it is still in a memory-mapped file. This may be used with any Metadata, so
+   * managers need not know whether their state was loaded from a mapped file.
+   *
+   * @param metadata the Metadata
+   * @param key the key, whose value must be a double[], float[], int[], long[], short[] or byte[]
+   * @return a {@link DoubleBuffer} for double[], an {@link IntBuffer} for int[] etc., or a
+   *         {@link ByteBuffer} for byte[], or null if the value is null
+   * @throws IllegalArgumentException if the metadata does not contain the key, or if the value is
+   *         not an array of one of the supported types
+   */
+  public static Buffer getView(Metadata metadata, Key<?> key) {
+    Preconditions.checkNotNull(metadata);
+    Preconditions.checkNotNull(key);
+
+    if (metadata instanceof MappedMetadata) {
+      Object value = ((MappedMetadata) metadata).getValue(key);
+      if (value instanceof MappedArray) {
+        return ((MappedArray) value).getView();
+      }
+    }
+
+    return wrap(metadata.get(key));
+  }
+
+  private static Buffer wrap(Object array) {
+    if (array == null) {
+      return null;
+    }
+    Preconditions.checkArgument(array.getClass().isArray()
+        && PrimitiveArrayIO.isSupported(array.getClass()), "Value is not an array of numbers");
+
+    if (array instanceof double[]) {
+      return DoubleBuffer.wrap((double[]) array).asReadOnlyBuffer();
+    } else if (array instanceof float[]) {
+      return FloatBuffer.wrap((float[]) array).asReadOnlyBuffer();
+    } else if (array instanceof int[]) {
+      return IntBuffer.wrap((int[]) array).asReadOnlyBuffer();
+    } else if (array instanceof long[]) {
+      return LongBuffer.wrap((long[]) array).asReadOnlyBuffer();
+    } else if (array instanceof short[]) {
+      return ShortBuffer.wrap((short[]) array).asReadOnlyBuffer();
+    } else {
+      return ByteBuffer.wrap((byte[]) array).asReadOnlyBuffer();
+    }
+  }
+
+  static Builder builder(Version version) {
+    return new Builder(version);
+  }
+
+  static final class Builder {
+    private final Version version;
+    private final ImmutableMap.Builder<Key<?>, Object> values;
+
+    private Builder(Version version) {
+      this.version = Preconditions.checkNotNull(version);
+      this.values = ImmutableMap.builder();
+    }
+
+    /**
+     * @param value the value, which may be a {@link MappedArray}
+     */
+    Builder put(Key<?> key, Object value) {
+      values.put(key, value != null ? value : NULL_OBJECT);
+      return this;
+    }
+
+    MappedMetadata build() {
+      return new MappedMetadata(version, values.build());
+    }
+
+  }
+
+  private final Version version;
+  private final ImmutableMap<Key<?>, Object> values;
+
+  private MappedMetadata(Version version, ImmutableMap<Key<?>, Object> values) {
+    this.version = version;
+    this.values = values;
+  }
+
+  @Override
+  public Version getVersion() {
+    return version;
+  }
+
+  @Override
+  public ImmutableList<Key<?>> getKeys() {
+    return values.keySet().asList();
+  }
+
+  @Override
+  public boolean hasKey(Key<?> key) {
+    Preconditions.checkNotNull(key);
+    return values.containsKey(key);
+  }
+
+  @Override
+  public <V> V get(Key<V> key) {
+    Object value = getValue(key);
+    if (value instanceof MappedArray) {
+      value = ((MappedArray) value).getArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    V result = (V) value;
+    return result;
+  }
+
+  /**
+   * @return true if the value associated with the key is an array of numbers that has not yet been
+   *         copied out of the mapped file
+   */
+  public boolean isMapped(Key<?> key) {
+    Object value = getValue(key);
+    return value instanceof MappedArray && !((MappedArray) value).isCopied();
+  }
+
+  /**
+   * Return the stored value without copying arrays out of the file.
+   */
+  private Object getValue(Key<?> key) {
+    Preconditions.checkNotNull(key);
+    Object value = values.get(key);
+    if (value == null) {
+      throw new IllegalArgumentException("MappedMetadata does not contain key " + key);
+    }
+
+    return value != NULL_OBJECT ? value : null;
+  }
+
+  /**
+   * Return this object, which is immutable. Arrays copied out of the file by {@link #get(Key)} are
+   * shared, as they are by copies of other immutable Metadata.
+   */
+  @Override
+  public MappedMetadata copy() {
+    return this;
+  }
+
+  @Override
+  public int hashCode() {
+    // Based only on information that does not require copying arrays out of the file. Other
+    // Metadata that contain arrays hash them by identity, so equal Metadata with arrays do not hash
+    // consistently in any case.
+    return Objects.hash(version, values.keySet());
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
+    if (!(other instanceof Metadata)) {
+      return false;
+    }
+
+    Metadata that = (Metadata) other;
+    if (!version.equals(that.getVersion())
+        || !values.keySet().equals(ImmutableSet.copyOf(that.getKeys()))) {
+      return false;
+    }
+
+    for (Map.Entry<Key<?>, Object> entry : values.entrySet()) {
+      // This compares arrays element by element, which copies them out of the file.
+      if (!Objects.deepEquals(get(entry.getKey()), that.get(entry.getKey()))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("(Metadata) version ");
+    builder.append(getVersion());
+    for (Map.Entry<Key<?>, Object> entry : values.entrySet()) {
+      builder.append("\n");
+      builder.append(entry.getKey() + " = " + entry.getValue());
+    }
+    return builder.toString();
+  }
+
+}
@@ -17,35 +17,45 @@ public class ClassIO implements JsonSerializer<Class<?>>, JsonDeserializer<Class
 
   private static final InstanceGetter instanceGetter = InstanceGetter.defaultInstanceGetter();
 
-  @Override
-  public JsonElement serialize(Class<?> src, Type typeOfSrc, JsonSerializationContext context) {
+  /**
+   * Return the identifier used to store the supplied class: the key of its proxy type if it has
+   * one, otherwise its {@link DataTypeInfo} type identifier if it has one, otherwise its name.
+   * 
+   * @param type the class
+   * @return the identifier
+   */
+  public static String encode(Class<?> type) {
     String typeId = null;
 
     try {
-      Key<?> key = instanceGetter.getKeyForType(src);
+      Key<?> key = instanceGetter.getKeyForType(type);
       typeId = key.getId();
     } catch (@SuppressWarnings("unused") Exception e) {
 
     }
 
     if (typeId == null) {
-      DataTypeInfo info = DataTypeInfo.of(src);
+      DataTypeInfo info = DataTypeInfo.of(type);
       if (info != DataTypeInfo.NULL) {
         typeId = info.getTypeId();
       }
     }
 
     if (typeId == null) {
-      typeId = src.getName();
+      typeId = type.getName();
     }
 
-    return new JsonPrimitive(typeId);
+    return typeId;
   }
 
-  @Override
-  public Class<?> deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context)
-      throws JsonParseException {
-    String typeId = json.getAsJsonPrimitive().getAsString();
+  /**
+   * Return the class identified by an identifier returned by {@link #encode(Class)}, or
+   * Object.class if the class cannot be found.
+   * 
+   * @param typeId the identifier
+   * @return the class
+   */
+  public static Class<?> decode(String typeId) {
     Class<?> result = null;
 
     try {
@@ -74,4 +84,15 @@ public class ClassIO implements JsonSerializer<Class<?>>, JsonDeserializer<Class
     return result;
   }
 
+  @Override
+  public JsonElement serialize(Class<?> src, Type typeOfSrc, JsonSerializationContext context) {
+    return new JsonPrimitive(encode(src));
+  }
+
+  @Override
+  public Class<?> deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context)
+      throws JsonParseException {
+    return decode(json.getAsJsonPrimitive().getAsString());
+  }
+
 }
@@ -0,0 +1,52 @@
+package edu.jhuapl.ses.jsqrl.impl.gson;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Service provider interface for compressing serialized files. Implementations are identified by
+ * the leading bytes ("magic number") of the data they produce, which is how
+ * {@link CompressionCodecs#decompress(InputStream)} determines how a file was written without the
+ * caller needing to know.
+ * <p>
+ * Implementations may be made available either by registering them directly with
+ * {@link CompressionCodecs#register(CompressionCodec)} or by listing them in a
+ * META-INF/services/edu.jhuapl.ses.jsqrl.impl.gson.CompressionCodec file, in which case they must
+ * have a public no-argument constructor.
+ */
+public interface CompressionCodec {
+
+  /**
+   * @return a short unique name for this codec, for example "gzip"
+   */
+  String getName();
+
+  /**
+   * Return the bytes with which every stream written by this codec begins. Codecs that do not
+   * compress (and therefore write plain content) return an empty array.
+   *
+   * @return the magic number, which must not be modified by the caller
+   */
+  byte[] getMagic();
+
+  /**
+   * Return a stream that compresses everything written to it and writes the result, starting with
+   * the magic number, to the supplied stream. Closing the returned stream must finish the
+   * compressed data and close the supplied stream.
+   *
+   * @param out the stream that receives the compressed bytes
+   * @return the compressing stream
+   */
+  OutputStream compress(OutputStream out) throws IOException;
+
+  /**
+   * Return a stream that decompresses the data read from the supplied stream, which is positioned
+   * at the start of the magic number. Closing the returned stream must close the supplied stream.
+   *
+   * @param in the stream of compressed bytes
+   * @return the decompressing stream
+   */
+  InputStream decompress(InputStream in) throws IOException;
+
+}
@@ -0,0 +1,301 @@
+package edu.jhuapl.ses.jsqrl.impl.gson;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Factories for the built-in {@link CompressionCodec} implementations, and the registry used to
+ * find the codec that wrote a file from its leading bytes.
+ * <p>
+ * The registry initially contains the built-in codecs followed by any codecs found using
+ * {@link ServiceLoader}. Additional codecs may be added with {@link #register(CompressionCodec)}.
+ * Codecs found using ServiceLoader that cannot be loaded or registered are skipped and logged.
+ */
+public final class CompressionCodecs {
+
+  private static final CompressionCodec NONE = new CompressionCodec() {
+
+    @Override
+    public String getName() {
+      return "none";
+    }
+
+    @Override
+    public byte[] getMagic() {
+      return new byte[0];
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) {
+      return out;
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+      return in;
+    }
+
+  };
+
+  private static final CompressionCodec GZIP = new CompressionCodec() {
+
+    // Defined by RFC 1952.
+    private final byte[] magic = new byte[] { (byte) 0x1f, (byte) 0x8b };
+
+    @Override
+    public String getName() {
+      return "gzip";
+    }
+
+    @Override
+    public byte[] getMagic() {
+      return magic;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+      return new GZIPOutputStream(out, BUFFER_SIZE);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+      return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+
+  };
+
+  private static final CompressionCodec DEFLATE = new CompressionCodec() {
+
+    // Raw deflate streams have no header of their own, so they are prefixed with this.
+    private final byte[] magic = new byte[] { 'J', 'S', 'Q', 'D' };
+
+    @Override
+    public String getName() {
+      return "deflate";
+    }
+
+    @Override
+    public byte[] getMagic() {
+      return magic;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+      out.write(magic);
+
+      Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            // DeflaterOutputStream only releases the Deflater if it created it.
+            deflater.end();
+          }
+        }
+      };
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+      byte[] header = new byte[magic.length];
+      if (in.readNBytes(header, 0, header.length) != header.length
+          || !Arrays.equals(header, magic)) {
+        throw new IOException("Stream was not written by the " + getName() + " codec");
+      }
+
+      Inflater inflater = new Inflater(true);
+      return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            // InflaterInputStream only releases the Inflater if it created it.
+            inflater.end();
+          }
+        }
+      };
+    }
+
+  };
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  /**
+   * Leading bytes of content that is not compressed, which no magic number may start with: the
+   * magic numbers of binary files (see {@link edu.jhuapl.ses.jsqrl.impl.binary.BinaryMetadataIO})
+   * and of journals (see {@link MetadataJournal}). JSON files start with an opening brace, possibly
+   * preceded by whitespace, which magic numbers may not start with either.
+   */
+  private static final ImmutableList<byte[]> UNCOMPRESSED_MAGICS = ImmutableList
+      .of(new byte[] { 'J', 'S', 'Q', 'B' }, new byte[] { 'J', 'S', 'Q', 'J' });
+
+  private static final Logger LOGGER = Logger.getLogger(CompressionCodecs.class.getName());
+
+  private static final Map<String, CompressionCodec> REGISTRY = createRegistry();
+
+  /**
+   * @return the codec that writes content without compressing it
+   */
+  public static CompressionCodec none() {
+    return NONE;
+  }
+
+  /**
+   * @return the codec that writes content in gzip format, which may also be read by external tools
+   */
+  public static CompressionCodec gzip() {
+    return GZIP;
+  }
+
+  /**
+   * @return the codec that writes content as a raw deflate stream preceded by a 4-byte magic
+   *         number. This is slightly smaller and cheaper than gzip, which adds a header and a CRC
+   */
+  public static CompressionCodec deflate() {
+    return DEFLATE;
+  }
+
+  /**
+   * Add a codec to the registry so that files it wrote will be recognized by
+   * {@link #decompress(InputStream)}.
+   *
+   * @param codec the codec to add
+   * @throws IllegalArgumentException if the codec does not have a magic number, if its magic
+   *         number could be the start of content that is not compressed, or if its name or magic
+   *         number conflicts with a codec that is already registered
+   */
+  public static void register(CompressionCodec codec) {
+    Preconditions.checkNotNull(codec);
+
+    synchronized (REGISTRY) {
+      add(REGISTRY, codec);
+    }
+  }
+
+  /**
+   * @return the registered codecs, in the order in which they were registered
+   */
+  public static ImmutableList<CompressionCodec> getCodecs() {
+    synchronized (REGISTRY) {
+      return ImmutableList.copyOf(REGISTRY.values());
+    }
+  }
+
+  /**
+   * Return a stream that reads the content of the supplied stream, decompressed by whichever
+   * registered codec's magic number matches its leading bytes. If none match, the content is
+   * assumed not to be compressed.
+   *
+   * @param in the stream, positioned at its start
+   * @return the decompressing stream, which closes the supplied stream when closed
+   */
+  public static InputStream decompress(InputStream in) throws IOException {
+    Preconditions.checkNotNull(in);
+
+    ImmutableList<CompressionCodec> codecs = getCodecs();
+
+    int maxLength = 0;
+    for (CompressionCodec codec : codecs) {
+      maxLength = Math.max(maxLength, codec.getMagic().length);
+    }
+
+    if (!in.markSupported()) {
+      in = new BufferedInputStream(in);
+    }
+
+    in.mark(maxLength);
+    byte[] header = in.readNBytes(maxLength);
+    in.reset();
+
+    for (CompressionCodec codec : codecs) {
+      byte[] magic = codec.getMagic();
+      if (magic.length > 0 && startsWith(header, magic)) {
+        return codec.decompress(in);
+      }
+    }
+
+    return in;
+  }
+
+  private static Map<String, CompressionCodec> createRegistry() {
+    Map<String, CompressionCodec> result = new LinkedHashMap<>();
+
+    add(result, GZIP);
+    add(result, DEFLATE);
+
+    // A provider that cannot be loaded or registered must not prevent this class from being
+    // initialized, which would make every codec unavailable.
+    Iterator<CompressionCodec> codecs = ServiceLoader.load(CompressionCodec.class).iterator();
+    while (true) {
+      CompressionCodec codec;
+      try {
+        if (!codecs.hasNext()) {
+          break;
+        }
+        codec = codecs.next();
+      } catch (ServiceConfigurationError e) {
+        LOGGER.log(Level.WARNING, "Unable to load compression codec", e);
+        continue;
+      }
+
+      try {
+        add(result, codec);
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Unable to register compression codec " + codec, e);
+      }
+    }
+
+    return result;
+  }
+
+  private static void add(Map<String, CompressionCodec> registry, CompressionCodec codec) {
+    String name = Preconditions.checkNotNull(codec.getName());
+    byte[] magic = Preconditions.checkNotNull(codec.getMagic());
+    Preconditions.checkArgument(magic.length > 0, "Codec %s has no magic number", name);
+    Preconditions.checkArgument(magic[0] != '{' && magic[0] != ' ' && magic[0] != '\t'
+        && magic[0] != '\n' && magic[0] != '\r',
+        "Magic number of codec %s could be the start of a JSON file", name);
+    for (byte[] uncompressedMagic : UNCOMPRESSED_MAGICS) {
+      Preconditions.checkArgument(
+          !startsWith(magic, uncompressedMagic) && !startsWith(uncompressedMagic, magic),
+          "Magic number of codec %s could be the start of a file that is not compressed", name);
+    }
+    Preconditions.checkArgument(!registry.containsKey(name), "Duplicate codec name %s", name);
+
+    for (CompressionCodec other : registry.values()) {
+      byte[] otherMagic = other.getMagic();
+      Preconditions.checkArgument(!startsWith(magic, otherMagic) && !startsWith(otherMagic, magic),
+          "Magic number of codec %s is ambiguous with that of codec %s", name, other.getName());
+    }
+
+    registry.put(name, codec);
+  }
+
+  private static boolean startsWith(byte[] bytes, byte[] prefix) {
+    return bytes.length >= prefix.length
+        && Arrays.equals(bytes, 0, prefix.length, prefix, 0, prefix.length);
+  }
+
+}
@@ -23,8 +23,12 @@ import edu.jhuapl.ses.jsqrl.impl.Utilities;
  * true even if the particular enumerated items are not explicitly referenced.
  * 
  * This enumeration must be kept consistent with the object types supported by the metadata package.
+ * <p>
+ * This enumeration is public so that other formats (see
+ * {@link edu.jhuapl.ses.jsqrl.impl.binary.BinarySerializer}) classify objects exactly the way the
+ * JSON format does.
  */
-enum DataTypeInfo {
+public enum DataTypeInfo {
   ////////////////////////////////////////////////////////////////
   // Metadata-specific types.
   METADATA_KEY("Key", Key.class, new TypeToken<Key<?>>() {}.getType()), //
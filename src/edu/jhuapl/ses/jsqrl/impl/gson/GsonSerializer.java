@@ -1,30 +1,80 @@
 package edu.jhuapl.ses.jsqrl.impl.gson;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.CharSource;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.FileWriteMode;
+import com.google.common.io.Files;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
+import edu.jhuapl.ses.jsqrl.api.ChangeAwareMetadataManager;
 import edu.jhuapl.ses.jsqrl.api.Key;
 import edu.jhuapl.ses.jsqrl.api.Metadata;
 import edu.jhuapl.ses.jsqrl.api.MetadataManager;
@@ -33,9 +83,17 @@ import edu.jhuapl.ses.jsqrl.api.Serializer;
 import edu.jhuapl.ses.jsqrl.api.StorableAsMetadata;
 import edu.jhuapl.ses.jsqrl.api.Version;
 import edu.jhuapl.ses.jsqrl.impl.InstanceGetter;
+import edu.jhuapl.ses.jsqrl.impl.ColumnarMetadataList;
 import edu.jhuapl.ses.jsqrl.impl.SettableMetadata;
 import edu.jhuapl.ses.jsqrl.impl.EmptyMetadata;
+import edu.jhuapl.ses.jsqrl.impl.EncodedFormCache;
+import edu.jhuapl.ses.jsqrl.impl.FixedMetadata;
+import edu.jhuapl.ses.jsqrl.impl.MetadataDiff;
 import edu.jhuapl.ses.jsqrl.impl.MetadataManagerCollection;
+import edu.jhuapl.ses.jsqrl.impl.Utilities;
+import edu.jhuapl.ses.jsqrl.impl.binary.BinaryMetadataIO;
+import edu.jhuapl.ses.jsqrl.impl.binary.BinarySerializer;
+import edu.jhuapl.ses.jsqrl.impl.binary.MappedMetadata;
 import edu.jhuapl.ses.jsqrl.impl.gson.GsonElement.ElementIO;
 
 public class GsonSerializer implements Serializer {
@@ -43,6 +101,34 @@ public class GsonSerializer implements Serializer {
   // Release notes are now in the package-info file.
 
   // Encapsulation versions.
+  // This version may write a list of Metadata that all have the same keys, whose values are
+  // strings, booleans, characters or numbers of the same type for each key, column by column (see
+  // SerializerOptions.withColumns): the values of each key are written as one array, so that
+  // numbers are written as blocks (see version 5). Such lists are read as ColumnarMetadataLists,
+  // from which columns may be obtained without creating the Metadata in the list.
+  private static final Version SERIALIZER_VERSION_9 = Version.of(9, 0);
+
+  // This version writes the keys of a collection or map of Metadata that all have the same keys
+  // once, in the header of the collection or map, followed by the values of each Metadata as an
+  // array, instead of repeating the keys in every Metadata.
+  private static final Version SERIALIZER_VERSION_8 = Version.of(8, 0);
+
+  // This version writes a Metadata or proxied object that occurs more than once within the same
+  // top-level value in full only once. Later occurrences are written as numbers that refer back to
+  // the first, and are restored as the same instance. This also allows cyclic references.
+  private static final Version SERIALIZER_VERSION_7 = Version.of(7, 0);
+
+  // This version may write a dictionary of the field names, type identifiers, versions and key
+  // identifiers at the start of the file, after which each of these strings is written as a
+  // reference to the dictionary (see SerializerOptions.withStringDictionary). Files without a
+  // dictionary are the same as in version 5.
+  private static final Version SERIALIZER_VERSION_6 = Version.of(6, 0);
+
+  // This version writes arrays of primitive numbers (double[], int[] etc.) as base64-encoded blocks
+  // of little-endian bytes, which are copied to and from the arrays in bulk, instead of as arrays
+  // of decimal numbers. Arrays in either form are read by all versions from 2 on.
+  private static final Version SERIALIZER_VERSION_5 = Version.of(5, 0);
+
   // This version supports serializing proxy class metadata using the same format used
   // by standard Metadata (as in the Metadata interface). Instead of the key "Metadata",
   // the name of the type serves as the key in the output file format. Previous versions used a
@@ -62,19 +148,61 @@ public class GsonSerializer implements Serializer {
   // Initial version.
   private static final Version SERIALIZER_VERSION_1 = Version.of(1, 0);
 
+  // Maximum total length, in characters, of the encodings of immutable Metadata kept by each
+  // instance to be copied when the same Metadata are written again.
+  private static final long ENCODED_FORM_CACHE_LENGTH = 64 * 1024 * 1024;
+
+  // Keys of the outermost Metadata of a patch file written by savePatch: the hash of the file
+  // against which the patch was made, and the representation of the MetadataDiff.
+  private static final Key<String> PATCH_BASE_KEY = Key.of("patchBase");
+  private static final Key<Metadata> PATCH_DIFF_KEY = Key.of("patch");
+
+  // Inserted between the name of a file and a random number to name the temporary file written
+  // before it is replaced.
+  private static final String TEMPORARY_FILE_INFIX = ".saving";
+
+  private static final ExecutorService SAVE_EXECUTOR = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setNameFormat("GsonSerializer-save-%d").setDaemon(true).build());
+
   private final MetadataManagerCollection managerCollection;
+  private final SerializerOptions options;
+  private final Map<File, MetadataJournal> journals;
+  private final Map<File, CompletableFuture<Void>> pendingWrites;
+  private final Map<String, StoredMetadata> storedMetadata;
+  private final Map<String, BlockHash> blockHashes;
+  private final EncodedFormCache<MetadataStreamIO.EncodedForm> encodedForms;
 
   public static GsonSerializer of() {
-    return new GsonSerializer();
+    return of(SerializerOptions.of());
+  }
+
+  public static GsonSerializer of(SerializerOptions options) {
+    Preconditions.checkNotNull(options);
+
+    return new GsonSerializer(options);
   }
 
   protected GsonSerializer() {
+    this(SerializerOptions.of());
+  }
+
+  protected GsonSerializer(SerializerOptions options) {
     this.managerCollection = MetadataManagerCollection.of();
+    this.options = options;
+    this.journals = new ConcurrentHashMap<>();
+    this.pendingWrites = new ConcurrentHashMap<>();
+    this.storedMetadata = new ConcurrentHashMap<>();
+    this.blockHashes = new ConcurrentHashMap<>();
+    this.encodedForms = MetadataStreamIO.createEncodedFormCache(ENCODED_FORM_CACHE_LENGTH);
+  }
+
+  public SerializerOptions getOptions() {
+    return options;
   }
 
   @Override
   public Version getVersion() {
-    return SERIALIZER_VERSION_4;
+    return SERIALIZER_VERSION_9;
   }
 
   @Override
@@ -82,424 +210,2816 @@ public class GsonSerializer implements Serializer {
     managerCollection.add(key, manager);
   }
 
+  @Override
+  public void register(Key<? extends Metadata> key, MetadataManager manager,
+      Iterable<? extends Key<? extends Metadata>> dependencies) {
+    managerCollection.add(key, manager, dependencies);
+  }
+
   @Override
   public void deregister(Key<? extends Metadata> key) {
     managerCollection.remove(key);
+    storedMetadata.remove(key.getId());
+    blockHashes.remove(key.getId());
   }
 
   @Override
   public void load(File file) throws IOException {
     Preconditions.checkNotNull(file);
 
-    Version fileVersion = loadVersion(file);
+    loadSelected(file, getRegisteredKeyIds());
+  }
+
+  /**
+   * Load only the metadata associated with the supplied keys, and call only the retrieve methods
+   * of the managers registered with those keys. Keys that are not registered are ignored. For
+   * files written by serializer version 3 or later, the content of the file associated with other
+   * keys is skipped without being decoded.
+   * 
+   * @param file the file to load
+   * @param keys the keys to load
+   */
+  public void load(File file, Set<Key<? extends Metadata>> keys) throws IOException {
+    Preconditions.checkNotNull(file);
+    Preconditions.checkNotNull(keys);
+
+    Set<String> keyIds = getRegisteredKeyIds();
+    keyIds.retainAll(keys.stream().map(Key::getId).collect(Collectors.toSet()));
+
+    loadSelected(file, keyIds);
+  }
 
-    if (SERIALIZER_VERSION_3.compareTo(fileVersion) > 0) {
-      loadBeforeV3(file);
+  private void loadSelected(File file, Set<String> keyIds) throws IOException {
+    Metadata indexedSource = loadIndexed(file, keyIds);
+    if (indexedSource != null) {
+      retrieveLoaded(indexedSource, ImmutableMap.of());
       return;
     }
-    Gson gson = configureGson(fileVersion);
 
-    try (JsonReader reader = gson.newJsonReader(new FileReader(file))) {
-      Metadata source = gson.fromJson(reader, DataTypeInfo.METADATA.getType());
-      retrieveInSingleThreadContext(source);
+    Map<String, HashCode> hashes = new HashMap<>();
+    Metadata source = read(file, keyIds::contains, hashes);
+    retrieveLoaded(source, hashes);
+  }
+
+  /**
+   * Call the managers' retrieve methods with metadata that were loaded. With the incremental reload
+   * option (see {@link SerializerOptions#withIncrementalReload(boolean)}), the
+   * {@link ChangeAwareMetadataManager}s whose remembered hashes match those of the loaded metadata
+   * are skipped, unless they depend on managers that are called, and the hashes of the loaded
+   * metadata are remembered.
+   *
+   * @param loadedHashes the hashes of the encoded loaded metadata that are already known, such as
+   *        those recorded in segmented files and journals, by key id. The loaded metadata of
+   *        ChangeAwareMetadataManagers whose hashes are not known are encoded to hash them
+   */
+  private void retrieveLoaded(Metadata source, Map<String, HashCode> loadedHashes)
+      throws IOException {
+    // Hashes are only comparable between encodings of the same version.
+    if (!options.isIncrementalReload() || !source.getVersion().equals(getVersion())) {
+      retrieve(source);
+      return;
+    }
+
+    SettableMetadata changedSource = SettableMetadata.of(source.getVersion());
+    Map<String, HashCode> hashes = new HashMap<>();
+    // Dependencies are registered before their dependents, so by the time a manager is reached,
+    // it is known whether any manager it depends on, directly or not, is to be called.
+    Set<Key<? extends Metadata>> changedKeys = new HashSet<>();
+    for (Key<? extends Metadata> key : managerCollection.getKeys()) {
+      boolean changed = false;
+      for (Key<? extends Metadata> dependency : managerCollection.getDependencies(key)) {
+        changed |= changedKeys.contains(dependency);
+      }
+
+      if (source.hasKey(key) && source.get(key) != null) {
+        // The state of other managers could only be compared by calling their store methods and
+        // encoding what they return, which costs about as much as calling their retrieve methods.
+        if (Utilities.asChangeAware(managerCollection.getManager(key)) != null) {
+          HashCode hash = loadedHashes.get(key.getId());
+          if (hash == null) {
+            hash = SegmentManifest.hash(encodeSegment(source, key));
+          }
+          hashes.put(key.getId(), hash);
+          changed = changed || !hash.equals(getRememberedHash(key));
+        } else {
+          changed = true;
+        }
+
+        if (changed) {
+          changedSource.put(Key.of(key.getId()), source.get(key));
+        }
+      }
+
+      if (changed) {
+        changedKeys.add(key);
+      }
     }
 
+    retrieve(changedSource);
+
+    // Remembered with the modification counts the managers have now that they hold the metadata.
+    for (Map.Entry<String, HashCode> entry : hashes.entrySet()) {
+      rememberHash(Key.of(entry.getKey()), entry.getValue());
+    }
   }
 
-  @Override
-  public void save(File file) throws IOException {
-    Preconditions.checkNotNull(file);
+  /**
+   * @return the hash of the encoded metadata the {@link ChangeAwareMetadataManager} associated with
+   *         the key was last known to hold, if its modification count has not changed since, or
+   *         null
+   */
+  private HashCode getRememberedHash(Key<? extends Metadata> key) {
+    MetadataManager manager = managerCollection.getManager(key);
+    ChangeAwareMetadataManager changeAwareManager = Utilities.asChangeAware(manager);
+    BlockHash blockHash = blockHashes.get(key.getId());
+    if (changeAwareManager != null && blockHash != null && blockHash.manager == manager
+        && blockHash.modificationCount == changeAwareManager.getModificationCount()) {
+      return blockHash.hash;
+    }
 
-    File dir = file.getParentFile();
-    if (!dir.exists()) {
-      dir.mkdirs();
+    return null;
+  }
+
+  /**
+   * With the incremental reload option, remember the hashes of the encoded metadata just saved from
+   * {@link ChangeAwareMetadataManager}s, with the modification counts they had when they stored
+   * them.
+   */
+  private void rememberSavedHashes(Metadata metaMetadata) throws IOException {
+    if (!options.isIncrementalReload()) {
+      return;
+    }
+
+    for (Key<?> key : metaMetadata.getKeys()) {
+      StoredMetadata stored = storedMetadata.get(key.getId());
+      if (stored != null && stored.metadata == metaMetadata.get(key)) {
+        blockHashes.put(key.getId(), new BlockHash(stored.manager, stored.modificationCount,
+            SegmentManifest.hash(encodeSegment(metaMetadata, key))));
+      }
+    }
+  }
+
+  /**
+   * Remember the hash of the encoded metadata loaded into the manager associated with the key, if
+   * it is a {@link ChangeAwareMetadataManager}, with its current modification count. The hashes of
+   * other managers are never used, as their state may change at any time.
+   */
+  private void rememberHash(Key<? extends Metadata> key, HashCode hash) {
+    MetadataManager manager = managerCollection.getManager(key);
+    ChangeAwareMetadataManager changeAwareManager = Utilities.asChangeAware(manager);
+    if (changeAwareManager != null) {
+      blockHashes.put(key.getId(),
+          new BlockHash(manager, changeAwareManager.getModificationCount(), hash));
+    } else {
+      blockHashes.remove(key.getId());
     }
-    save(file, getVersion());
   }
 
-  private Version loadVersion(File file) throws IOException {
+  /**
+   * Read all the metadata in the supplied file, in any format and version this serializer can
+   * load, without calling any manager.
+   * 
+   * @param file the file to read
+   * @return the outermost Metadata, whose values are the metadata of the managers
+   */
+  Metadata read(File file) throws IOException {
     Preconditions.checkNotNull(file);
 
-    Gson gson = createGsonBuilder().create();
-    try (JsonReader jsonReader = gson.newJsonReader(new FileReader(file))) {
-      jsonReader.beginObject();
+    return read(file, keyId -> true, null);
+  }
 
-      String name = jsonReader.nextName();
-      if (!name.equals(DataTypeInfo.VERSION.getTypeId())) {
-        throw new IOException("Invalid Metadata file format");
-      }
+  /**
+   * @param hashes map to which the hashes of the encoded top-level values are added by key id, if
+   *        the file records them, or null
+   */
+  private Metadata read(File file, Predicate<String> keyFilter, Map<String, HashCode> hashes)
+      throws IOException {
+    if (SegmentManifest.isManifest(file)) {
+      return readSegments(file, keyFilter, hashes);
+    }
 
-      String versionString = jsonReader.nextString();
+    if (MetadataJournal.isJournal(file)) {
+      return MetadataJournal.read(file, keyFilter, hashes,
+          (keyId, content) -> readSegment(content, file, keyId));
+    }
 
-      return Version.of(versionString);
+    if (options.isMemoryMapped()) {
+      Metadata mappedSource = BinaryMetadataIO.readMapped(file, keyFilter);
+      if (mappedSource != null) {
+        return mappedSource;
+      }
     }
 
+    try (InputStream in = newInputStream(file)) {
+      return read(in, file, keyFilter);
+    }
   }
 
-  private void loadBeforeV3(File file) throws IOException {
-    Preconditions.checkNotNull(file);
+  /**
+   * @param in the stream, already decompressed
+   * @param file the file from which the stream is read, which is used only in messages
+   */
+  private Metadata read(InputStream in, File file, Predicate<String> keyFilter)
+      throws IOException {
+    // Files written by BinarySerializer are recognized by their magic number, so either format
+    // may be loaded by any serializer.
+    if (BinaryMetadataIO.isBinary(in)) {
+      return BinaryMetadataIO.read(in, keyFilter);
+    } else {
+      return loadJson(in, file, keyFilter);
+    }
+  }
 
-    SettableMetadata source = SettableMetadata.of(Version.of(0, 0));
-    Gson versionOnlyGson = configureGsonToReadVersionOnly();
-    try (JsonReader reader = versionOnlyGson.newJsonReader(new FileReader(file))) {
-      Version fileVersion = null;
-      try {
-        fileVersion = versionOnlyGson.fromJson(reader, DataTypeInfo.VERSION.getType());
-      } catch (Exception e) {
-        throw new IOException("Metadata reader version " + getVersion()
-            + " cannot read metadata format of file " + file, e);
+  /**
+   * Read the segments of a segmented file (see {@link SerializerOptions#withSegments(boolean)})
+   * that hold the selected top-level values. Each segment is checked against its hash before it is
+   * decoded.
+   *
+   * @param hashes map to which the hash of each segment read is added by key id, or null
+   */
+  private Metadata readSegments(File file, Predicate<String> keyFilter,
+      Map<String, HashCode> hashes) throws IOException {
+    SegmentManifest manifest = SegmentManifest.read(file);
+    ByteSource data = Files.asByteSource(manifest.getDataFile(file));
+
+    SettableMetadata result = SettableMetadata.of(manifest.getVersion());
+    for (String keyId : manifest.getKeyIds()) {
+      if (!keyFilter.test(keyId)) {
+        continue;
       }
 
-      Gson gson = configureGson(fileVersion);
+      SegmentManifest.Segment segment = manifest.getSegment(keyId);
+      byte[] content = data.slice(segment.getOffset(), segment.getLength()).read();
+      if (content.length != segment.getLength()
+          || !SegmentManifest.hash(content).equals(segment.getHash())) {
+        throw new IOException("Segment " + keyId + " of file " + file + " is corrupt");
+      }
+      if (hashes != null) {
+        hashes.put(keyId, segment.getHash());
+      }
 
-      Map<String, Metadata> metadataMap = gson.fromJson(reader, DataTypeInfo.MAP.getType());
-      for (Entry<String, Metadata> entry : metadataMap.entrySet()) {
-        source.put(Key.of(entry.getKey()), entry.getValue());
+      Metadata segmentSource = readSegment(content, file, keyId);
+      Key<Object> key = Key.of(keyId);
+      if (segmentSource.hasKey(key)) {
+        result.put(key, segmentSource.get(key));
       }
     }
-    retrieveInSingleThreadContext(source);
+
+    return result;
   }
 
-  private void save(File file, Version version) throws IOException {
-    if (version.equals(SERIALIZER_VERSION_1)) {
-      saveV1(file);
-      return;
-    } else if (version.equals(SERIALIZER_VERSION_2)) {
-      saveV2(file);
-      return;
+  /**
+   * Decode one segment of a segmented file or journal, which is encoded exactly as a whole file
+   * holding only the value associated with the supplied key.
+   */
+  private Metadata readSegment(byte[] content, File file, String keyId) throws IOException {
+    try (InputStream in = newInputStream(new ByteArrayInputStream(content))) {
+      return read(in, file, keyId::equals);
     }
+  }
 
-    Gson gson = configureGson(version);
-    try (FileWriter fileWriter = new FileWriter(file)) {
-      try (JsonWriter jsonWriter = gson.newJsonWriter(fileWriter)) {
+  private Metadata loadJson(InputStream in, File file, Predicate<String> keyFilter)
+      throws IOException {
+    // The file is opened and parsed exactly once: the version header is read inline, and then
+    // the same reader is handed to the decoder for that version.
+    Gson gson = createGsonBuilder().create();
+    JsonReader reader = gson.newJsonReader(newReader(in));
 
-        SettableMetadata metaMetadata = SettableMetadata.of(version);
-        Map<String, Metadata> metadataMap = new LinkedHashMap<>();
-        for (Key<? extends Metadata> key : managerCollection.getKeys()) {
-          MetadataManager manager = managerCollection.getManager(key);
-          Metadata metadata = manager.store();
-          if (!EmptyMetadata.instance().equals(metadata)) {
-            metaMetadata.put(Key.of(key.getId()), metadata);
-            metadataMap.put(key.getId(), metadata);
-          }
-        }
+    // Files before version 3 have two consecutive objects at the top level, which requires
+    // leniency.
+    reader.setLenient(true);
 
-        gson.toJson(metaMetadata, DataTypeInfo.METADATA.getType(), jsonWriter);
+    Version fileVersion = readVersion(reader, file);
 
-        fileWriter.write('\n');
-      }
+    Metadata result = SERIALIZER_VERSION_3.compareTo(fileVersion) > 0
+        ? loadBeforeV3(reader, fileVersion, keyFilter)
+        : new MetadataStreamIO(configureGson(fileVersion)).readRemainder(reader, fileVersion,
+            keyFilter);
+
+    // Anything else, such as the next of several values written one after another, means this is
+    // not a single metadata file.
+    if (reader.peek() != JsonToken.END_DOCUMENT) {
+      throw new IOException("File " + file + " has unexpected content after its metadata");
     }
+
+    return result;
   }
 
-  private void saveV2(File file) throws IOException {
-    Preconditions.checkNotNull(file);
-    Gson gson = configureGson(SERIALIZER_VERSION_2);
-    try (FileWriter fileWriter = new FileWriter(file)) {
-      try (JsonWriter jsonWriter = gson.newJsonWriter(fileWriter)) {
-        Map<String, Metadata> metadataMap = new HashMap<>();
-        for (Key<? extends Metadata> key : managerCollection.getKeys()) {
-          MetadataManager manager = managerCollection.getManager(key);
-          Metadata metadata = manager.store();
-          if (!EmptyMetadata.instance().equals(metadata)) {
-            metadataMap.put(key.getId(), metadata);
-          }
-        }
-        gson.toJson(SERIALIZER_VERSION_2, DataTypeInfo.VERSION.getType(), jsonWriter);
-        jsonWriter.flush();
-        fileWriter.write('\n');
-        gson.toJson(metadataMap, DataTypeInfo.MAP.getType(), jsonWriter);
-        jsonWriter.flush();
-        fileWriter.write('\n');
-      }
+  /**
+   * Load the supplied keys by reading only their blocks, located using the file's index.
+   * 
+   * @return the loaded metadata, or null if the file has no usable index, or if the keys are all
+   *         the keys in the file, in which case it is faster to read the whole file
+   */
+  private Metadata loadIndexed(File file, Set<String> keyIds) {
+    File indexFile = MetadataIndex.indexFileFor(file);
+    if (!indexFile.isFile()) {
+      return null;
     }
-  }
 
-  private void saveV1(File file) throws IOException {
-    Preconditions.checkNotNull(file);
+    try {
+      MetadataIndex index = MetadataIndex.read(indexFile);
+      if (!index.isCurrent(file)) {
+        return null;
+      }
 
-    Gson gson = configureGson(SERIALIZER_VERSION_1);
-    try (FileWriter fileWriter = new FileWriter(file)) {
-      try (JsonWriter jsonWriter = gson.newJsonWriter(fileWriter)) {
-        Map<String, Metadata> metadataMap = new HashMap<>();
-        for (Key<? extends Metadata> key : managerCollection.getKeys()) {
-          MetadataManager manager = managerCollection.getManager(key);
-          Metadata metadata = manager.store();
-          if (!EmptyMetadata.instance().equals(metadata)) {
-            metadataMap.put(key.getId(), metadata);
+      Set<String> indexedKeyIds = new LinkedHashSet<>(index.getKeyIds());
+      indexedKeyIds.retainAll(keyIds);
+      if (indexedKeyIds.size() == index.getKeyIds().size()) {
+        return null;
+      }
+
+      Gson gson = configureGson(index.getVersion());
+      MetadataStreamIO metadataIo = new MetadataStreamIO(gson, index.getDictionary());
+      ByteSource bytes = Files.asByteSource(file);
+
+      SettableMetadata source = SettableMetadata.of(index.getVersion());
+      for (String keyId : indexedKeyIds) {
+        int numberOfKeys = source.getKeys().size();
+
+        MetadataIndex.Block block = index.getBlock(keyId);
+        ByteSource blockBytes = bytes.slice(block.getOffset(), block.getLength());
+        try (JsonReader reader = gson.newJsonReader(openBlock(blockBytes, index.getCharset()))) {
+          metadataIo.readValues(reader, index.getValueTypeId(), index.getCommonVersion(), source);
+          if (reader.peek() != JsonToken.END_DOCUMENT) {
+            return null;
           }
         }
-        gson.toJson(SERIALIZER_VERSION_1, DataTypeInfo.VERSION.getType(), jsonWriter);
-        jsonWriter.flush();
-        fileWriter.write('\n');
-        gson.toJson(metadataMap, DataTypeInfo.MAP.getType(), jsonWriter);
-        jsonWriter.flush();
-        fileWriter.write('\n');
+
+        // Guard against an index that matches the file's size and time but not its content.
+        if (source.getKeys().size() != numberOfKeys + 1 || !source.hasKey(Key.of(keyId))) {
+          return null;
+        }
       }
+
+      return source;
+    } catch (IOException | RuntimeException e) {
+      // The index is unreadable or does not match the file, so fall back to scanning the file.
+      return null;
     }
   }
 
-  private void retrieveInSingleThreadContext(Metadata source) {
-    for (Key<? extends Metadata> key : managerCollection.getKeys()) {
-      if (source.hasKey(key)) {
-        Metadata element = source.get(key);
-        if (element != null) {
-          managerCollection.getManager(key).retrieve(element);
+  /**
+   * Open a reader for a block, which contains a single top-level key and value, possibly preceded
+   * by the separator from the previous value. The reader presents it as a complete object.
+   */
+  private static Reader openBlock(ByteSource blockBytes, Charset charset) throws IOException {
+    CharSource entry = new CharSource() {
+
+      @Override
+      public Reader openStream() throws IOException {
+        PushbackReader reader = new PushbackReader(blockBytes.asCharSource(charset).openStream());
+        int c;
+        do {
+          c = reader.read();
+        } while (c == ',' || Character.isWhitespace(c));
+        if (c != -1) {
+          reader.unread(c);
         }
+        return reader;
       }
-    }
-  }
 
-  private static Gson configureGsonToReadVersionOnly() {
-    GsonBuilder builder = new GsonBuilder();
-    builder.registerTypeAdapter(DataTypeInfo.VERSION.getType(), new GsonVersionIO());
-    return builder.create();
+    };
+
+    return CharSource.concat(CharSource.wrap("{"), entry, CharSource.wrap("}")).openStream();
   }
 
-  private static Gson configureGson(Version serializerVersion) {
-    if (SERIALIZER_VERSION_1.equals(serializerVersion)) {
-      return configureGsonV1();
+  private Set<String> getRegisteredKeyIds() {
+    Set<String> result = new HashSet<>();
+    for (Key<? extends Metadata> key : managerCollection.getKeys()) {
+      result.add(key.getId());
     }
 
-    return configureGsonBuilder().create();
+    return result;
   }
 
-  private static GsonBuilder createGsonBuilder() {
-    GsonBuilder builder = new GsonBuilder();
+  @Override
+  public void save(File file) throws IOException {
+    Preconditions.checkNotNull(file);
 
-    builder.serializeNulls();
-    builder.setPrettyPrinting();
-    builder.serializeSpecialFloatingPointValues();
-    builder.disableHtmlEscaping();
+    Metadata metaMetadata = storeMetaMetadata(getVersion());
+    try {
+      // Written on this thread, unless an earlier save to the same file has yet to finish.
+      writeAfterPending(file, metaMetadata, Runnable::run).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      Throwables.throwIfUnchecked(e.getCause());
+      throw e;
+    }
+  }
 
-    return builder;
+  /**
+   * Save only the differences between the current state of the managers and the state saved in the
+   * supplied file (see {@link MetadataDiff}) to a separate patch file, which is usually much
+   * smaller than a complete file. The file itself is read but not modified. The patch records the
+   * hash of the file, and may only be loaded together with the same file, by
+   * {@link #load(File, File)}. Each patch holds all the differences from the file, so only the
+   * latest patch is needed.
+   * 
+   * @param file the file previously saved, against which the patch is made
+   * @param patchFile the patch file to write
+   */
+  public void savePatch(File file, File patchFile) throws IOException {
+    Preconditions.checkNotNull(file);
+    Preconditions.checkNotNull(patchFile);
+
+    HashCode baseHash = Files.asByteSource(file).hash(Hashing.sha256());
+    Metadata base = read(file);
+    MetadataDiff diff = MetadataDiff.of(base, storeMetaMetadata(base.getVersion()));
+
+    SettableMetadata patch = SettableMetadata.of(getVersion());
+    patch.put(PATCH_BASE_KEY, baseHash.toString());
+    patch.put(PATCH_DIFF_KEY, diff.toMetadata());
+
+    createParentDirectory(patchFile);
+    deleteIndex(patchFile);
+    writeReplacing(patchFile, patch);
   }
 
-  private static GsonBuilder configureGsonBuilder() {
-    GsonBuilder builder = createGsonBuilder();
+  /**
+   * Load the state saved by {@link #savePatch(File, File)}: the state in the supplied file, with
+   * the differences in the patch file applied to it.
+   * 
+   * @param file the file against which the patch was made
+   * @param patchFile the patch file
+   * @throws IOException if the patch file is not a patch, or was not made against the file
+   */
+  public void load(File file, File patchFile) throws IOException {
+    Preconditions.checkNotNull(file);
+    Preconditions.checkNotNull(patchFile);
 
-    builder.registerTypeAdapter(DataTypeInfo.SORTED_SET.getType(), new SortedSetIOv2());
-    builder.registerTypeAdapter(DataTypeInfo.SET.getType(), new SetIOv2());
-    builder.registerTypeAdapter(DataTypeInfo.LIST.getType(), new ListIOv2());
-    builder.registerTypeAdapter(DataTypeInfo.ITERABLE.getType(), new ListIOv2());
-    builder.registerTypeAdapter(DataTypeInfo.SORTED_MAP.getType(), new SortedMapIOv2());
-    builder.registerTypeAdapter(DataTypeInfo.MAP.getType(), new MapIOv2());
-    builder.registerTypeAdapter(DataTypeInfo.METADATA.getType(), new MetadataIOv2());
-    builder.registerTypeAdapter(DataTypeInfo.VERSION.getType(), new GsonVersionIO());
-    builder.registerTypeAdapter(DataTypeInfo.ELEMENT.getType(), new ElementIO());
-    builder.registerTypeAdapter(DataTypeInfo.PROXIED_OBJECT.getType(), new ProxyIOv2<>());
-    builder.registerTypeAdapter(DataTypeInfo.CLASS.getType(), new ClassIO());
-    builder.registerTypeAdapter(DataTypeInfo.SERIALIZABLE.getType(), new SerializableIO());
+    Metadata patch = read(patchFile);
+    if (!patch.hasKey(PATCH_BASE_KEY) || !patch.hasKey(PATCH_DIFF_KEY)) {
+      throw new IOException("File " + patchFile + " is not a patch");
+    }
 
-    return builder;
+    HashCode baseHash = Files.asByteSource(file).hash(Hashing.sha256());
+    if (!baseHash.toString().equals(patch.get(PATCH_BASE_KEY))) {
+      throw new IOException("Patch " + patchFile + " was not made against file " + file);
+    }
+
+    MetadataDiff diff;
+    try {
+      diff = MetadataDiff.of(patch.get(PATCH_DIFF_KEY));
+    } catch (IllegalArgumentException e) {
+      throw new IOException("File " + patchFile + " is not a patch", e);
+    }
+
+    retrieveLoaded(diff.apply(read(file)), ImmutableMap.of());
   }
 
-  private static Gson configureGsonV1() {
-    GsonBuilder builder = createGsonBuilder();
+  /**
+   * Save the current state of the managers as a new snapshot in the supplied directory, which is
+   * created if necessary (see {@link SnapshotRepository}). Each manager's metadata are stored as a
+   * separate block, encoded using the options of this serializer and named by the hash of its
+   * content, so blocks that did not change since any earlier snapshot are shared rather than
+   * written again. Earlier snapshots are never modified.
+   * 
+   * @param directory the snapshot directory
+   * @return the id of the new snapshot, which may be passed to {@link #loadSnapshot(File, String)}
+   */
+  public String saveSnapshot(File directory) throws IOException {
+    Preconditions.checkNotNull(directory);
 
-    builder.registerTypeAdapter(DataTypeInfo.SORTED_SET.getType(), new SortedSetIOv1());
-    builder.registerTypeAdapter(DataTypeInfo.SET.getType(), new SetIOv1());
-    builder.registerTypeAdapter(DataTypeInfo.LIST.getType(), new ListIOv1());
-    builder.registerTypeAdapter(DataTypeInfo.ITERABLE.getType(), new ListIOv1());
-    builder.registerTypeAdapter(DataTypeInfo.SORTED_MAP.getType(), new SortedMapIOv1());
-    builder.registerTypeAdapter(DataTypeInfo.MAP.getType(), new MapIOv1());
-    builder.registerTypeAdapter(DataTypeInfo.METADATA.getType(), new MetadataIOv1());
-    builder.registerTypeAdapter(DataTypeInfo.VERSION.getType(), new GsonVersionIO());
-    builder.registerTypeAdapter(DataTypeInfo.ELEMENT.getType(), new ElementIO());
-    builder.registerTypeAdapter(DataTypeInfo.PROXIED_OBJECT.getType(), new ProxyIOv1<>());
-    builder.registerTypeAdapter(DataTypeInfo.CLASS.getType(), new ClassIO());
+    Metadata metaMetadata = storeMetaMetadata(getVersion());
 
-    return builder.create();
+    SnapshotRepository repository = SnapshotRepository.of(directory);
+    Map<String, HashCode> blocks = new LinkedHashMap<>();
+    for (Key<?> key : metaMetadata.getKeys()) {
+      blocks.put(key.getId(), repository.putBlock(encodeSegment(metaMetadata, key)));
+    }
+    String result = repository.putSnapshot(metaMetadata.getVersion(), blocks);
+
+    rememberSavedHashes(metaMetadata);
+
+    return result;
   }
 
   /**
-   * This enumeration demonstrates how to serialize/deserialize an enumeration by implementing the
-   * StorableAsMetadata interface.
-   *
+   * Load a snapshot saved by {@link #saveSnapshot(File)}. Only the blocks of the metadata of
+   * registered managers are read.
+   * 
+   * @param directory the snapshot directory
+   * @param snapshotId the id of the snapshot
+   * @throws IOException if the directory does not hold the snapshot, or it cannot be read
    */
-  private static final Key<String> NAME = Key.of("Name");
-  private static final Key<TestEnum> TEST_ENUM_PROXY_KEY = Key.of("TestEnum");
-  private static final Version VERSION = Version.of(1, 0);
+  public void loadSnapshot(File directory, String snapshotId) throws IOException {
+    Preconditions.checkNotNull(directory);
+    Preconditions.checkNotNull(snapshotId);
+
+    SnapshotRepository repository = SnapshotRepository.of(directory);
+    SnapshotRepository.Snapshot snapshot = repository.getSnapshot(snapshotId);
+    Set<String> keyIds = getRegisteredKeyIds();
+
+    SettableMetadata source = SettableMetadata.of(snapshot.getVersion());
+    Map<String, HashCode> hashes = new HashMap<>();
+    for (Map.Entry<String, HashCode> entry : snapshot.getBlocks().entrySet()) {
+      String keyId = entry.getKey();
+      if (keyIds.contains(keyId)) {
+        // Blocks are named by the hashes of their content.
+        hashes.put(keyId, entry.getValue());
+        Metadata blockSource =
+            readSegment(repository.getBlock(entry.getValue()), directory, keyId);
+        Key<Object> key = Key.of(keyId);
+        if (blockSource.hasKey(key)) {
+          source.put(key, blockSource.get(key));
+        }
+      }
+    }
 
-  private enum TestEnum implements StorableAsMetadata<TestEnum> {
-    OPTION0("Option 0"), OPTION1("Option 1");
+    retrieveLoaded(source, hashes);
+  }
 
-    // Need to live with this warning until the register method has been phased out.
-    public static void register(InstanceGetter instanceGetter) {
-      instanceGetter.register(TEST_ENUM_PROXY_KEY, (metadata) -> {
-        return valueOf(metadata.get(NAME));
+  /**
+   * Return the ids of the snapshots saved in the supplied directory by
+   * {@link #saveSnapshot(File)}, in the order in which they were saved, so the last is the newest.
+   * 
+   * @param directory the snapshot directory
+   * @return the ids, which are empty if the directory holds no snapshots
+   */
+  public static ImmutableList<String> getSnapshotIds(File directory) throws IOException {
+    Preconditions.checkNotNull(directory);
+
+    return SnapshotRepository.of(directory).getSnapshotIds();
+  }
+
+  /**
+   * Save asynchronously using a single background thread shared by all instances, so that saves
+   * submitted from one thread are written in the order in which they were submitted. The thread is
+   * a daemon, so callers that need a save to complete before the application exits must wait for
+   * the returned future.
+   * <p>
+   * See {@link #saveAsync(File, Executor)}.
+   */
+  @Override
+  public CompletableFuture<Void> saveAsync(File file) {
+    return saveAsync(file, SAVE_EXECUTOR);
+  }
+
+  /**
+   * Save asynchronously. Each registered manager's {@link MetadataManager#store()} method is
+   * called on the calling thread, in registration order, before this method returns, so the saved
+   * state is a consistent snapshot. Encoding the snapshot and writing the file are done by the
+   * supplied executor.
+   * <p>
+   * Because encoding happens later, the {@link Metadata} returned by managers must not be modified
+   * after it is returned. This is already the case for managers that build new Metadata in each
+   * call to store(). For the same reason, the metadata of objects stored by proxy (objects that
+   * implement {@link edu.jhuapl.ses.jsqrl.api.StorableAsMetadata} or whose types are registered
+   * with the {@link edu.jhuapl.ses.jsqrl.impl.InstanceGetter}) are obtained while encoding, on the
+   * executor, so such objects must not change until the returned future completes.
+   * <p>
+   * Saves to the same file by this serializer, whether asynchronous or not, are written in the
+   * order in which they were requested, so the file always ends up holding the state saved last.
+   * 
+   * @param file the file to write
+   * @param executor the executor that encodes and writes the file
+   * @return a future that completes when the file has been written. If writing fails, the future
+   *         completes exceptionally with an {@link UncheckedIOException} wrapping the cause
+   * @throws RuntimeException if any manager's store method throws
+   */
+  public CompletableFuture<Void> saveAsync(File file, Executor executor) {
+    Preconditions.checkNotNull(file);
+    Preconditions.checkNotNull(executor);
+
+    Metadata metaMetadata = storeMetaMetadata(getVersion());
+
+    return writeAfterPending(file, metaMetadata, executor);
+  }
+
+  /**
+   * Write the metadata using the supplied executor once every write to the same file requested
+   * earlier from this serializer has finished, whether or not it succeeded. This keeps a later
+   * save from being overwritten by an earlier one, and segmented files and journals from being
+   * written by two saves at once.
+   *
+   * @return a future that completes when the file has been written. If writing fails, the future
+   *         completes exceptionally with an {@link UncheckedIOException} wrapping the cause
+   */
+  private CompletableFuture<Void> writeAfterPending(File file, Metadata metaMetadata,
+      Executor executor) {
+    File key = file.getAbsoluteFile();
+    CompletableFuture<Void> result = pendingWrites.compute(key,
+        (k, pending) -> (pending != null ? pending.exceptionally(e -> null)
+            : CompletableFuture.<Void>completedFuture(null)).thenRunAsync(() -> {
+              try {
+                writeSnapshot(file, metaMetadata);
+                rememberSavedHashes(metaMetadata);
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            }, executor));
+    result.whenComplete((r, e) -> pendingWrites.remove(key, result));
+
+    return result;
+  }
+
+  /**
+   * Write metadata read from a file by {@link #read(File)} in the format of this serializer,
+   * exactly as if the managers had returned it.
+   * 
+   * @param file the file to write
+   * @param source the outermost Metadata, whose version is ignored
+   */
+  void rewrite(File file, Metadata source) throws IOException {
+    Preconditions.checkNotNull(file);
+    Preconditions.checkNotNull(source);
+
+    SettableMetadata metaMetadata = SettableMetadata.of(getVersion());
+    for (Key<?> key : source.getKeys()) {
+      metaMetadata.put(Key.of(key.getId()), source.get(key));
+    }
+
+    writeSnapshot(file, metaMetadata);
+  }
+
+  private void writeSnapshot(File file, Metadata metaMetadata) throws IOException {
+    createParentDirectory(file);
+    deleteIndex(file);
+    if (options.isSegmented() && !options.isJournaled()) {
+      writeSegments(file, metaMetadata);
+    } else {
+      File dataFile = SegmentManifest.isManifest(file)
+          ? SegmentManifest.read(file).getDataFile(file) : null;
+      if (options.isJournaled()) {
+        writeJournal(file, metaMetadata);
+      } else {
+        writeReplacing(file, metaMetadata);
+      }
+      // The file is no longer segmented.
+      if (dataFile != null) {
+        deleteFile(dataFile);
+      }
+    }
+  }
+
+  /**
+   * Save as a segmented file (see {@link SerializerOptions#withSegments(boolean)}). Each top-level
+   * value is encoded in memory and hashed, and only the segments whose hashes differ from those in
+   * the existing manifest are written to the data file. The data file is forced to storage before
+   * the new manifest replaces the old one.
+   */
+  private void writeSegments(File file, Metadata metaMetadata) throws IOException {
+    SegmentManifest oldManifest = null;
+    if (SegmentManifest.isManifest(file)) {
+      try {
+        oldManifest = SegmentManifest.read(file);
+        if (!oldManifest.isComplete(file)) {
+          oldManifest = null;
+        }
+      } catch (@SuppressWarnings("unused") IOException e) {
+        // Unusable, so start a new data file.
+      }
+    }
+
+    // Start a new data file if there is none, or if most of the current one is unused.
+    boolean compact = oldManifest == null || oldManifest.getDataFile(file).length()
+        - oldManifest.getLength() > oldManifest.getLength();
+    int generation = oldManifest == null ? 0
+        : compact ? oldManifest.getGeneration() + 1 : oldManifest.getGeneration();
+    File dataFile =
+        compact ? SegmentManifest.dataFileFor(file, generation) : oldManifest.getDataFile(file);
+
+    Map<String, SegmentManifest.Segment> segments = new LinkedHashMap<>();
+    try (FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE)) {
+      if (compact) {
+        channel.truncate(0);
+      }
+      // Bytes left at the end by a save that did not complete are not used by any segment.
+      long end = channel.size();
+
+      for (Key<?> key : metaMetadata.getKeys()) {
+        byte[] content = encodeSegment(metaMetadata, key);
+        HashCode hash = SegmentManifest.hash(content);
+
+        SegmentManifest.Segment oldSegment =
+            compact ? null : oldManifest.getSegment(key.getId());
+        if (oldSegment != null && oldSegment.getHash().equals(hash)) {
+          segments.put(key.getId(), oldSegment);
+        } else {
+          ByteBuffer buffer = ByteBuffer.wrap(content);
+          while (buffer.hasRemaining()) {
+            channel.write(buffer, end + buffer.position());
+          }
+          segments.put(key.getId(), new SegmentManifest.Segment(end, content.length, hash));
+          end += content.length;
+        }
+      }
+
+      channel.force(true);
+    }
+
+    SegmentManifest.of(metaMetadata.getVersion(), generation, dataFile, segments).write(file);
+
+    // The new manifest is on storage by now, so no manifest that survives a crash can refer to the
+    // old data file.
+    if (oldManifest != null && compact) {
+      deleteFile(oldManifest.getDataFile(file));
+    }
+  }
+
+  /**
+   * Save by appending a record to a journal (see {@link SerializerOptions#withJournal(boolean)}).
+   * Each top-level value is encoded in memory, and the journal appends those whose hashes differ
+   * from the newest ones it holds. The journal starts a compaction if enough of it is superseded.
+   */
+  private void writeJournal(File file, Metadata metaMetadata) throws IOException {
+    Map<String, byte[]> contents = new LinkedHashMap<>();
+    for (Key<?> key : metaMetadata.getKeys()) {
+      contents.put(key.getId(), encodeSegment(metaMetadata, key));
+    }
+
+    // The journal is kept open between saves, unless something else changed the file.
+    MetadataJournal journal;
+    try {
+      journal = journals.compute(file.getAbsoluteFile(), (journalFile, current) -> {
+        if (current != null && current.isCurrent()) {
+          return current;
+        }
+        try {
+          return MetadataJournal.open(journalFile);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
       });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+
+    journal.append(metaMetadata.getVersion(), contents);
+    if (journal.getSupersededLength() > options.getJournalCompactionThreshold()) {
+      journal.compactAsync();
+    }
+  }
+
+  /**
+   * Encode the value associated with one key exactly as a whole file holding only that value.
+   */
+  private byte[] encodeSegment(Metadata metaMetadata, Key<?> key) throws IOException {
+    Object value = metaMetadata.get(key);
+
+    // Metadata reused from an earlier save are encoded as they were then. Segments are only
+    // written with the version of this serializer.
+    StoredMetadata stored = storedMetadata.get(key.getId());
+    if (stored == null || stored.metadata != value) {
+      stored = null;
+    } else if (stored.segment != null) {
+      return stored.segment;
+    }
+
+    SettableMetadata segmentMetadata = SettableMetadata.of(metaMetadata.getVersion());
+    segmentMetadata.put(Key.of(key.getId()), value);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    write(bytes, segmentMetadata);
+    byte[] result = bytes.toByteArray();
+
+    if (stored != null) {
+      stored.segment = result;
+    }
+
+    return result;
+  }
+
+  /**
+   * Write the file under a temporary name in the same directory, and then rename that, with its
+   * index if any, over the file. The file is therefore never seen partly written, and a file that
+   * was loaded memory-mapped is never truncated while metadata mapped from it, which may be among
+   * those being written, are in use: the mapping keeps the content of the file it replaces.
+   */
+  private void writeReplacing(File file, Metadata metaMetadata) throws IOException {
+    File temporaryFile = File.createTempFile(file.getName() + TEMPORARY_FILE_INFIX, null,
+        file.getAbsoluteFile().getParentFile());
+    try {
+      write(temporaryFile, metaMetadata);
+      replace(temporaryFile, file);
+    } catch (IOException | RuntimeException e) {
+      try {
+        deleteFile(MetadataIndex.indexFileFor(temporaryFile));
+        deleteFile(temporaryFile);
+      } catch (IOException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Replace a file, and its index if any, by another file and its index. The new files are forced
+   * to storage before they are renamed, and the directory after, so that after a crash the file
+   * is either the old one or the complete new one, and never empty.
+   */
+  static void replace(File newFile, File file) throws IOException {
+    File newIndexFile = MetadataIndex.indexFileFor(newFile);
+    File indexFile = MetadataIndex.indexFileFor(file);
+
+    SegmentManifest.forceFile(newFile);
+    if (newIndexFile.exists()) {
+      SegmentManifest.forceFile(newIndexFile);
+    }
+
+    // The old index no longer matches the file once it is replaced.
+    deleteFile(indexFile);
+
+    try {
+      java.nio.file.Files.move(newFile.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (@SuppressWarnings("unused") AtomicMoveNotSupportedException e) {
+      java.nio.file.Files.move(newFile.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Moving preserves the length and modification time recorded in the index.
+    if (newIndexFile.exists()) {
+      java.nio.file.Files.move(newIndexFile.toPath(), indexFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    SegmentManifest.forceDirectory(file.getAbsoluteFile().getParentFile());
+  }
+
+  private static void deleteFile(File file) throws IOException {
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Unable to delete file " + file);
+    }
+  }
+
+  private static void createParentDirectory(File file) {
+    File dir = file.getParentFile();
+    if (!dir.exists()) {
+      dir.mkdirs();
+    }
+  }
+
+  /**
+   * Read the "Version" field that starts every file format. This leaves the reader positioned
+   * inside the first top-level object, immediately after the version.
+   */
+  private Version readVersion(JsonReader reader, File file) throws IOException {
+    try {
+      reader.beginObject();
+
+      String name = reader.nextName();
+      if (!name.equals(DataTypeInfo.VERSION.getTypeId())) {
+        throw new IOException("Invalid Metadata file format");
+      }
+
+      return Version.of(reader.nextString());
+    } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+      throw new IOException("Metadata reader version " + getVersion()
+          + " cannot read metadata format of file " + file, e);
+    }
+  }
+
+  private Metadata loadBeforeV3(JsonReader reader, Version fileVersion,
+      Predicate<String> keyFilter) throws IOException {
+    // Before version 3, the version was alone in the first object.
+    reader.endObject();
+
+    SettableMetadata source = SettableMetadata.of(Version.of(0, 0));
+
+    Gson gson = configureGson(fileVersion);
+
+    // These formats can only be decoded as a whole, so unwanted keys are discarded afterwards.
+    Map<String, Metadata> metadataMap = gson.fromJson(reader, DataTypeInfo.MAP.getType());
+    for (Entry<String, Metadata> entry : metadataMap.entrySet()) {
+      if (keyFilter.test(entry.getKey())) {
+        source.put(Key.of(entry.getKey()), entry.getValue());
+      }
+    }
+
+    return source;
+  }
+
+  private void save(File file, Version version) throws IOException {
+    if (version.equals(SERIALIZER_VERSION_1)) {
+      saveV1(file);
+      return;
+    } else if (version.equals(SERIALIZER_VERSION_2)) {
+      saveV2(file);
+      return;
+    }
+
+    deleteIndex(file);
+    write(file, version, storeMetaMetadata(version));
+  }
+
+  /**
+   * Remove any existing index of the file. This is done before the file is written so that an index
+   * can never describe a partially written file.
+   */
+  private static void deleteIndex(File file) throws IOException {
+    File indexFile = MetadataIndex.indexFileFor(file);
+    if (indexFile.exists() && !indexFile.delete()) {
+      throw new IOException("Unable to delete index file " + indexFile);
+    }
+  }
+
+  /**
+   * Write metadata that was already obtained from the managers, in the format of this serializer.
+   * This does not call any manager, so it may be called on any thread. Subclasses that write other
+   * formats override this method.
+   * 
+   * @param file the file to write
+   * @param metaMetadata the outermost Metadata, whose values are the metadata of the managers
+   */
+  protected void write(File file, Metadata metaMetadata) throws IOException {
+    write(file, getVersion(), metaMetadata);
+  }
+
+  /**
+   * Write metadata that was already obtained from the managers to a stream rather than a file, in
+   * the format of this serializer, compressed using the codec from the options. No index is
+   * written. Subclasses that write other formats override this method.
+   * 
+   * @param out the stream, which is closed when the metadata have been written
+   * @param metaMetadata the outermost Metadata, whose values are the metadata of the managers
+   */
+  protected void write(OutputStream out, Metadata metaMetadata) throws IOException {
+    try (OutputStream compressedStream = newOutputStream(out)) {
+      write(compressedStream, getVersion(), metaMetadata, null);
+    }
+  }
+
+  private void write(File file, Version version, Metadata metaMetadata) throws IOException {
+    // Offsets in compressed files are meaningless, so they are never indexed.
+    boolean writeIndex =
+        options.isIndexed() && options.getCompression() == CompressionCodecs.none();
+    Map<String, MetadataIndex.Block> blocks = writeIndex ? new LinkedHashMap<>() : null;
+
+    StringDictionary dictionary;
+    try (OutputStream out = newOutputStream(file)) {
+      dictionary = write(out, version, metaMetadata, blocks);
+    }
+
+    if (writeIndex) {
+      File indexFile = MetadataIndex.indexFileFor(file);
+      MetadataIndex.of(file, options.getCharset(), version,
+          MetadataStreamIO.summarize(metaMetadata), dictionary, blocks).write(indexFile);
+    }
+  }
+
+  /**
+   * @param blocks map to which the location in the stream of each top-level value is added, or
+   *        null
+   * @return the dictionary used to write the stream, or null if there is none
+   */
+  private StringDictionary write(OutputStream out, Version version, Metadata metaMetadata,
+      Map<String, MetadataIndex.Block> blocks) throws IOException {
+
+    Gson gson = configureGson(version);
+    boolean writeReferences = SERIALIZER_VERSION_7.compareTo(version) <= 0;
+    boolean writeShapes = SERIALIZER_VERSION_8.compareTo(version) <= 0;
+    boolean writeColumns = options.isColumnar() && SERIALIZER_VERSION_9.compareTo(version) <= 0;
+    boolean writeDictionary =
+        options.isDictionaryEncoded() && SERIALIZER_VERSION_6.compareTo(version) <= 0;
+
+    // Encodings are only reused in compact output of the current version without a dictionary,
+    // the only context in which they are cached.
+    EncodedFormCache<MetadataStreamIO.EncodedForm> cache =
+        !writeDictionary && !options.isPrettyPrinting() && version.equals(getVersion())
+            ? encodedForms : null;
+
+    MetadataStreamIO metadataIo =
+        new MetadataStreamIO(gson, null, writeReferences, writeShapes, writeColumns, cache);
+    if (writeDictionary) {
+      metadataIo = metadataIo.withDictionaryFor(metaMetadata);
+    }
+    StringDictionary dictionary = metadataIo.getDictionary();
+    CountingOutputStream countingStream = new CountingOutputStream(out);
+    try (Writer fileWriter = newWriter(countingStream)) {
+      try (JsonWriter jsonWriter = newJsonWriter(gson, fileWriter)) {
+
+        MetadataStreamIO.EntryListener listener = null;
+        if (blocks != null) {
+          listener = new MetadataStreamIO.EntryListener() {
+            long start;
+
+            @Override
+            public void entryStarted(String keyId) throws IOException {
+              jsonWriter.flush();
+              start = countingStream.getCount();
+            }
+
+            @Override
+            public void entryFinished(String keyId) throws IOException {
+              jsonWriter.flush();
+              blocks.put(keyId,
+                  new MetadataIndex.Block(start, countingStream.getCount() - start));
+            }
+
+          };
+        }
+
+        // Write each value as it is visited rather than building the whole tree first.
+        metadataIo.write(jsonWriter, metaMetadata, listener);
+
+        fileWriter.write('\n');
+      }
+    }
+
+    return dictionary;
+  }
+
+  private SettableMetadata storeMetaMetadata(Version version) {
+    List<Key<? extends Metadata>> keys = managerCollection.getKeys();
+
+    List<Metadata> storedMetadata = options.getStoreExecutor() != null ? storeInParallel(keys)
+        : storeInSingleThreadContext(keys);
+
+    SettableMetadata metaMetadata = SettableMetadata.of(version);
+    for (int index = 0; index < keys.size(); ++index) {
+      Metadata metadata = storedMetadata.get(index);
+      if (!EmptyMetadata.instance().equals(metadata)) {
+        metaMetadata.put(Key.of(keys.get(index).getId()), metadata);
+      }
+    }
+
+    return metaMetadata;
+  }
+
+  private List<Metadata> storeInSingleThreadContext(List<Key<? extends Metadata>> keys) {
+    List<Metadata> result = new ArrayList<>(keys.size());
+    for (Key<? extends Metadata> key : keys) {
+      result.add(store(key));
+    }
+
+    return result;
+  }
+
+  /**
+   * Call the store method of the manager registered with the supplied key, unless it is a
+   * {@link ChangeAwareMetadataManager} whose modification count is the same as it was when its
+   * store method was last called, in which case the metadata it returned then are reused.
+   */
+  private Metadata store(Key<? extends Metadata> key) {
+    MetadataManager manager = managerCollection.getManager(key);
+    ChangeAwareMetadataManager changeAwareManager = Utilities.asChangeAware(manager);
+    if (changeAwareManager == null) {
+      return manager.store();
+    }
+
+    long modificationCount = changeAwareManager.getModificationCount();
+    StoredMetadata stored = storedMetadata.get(key.getId());
+    if (stored != null && stored.manager == manager
+        && stored.modificationCount == modificationCount) {
+      return stored.metadata;
+    }
+
+    Metadata result = manager.store();
+    storedMetadata.put(key.getId(), new StoredMetadata(manager, modificationCount, result));
+
+    return result;
+  }
+
+  /**
+   * Call the managers' store methods concurrently using the executor from the options, except for
+   * managers that are confined to the calling thread, which are called on this thread in
+   * registration order while the others run.
+   * 
+   * @return the stored metadata, in the same order as the keys
+   */
+  private List<Metadata> storeInParallel(List<Key<? extends Metadata>> keys) {
+    Executor executor = options.getStoreExecutor();
+
+    List<MetadataManager> managers = new ArrayList<>(keys.size());
+    List<CompletableFuture<Metadata>> futures = new ArrayList<>(keys.size());
+    for (Key<? extends Metadata> key : keys) {
+      MetadataManager manager = managerCollection.getManager(key);
+      managers.add(manager);
+      futures.add(Utilities.isThreadConfined(manager) ? null
+          : CompletableFuture.supplyAsync(() -> store(key), executor));
+    }
+
+    for (int index = 0; index < keys.size(); ++index) {
+      if (futures.get(index) == null) {
+        futures.set(index, CompletableFuture.completedFuture(store(keys.get(index))));
+      }
+    }
+
+    List<Metadata> result = new ArrayList<>(keys.size());
+    try {
+      for (CompletableFuture<Metadata> future : futures) {
+        result.add(future.join());
+      }
+    } catch (CompletionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw e;
+    }
+
+    return result;
+  }
+
+  private void saveV2(File file) throws IOException {
+    Preconditions.checkNotNull(file);
+    Gson gson = configureGson(SERIALIZER_VERSION_2);
+    try (Writer fileWriter = newWriter(file)) {
+      try (JsonWriter jsonWriter = newJsonWriter(gson, fileWriter)) {
+        Map<String, Metadata> metadataMap = new HashMap<>();
+        for (Key<? extends Metadata> key : managerCollection.getKeys()) {
+          MetadataManager manager = managerCollection.getManager(key);
+          Metadata metadata = manager.store();
+          if (!EmptyMetadata.instance().equals(metadata)) {
+            metadataMap.put(key.getId(), metadata);
+          }
+        }
+        gson.toJson(SERIALIZER_VERSION_2, DataTypeInfo.VERSION.getType(), jsonWriter);
+        jsonWriter.flush();
+        fileWriter.write('\n');
+        gson.toJson(metadataMap, DataTypeInfo.MAP.getType(), jsonWriter);
+        jsonWriter.flush();
+        fileWriter.write('\n');
+      }
+    }
+  }
+
+  private void saveV1(File file) throws IOException {
+    Preconditions.checkNotNull(file);
+
+    Gson gson = configureGson(SERIALIZER_VERSION_1);
+    try (Writer fileWriter = newWriter(file)) {
+      try (JsonWriter jsonWriter = newJsonWriter(gson, fileWriter)) {
+        Map<String, Metadata> metadataMap = new HashMap<>();
+        for (Key<? extends Metadata> key : managerCollection.getKeys()) {
+          MetadataManager manager = managerCollection.getManager(key);
+          Metadata metadata = manager.store();
+          if (!EmptyMetadata.instance().equals(metadata)) {
+            metadataMap.put(key.getId(), metadata);
+          }
+        }
+        gson.toJson(SERIALIZER_VERSION_1, DataTypeInfo.VERSION.getType(), jsonWriter);
+        jsonWriter.flush();
+        fileWriter.write('\n');
+        gson.toJson(metadataMap, DataTypeInfo.MAP.getType(), jsonWriter);
+        jsonWriter.flush();
+        fileWriter.write('\n');
+      }
+    }
+  }
+
+  private Reader newReader(InputStream in) {
+    return new BufferedReader(new InputStreamReader(in, options.getCharset()),
+        options.getBufferSize());
+  }
+
+  private Writer newWriter(File file) throws IOException {
+    return newWriter(newOutputStream(file));
+  }
+
+  private Writer newWriter(OutputStream out) {
+    return new BufferedWriter(new OutputStreamWriter(out, options.getCharset()),
+        options.getBufferSize());
+  }
+
+  /**
+   * Open the file for reading, decompressing it if it starts with the magic number of a registered
+   * {@link CompressionCodec}. The returned stream supports {@link InputStream#mark(int)}.
+   */
+  private InputStream newInputStream(File file) throws IOException {
+    return newInputStream(new BufferedInputStream(new FileInputStream(file),
+        options.getBufferSize()));
+  }
+
+  /**
+   * Same as {@link #newInputStream(File)}, for a stream that is already buffered if need be.
+   */
+  private InputStream newInputStream(InputStream in) throws IOException {
+    try {
+      InputStream result = CompressionCodecs.decompress(in);
+      if (!result.markSupported()) {
+        result = new BufferedInputStream(result, options.getBufferSize());
+      }
+      return result;
+    } catch (IOException | RuntimeException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Open the file for writing, compressed using the codec from this serializer's options.
+   */
+  protected OutputStream newOutputStream(File file) throws IOException {
+    return newOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file), options.getBufferSize()));
+  }
+
+  /**
+   * Return a stream that writes to the supplied stream, compressed using the codec from this
+   * serializer's options.
+   */
+  protected OutputStream newOutputStream(OutputStream out) throws IOException {
+    try {
+      return options.getCompression().compress(out);
+    } catch (IOException | RuntimeException e) {
+      out.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Create a writer using the supplied Gson's settings, except that whether the output is pretty
+   * printed comes from this serializer's options. Readers accept either layout.
+   */
+  private JsonWriter newJsonWriter(Gson gson, Writer writer) throws IOException {
+    JsonWriter jsonWriter = gson.newJsonWriter(writer);
+    if (!options.isPrettyPrinting()) {
+      jsonWriter.setIndent("");
+    }
+    return jsonWriter;
+  }
+
+  private void retrieve(Metadata source) {
+    if (options.getRetrieveExecutor() != null) {
+      retrieveInParallel(source);
+    } else {
+      retrieveInSingleThreadContext(source);
+    }
+  }
+
+  /**
+   * Call the managers' retrieve methods as a graph of tasks using the executor from the options.
+   * Each manager's task starts when the tasks of all its declared dependencies have completed.
+   * Managers that are confined to the calling thread are called on this thread in registration
+   * order; this cannot deadlock because dependencies are always registered before their
+   * dependents.
+   */
+  private void retrieveInParallel(Metadata source) {
+    Executor executor = options.getRetrieveExecutor();
+
+    Map<Key<? extends Metadata>, CompletableFuture<Void>> futures = new HashMap<>();
+    try {
+      for (Key<? extends Metadata> key : managerCollection.getKeys()) {
+        MetadataManager manager = managerCollection.getManager(key);
+        Metadata element = source.hasKey(key) ? source.get(key) : null;
+
+        List<CompletableFuture<Void>> dependencyFutures = new ArrayList<>();
+        for (Key<? extends Metadata> dependency : managerCollection.getDependencies(key)) {
+          CompletableFuture<Void> dependencyFuture = futures.get(dependency);
+          if (dependencyFuture != null) {
+            dependencyFutures.add(dependencyFuture);
+          } else if (managerCollection.getKeys().contains(dependency)) {
+            // Only possible if the dependency was deregistered and registered again.
+            throw new IllegalStateException(
+                "Dependency " + dependency + " is now registered after " + key);
+          }
+        }
+        CompletableFuture<Void> dependenciesDone = CompletableFuture
+            .allOf(dependencyFutures.toArray(new CompletableFuture<?>[dependencyFutures.size()]));
+
+        Runnable task = () -> {
+          if (element != null) {
+            manager.retrieve(element);
+          }
+        };
+
+        CompletableFuture<Void> future;
+        if (Utilities.isThreadConfined(manager)) {
+          dependenciesDone.join();
+          task.run();
+          future = CompletableFuture.completedFuture(null);
+        } else {
+          future = dependenciesDone.thenRunAsync(task, executor);
+        }
+        futures.put(key, future);
+      }
+
+      CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()]))
+          .join();
+    } catch (CompletionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw e;
+    }
+  }
+
+  private void retrieveInSingleThreadContext(Metadata source) {
+    for (Key<? extends Metadata> key : managerCollection.getKeys()) {
+      if (source.hasKey(key)) {
+        Metadata element = source.get(key);
+        if (element != null) {
+          managerCollection.getManager(key).retrieve(element);
+        }
+      }
+    }
+  }
+
+  private static Gson configureGson(Version serializerVersion) {
+    if (SERIALIZER_VERSION_1.equals(serializerVersion)) {
+      return configureGsonV1();
+    }
+
+    return configureGsonBuilder(serializerVersion).create();
+  }
+
+  private static GsonBuilder createGsonBuilder() {
+    GsonBuilder builder = new GsonBuilder();
+
+    builder.serializeNulls();
+    builder.setPrettyPrinting();
+    builder.serializeSpecialFloatingPointValues();
+    builder.disableHtmlEscaping();
+
+    return builder;
+  }
+
+  private static GsonBuilder configureGsonBuilder(Version serializerVersion) {
+    GsonBuilder builder = createGsonBuilder();
+
+    builder.registerTypeAdapterFactory(
+        new PrimitiveArrayIO(SERIALIZER_VERSION_5.compareTo(serializerVersion) <= 0));
+
+    builder.registerTypeAdapter(DataTypeInfo.SORTED_SET.getType(), new SortedSetIOv2());
+    builder.registerTypeAdapter(DataTypeInfo.SET.getType(), new SetIOv2());
+    builder.registerTypeAdapter(DataTypeInfo.LIST.getType(), new ListIOv2());
+    builder.registerTypeAdapter(DataTypeInfo.ITERABLE.getType(), new ListIOv2());
+    builder.registerTypeAdapter(DataTypeInfo.SORTED_MAP.getType(), new SortedMapIOv2());
+    builder.registerTypeAdapter(DataTypeInfo.MAP.getType(), new MapIOv2());
+    builder.registerTypeAdapter(DataTypeInfo.METADATA.getType(), new MetadataIOv2());
+    builder.registerTypeAdapter(DataTypeInfo.VERSION.getType(), new GsonVersionIO());
+    builder.registerTypeAdapter(DataTypeInfo.ELEMENT.getType(), new ElementIO());
+    builder.registerTypeAdapter(DataTypeInfo.PROXIED_OBJECT.getType(), new ProxyIOv2<>());
+    builder.registerTypeAdapter(DataTypeInfo.CLASS.getType(), new ClassIO());
+    builder.registerTypeAdapter(DataTypeInfo.SERIALIZABLE.getType(), new SerializableIO());
+
+    return builder;
+  }
+
+  private static Gson configureGsonV1() {
+    GsonBuilder builder = createGsonBuilder();
+
+    builder.registerTypeAdapter(DataTypeInfo.SORTED_SET.getType(), new SortedSetIOv1());
+    builder.registerTypeAdapter(DataTypeInfo.SET.getType(), new SetIOv1());
+    builder.registerTypeAdapter(DataTypeInfo.LIST.getType(), new ListIOv1());
+    builder.registerTypeAdapter(DataTypeInfo.ITERABLE.getType(), new ListIOv1());
+    builder.registerTypeAdapter(DataTypeInfo.SORTED_MAP.getType(), new SortedMapIOv1());
+    builder.registerTypeAdapter(DataTypeInfo.MAP.getType(), new MapIOv1());
+    builder.registerTypeAdapter(DataTypeInfo.METADATA.getType(), new MetadataIOv1());
+    builder.registerTypeAdapter(DataTypeInfo.VERSION.getType(), new GsonVersionIO());
+    builder.registerTypeAdapter(DataTypeInfo.ELEMENT.getType(), new ElementIO());
+    builder.registerTypeAdapter(DataTypeInfo.PROXIED_OBJECT.getType(), new ProxyIOv1<>());
+    builder.registerTypeAdapter(DataTypeInfo.CLASS.getType(), new ClassIO());
+
+    return builder.create();
+  }
+
+  /**
+   * This enumeration demonstrates how to serialize/deserialize an enumeration by implementing the
+   * StorableAsMetadata interface.
+   *
+   */
+  private static final Key<String> NAME = Key.of("Name");
+  private static final Key<TestEnum> TEST_ENUM_PROXY_KEY = Key.of("TestEnum");
+  private static final Version VERSION = Version.of(1, 0);
+
+  private enum TestEnum implements StorableAsMetadata<TestEnum> {
+    OPTION0("Option 0"), OPTION1("Option 1");
+
+    // Need to live with this warning until the register method has been phased out.
+    public static void register(InstanceGetter instanceGetter) {
+      instanceGetter.register(TEST_ENUM_PROXY_KEY, (metadata) -> {
+        return valueOf(metadata.get(NAME));
+      });
+    }
+
+    private final String text;
+
+    TestEnum(String text) {
+      this.text = text;
+    }
+
+    @Override
+    public String toString() {
+      return text;
+    }
+
+    @Override
+    public Key<TestEnum> getKey() {
+      return TEST_ENUM_PROXY_KEY;
+    }
+
+    @Override
+    public Metadata store() {
+      return SettableMetadata.of(VERSION).put(NAME, name());
+    }
+  }
+
+  /**
+   * This enumeration demonstrates how to serialize/deserialize an enumeration without implementing
+   * StorableAsMetadata.
+   */
+  private enum TestEnum2 {
+    OPTION0, OPTION1;
+  }
+
+  private static final Key<TestEnum2> TEST_ENUM2_PROXY_KEY = Key.of("TestEnum2");
+
+  private static void registerTestEnum2(InstanceGetter instanceGetter) {
+    instanceGetter.register(TEST_ENUM2_PROXY_KEY, metadata -> {
+      return TestEnum2.valueOf(metadata.get(NAME));
+    }, TestEnum2.class, object -> {
+      return SettableMetadata.of(VERSION).put(NAME, object.name());
+    });
+  }
+
+  private static final Key<TestSampler> TEST_SAMPLER_PROXY_KEY = Key.of("TestSampler");
+
+  /**
+   * Object whose metadata differ each time they are stored, like samples of a changing value.
+   */
+  private static final class TestSampler implements StorableAsMetadata<TestSampler> {
+    // The metadata from which this was provided, or null.
+    private final Metadata stored;
+    private int stores;
+
+    TestSampler(Metadata stored) {
+      this.stored = stored;
+      this.stores = 0;
+    }
+
+    @Override
+    public Key<TestSampler> getKey() {
+      return TEST_SAMPLER_PROXY_KEY;
+    }
+
+    @Override
+    public Metadata store() {
+      ++stores;
+      return SettableMetadata.of(VERSION).put(Key.of("sample " + stores), stores);
+    }
+  }
+
+  /**
+   * Metadata returned by a {@link ChangeAwareMetadataManager}, with the modification count obtained
+   * just before they were stored, and their encoded segment once one has been written.
+   */
+  private static final class StoredMetadata {
+    private final MetadataManager manager;
+    private final long modificationCount;
+    private final Metadata metadata;
+    private volatile byte[] segment;
+
+    StoredMetadata(MetadataManager manager, long modificationCount, Metadata metadata) {
+      this.manager = manager;
+      this.modificationCount = modificationCount;
+      this.metadata = metadata;
+      this.segment = null;
+    }
+
+  }
+
+  /**
+   * Hash of the encoded metadata last loaded into or saved from a
+   * {@link ChangeAwareMetadataManager}, with the modification count the manager had then.
+   */
+  private static final class BlockHash {
+    private final MetadataManager manager;
+    private final long modificationCount;
+    private final HashCode hash;
+
+    BlockHash(MetadataManager manager, long modificationCount, HashCode hash) {
+      this.manager = manager;
+      this.modificationCount = modificationCount;
+      this.hash = hash;
+    }
+
+  }
+
+  private static class TestManager implements MetadataManager {
+    private final SettableMetadata metadata;
+
+    TestManager(SettableMetadata metadata) {
+      this.metadata = metadata;
+    }
+
+    @Override
+    public Metadata store() {
+      SettableMetadata destination = SettableMetadata.of(metadata.getVersion());
+      for (Key<?> key : metadata.getKeys()) {
+        @SuppressWarnings("unchecked")
+        Key<Object> newKey = (Key<Object>) key;
+        destination.put(newKey, metadata.get(key));
+      }
+
+      return destination;
+    }
+
+    @Override
+    public void retrieve(Metadata source) {
+      metadata.clear();
+      for (Key<?> key : source.getKeys()) {
+        Object value = source.get(key);
+        @SuppressWarnings("unchecked")
+        Key<Object> newKey = (Key<Object>) key;
+        metadata.put(newKey, value);
+      }
+    }
+
+  }
+
+  /**
+   * Test manager that counts its modifications, and the calls to its store and retrieve methods.
+   */
+  private static class CountingTestManager extends TestManager
+      implements ChangeAwareMetadataManager {
+    private final SettableMetadata metadata;
+    private long modificationCount;
+    private int storeCount;
+    private int retrieveCount;
+
+    CountingTestManager(SettableMetadata metadata) {
+      super(metadata);
+      this.metadata = metadata;
+      this.modificationCount = 0;
+      this.storeCount = 0;
+      this.retrieveCount = 0;
+    }
+
+    <V> void put(Key<V> key, V value) {
+      ++modificationCount;
+      metadata.put(key, value);
+    }
+
+    @Override
+    public long getModificationCount() {
+      return modificationCount;
+    }
+
+    @Override
+    public Metadata store() {
+      ++storeCount;
+      return super.store();
+    }
+
+    @Override
+    public void retrieve(Metadata source) {
+      ++modificationCount;
+      ++retrieveCount;
+      super.retrieve(source);
+    }
+
+  }
+
+  private static final Key<SettableMetadata> COUNTER_KEY = Key.of("counter");
+  private static final Key<Integer> COUNT_KEY = Key.of("count");
+
+  /**
+   * The sample state and its sub-state, which are large, and a counter, which is small and changes
+   * often, as used by the tests of saving and loading only what changed.
+   */
+  private static final class CounterState {
+    private final SettableMetadata state;
+    private final SettableMetadata subState;
+    private final SettableMetadata counter;
+
+    CounterState(SettableMetadata state, SettableMetadata subState, SettableMetadata counter) {
+      this.state = state;
+      this.subState = subState;
+      this.counter = counter;
+    }
+
+    /**
+     * Register a {@link TestManager} of each part of the state with the supplied serializer.
+     *
+     * @return the serializer
+     */
+    GsonSerializer register(GsonSerializer serializer) {
+      serializer.register(SAMPLE_METADATA_KEY, new TestManager(state));
+      serializer.register(SAMPLE_SUB_METADATA_KEY, new TestManager(subState));
+      serializer.register(COUNTER_KEY, new TestManager(counter));
+
+      return serializer;
+    }
+
+    boolean isEqualTo(CounterState other) {
+      return state.equals(other.state) && subState.equals(other.subState)
+          && counter.equals(other.counter);
+    }
+
+  }
+
+  /**
+   * @return the sample state, its sub-state and a counter whose count is 0
+   */
+  private static CounterState createCounterState() {
+    SettableMetadata state = createV5SampleMetadata();
+    SettableMetadata counter = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+    counter.put(COUNT_KEY, 0);
+
+    return new CounterState(state, state.get(SAMPLE_SUB_METADATA_KEY), counter);
+  }
+
+  /**
+   * @return empty metadata into which a {@link CounterState} may be loaded
+   */
+  private static CounterState createEmptyCounterState() {
+    return new CounterState(SettableMetadata.of(SAMPLE_METADATA_VERSION),
+        SettableMetadata.of(SAMPLE_SUB_METADATA_VERSION),
+        SettableMetadata.of(SAMPLE_METADATA_VERSION));
+  }
+
+  /**
+   * @return the {@link CounterState} loaded from the supplied file by a new serializer
+   */
+  private static CounterState reloadCounterState(File file) throws IOException {
+    CounterState result = createEmptyCounterState();
+    result.register(GsonSerializer.of()).load(file);
+
+    return result;
+  }
+
+  // These are all just fodder for test cases, These version numbers have nothing to do with the
+  // version of
+  // the serializer.
+  private static final Version SAMPLE_METADATA_VERSION = Version.of(1, 0);
+  private static final Version SAMPLE_SUB_METADATA_VERSION = Version.of(3, 1);
+  private static final String SUB_METADATA_ID = "Bennu / V3";
+  private static final Key<SettableMetadata> SAMPLE_METADATA_KEY = Key.of("testState");
+  private static final Key<SettableMetadata> SAMPLE_SUB_METADATA_KEY = Key.of(SUB_METADATA_ID);
+  private static final Key<List<List<String>>> LIST_LIST_STRING_KEY = Key.of("listListString");
+
+  public static void main(String[] args) throws IOException {
+    TestEnum.register(InstanceGetter.defaultInstanceGetter());
+    registerTestEnum2(InstanceGetter.defaultInstanceGetter());
+    InstanceGetter.defaultInstanceGetter().register(TEST_SAMPLER_PROXY_KEY, TestSampler::new);
+
+    // Test failure when trying to serialize something that can't be serialized.
+    {
+      class UnserializableObject {
+
+      };
+
+      UnserializableObject unserializableObject = new UnserializableObject();
+
+      try {
+        SettableMetadata.of(SAMPLE_METADATA_VERSION).put(Key.of("unserializable"),
+            unserializableObject);
+        System.err.println("Saving an unserializable object did not throw an exception");
+      } catch (@SuppressWarnings("unused") IllegalArgumentException e) {
+        // This is as it should be.
+      }
+    }
+
+    // Test V1.
+    String testPath = Paths.get(System.getProperty("user.home"), "Downloads").toString();
+    {
+      SettableMetadata state = createV1SampleMetadata();
+      File file = Paths.get(testPath, "MyStateV1.sbmt").toFile();
+      testSaveAndReloadState(state, file, SERIALIZER_VERSION_1);
+    }
+
+    // Test V2.
+    {
+      SettableMetadata state = createV2SampleMetadata();
+      File file = Paths.get(testPath, "MyStateV2.sbmt").toFile();
+      testSaveAndReloadState(state, file, SERIALIZER_VERSION_2);
+    }
+
+    // Test V3.
+    {
+      SettableMetadata state = createV3SampleMetadata();
+      File file = Paths.get(testPath, "MyStateV3.sbmt").toFile();
+      testSaveAndReloadState(state, file, SERIALIZER_VERSION_3);
+    }
+
+    // Test V4.
+    {
+      SettableMetadata state = createV4SampleMetadata();
+      File file = Paths.get(testPath, "MyStateV4.sbmt").toFile();
+      testSaveAndReloadState(state, file, SERIALIZER_VERSION_4);
+    }
+
+    // Test V5.
+    {
+      SettableMetadata state = createV5SampleMetadata();
+      File file = Paths.get(testPath, "MyStateV5.sbmt").toFile();
+      testSaveAndReloadState(state, file, SERIALIZER_VERSION_5);
+    }
+
+    // Test V6.
+    {
+      SettableMetadata state = createV5SampleMetadata();
+      File file = Paths.get(testPath, "MyStateV6.sbmt").toFile();
+      testSaveAndReloadState(state, file, SERIALIZER_VERSION_6);
+    }
+
+    // Test V7.
+    {
+      SettableMetadata state = createV5SampleMetadata();
+      File file = Paths.get(testPath, "MyStateV7.sbmt").toFile();
+      testSaveAndReloadState(state, file, SERIALIZER_VERSION_7);
+    }
+
+    // Test V8.
+    {
+      SettableMetadata state = createV5SampleMetadata();
+      File file = Paths.get(testPath, "MyStateV8.sbmt").toFile();
+      testSaveAndReloadState(state, file, SERIALIZER_VERSION_8);
+    }
+
+    // Test current version.
+    {
+      SettableMetadata state = createV5SampleMetadata();
+      File file = Paths.get(testPath, "MyState.sbmt").toFile();
+      state = testSaveAndReloadState(state, file, SERIALIZER_VERSION_9);
+
+      SettableMetadata subState = state.get(SAMPLE_SUB_METADATA_KEY);
+
+      // Test some further unpacking.
+      state.get(Key.of("double array"));
+      state.get(Key.of("int array"));
+      state.get(Key.of("Double array"));
+      state.get(Key.of("Integer array"));
+      state.get(Key.of("String array"));
+
+      subState.get(Key.of("longNull"));
+      if (TestEnum.OPTION1 != subState.get(Key.of("testEnum"))) {
+        System.err.println("testEnum value was not option 1");
+      }
+
+      state.get(Key.of("stringSet"));
+
+      if (TestEnum2.OPTION1 != subState.get(Key.of("testEnum2"))) {
+        System.err
+            .println("testEnum2 value was " + subState.get(Key.of("testEnum2")) + ", not option 1");
+      }
+
+      // This fails at runtime. If this were a real key templated on Long it would fail at compile
+      // time.
+      // Float fVal = subState.get(Key.of("long"));
+
+      // This doesn't fail at runtime or compile time but I wish it would:
+      // List<List<Integer>> unpackedListList = state.get(Key.of("listListString"));
+
+      // But the following does fail to compile, which is probably good enough.
+      // unpackedListList = state.get(listListStringKey);
+      // And this fails at runtime, as it should.
+      // System.out.println(unpackedListList.get(1).get(1) * 7);
+
+      // It would be OK if this were to work but it doesn't.
+      // float fVal = subState.get(Key.of("resolution"));
+
+      // This one is supposed to throw an exception.
+      // Short longAsShort = subState.get(Key.of("facets"));
+      // System.err.println("long retrieved as a short is " + longAsShort);
+    }
+
+    // Test compact output. The reloading serializer uses the default (pretty printing) options.
+    {
+      SettableMetadata state = createV4SampleMetadata();
+      File file = Paths.get(testPath, "MyStateCompact.sbmt").toFile();
+      testSaveAndReloadState(state, file, SERIALIZER_VERSION_9,
+          SerializerOptions.of().withPrettyPrinting(false));
+    }
+
+    // Test compact output with a string dictionary, which must be smaller than compact output
+    // without one, and loading part of it using an index, which must include the dictionary.
+    {
+      SettableMetadata state = createV4SampleMetadata();
+      File file = Paths.get(testPath, "MyStateDictionary.sbmt").toFile();
+      testSaveAndReloadState(state, file, SERIALIZER_VERSION_9, SerializerOptions.of()
+          .withPrettyPrinting(false).withStringDictionary(true).withIndex(true));
+
+      long plainLength = Paths.get(testPath, "MyStateCompact.sbmt").toFile().length();
+      System.out.println("Dictionary-encoded output was"
+          + (file.length() < plainLength ? " " : " ******* NOT ******* ") + "found smaller ("
+          + file.length() + " bytes) than compact output (" + plainLength + " bytes)");
+
+      SettableMetadata reloadedState = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      SettableMetadata reloadedSubState = SettableMetadata.of(SAMPLE_SUB_METADATA_VERSION);
+
+      GsonSerializer serializer = GsonSerializer.of();
+      serializer.register(SAMPLE_METADATA_KEY, new TestManager(reloadedState));
+      serializer.register(SAMPLE_SUB_METADATA_KEY, new TestManager(reloadedSubState));
+
+      boolean indexUsed =
+          serializer.loadIndexed(file, ImmutableSet.of(SAMPLE_SUB_METADATA_KEY.getId())) != null;
+      serializer.load(file, ImmutableSet.of(SAMPLE_SUB_METADATA_KEY));
+
+      System.out.println("Partially loaded dictionary-encoded file was"
+          + (indexUsed && reloadedState.getKeys().isEmpty()
+              && state.get(SAMPLE_SUB_METADATA_KEY).equals(reloadedSubState) ? " "
+                  : " ******* NOT ******* ")
+          + "found to contain only the requested state using the index");
+    }
+
+    // Test writing with a dictionary an object whose proxy provides different metadata each time.
+    {
+      TestSampler sampler = new TestSampler(null);
+      Key<TestSampler> samplerKey = Key.of("sampler");
+      SettableMetadata state = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      state.put(samplerKey, sampler);
+
+      File file = Paths.get(testPath, "MyStateSampled.sbmt").toFile();
+      GsonSerializer serializer =
+          GsonSerializer.of(SerializerOptions.of().withStringDictionary(true));
+      serializer.register(SAMPLE_METADATA_KEY, new TestManager(state));
+      serializer.save(file);
+
+      SettableMetadata reloadedState = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      GsonSerializer loader = GsonSerializer.of();
+      loader.register(SAMPLE_METADATA_KEY, new TestManager(reloadedState));
+      loader.load(file);
+
+      System.out.println("Proxy metadata written with a dictionary were"
+          + (sampler.stores == 1 && reloadedState.get(samplerKey).stored.hasKey(Key.of("sample 1"))
+              ? " " : " ******* NOT ******* ")
+          + "found to be provided once");
+    }
+
+    // Test that a Metadata reachable from several places, including from itself, is written in
+    // full only once and is restored as a single instance.
+    {
+      SettableMetadata shared = createV4SampleMetadata().get(SAMPLE_SUB_METADATA_KEY);
+      SettableMetadata cyclic = SettableMetadata.of(SAMPLE_SUB_METADATA_VERSION);
+      cyclic.put(Key.of("self"), cyclic);
+
+      SettableMetadata state = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      state.put(Key.of("first"), shared);
+      state.put(Key.of("second"), shared);
+      state.put(Key.of("list"), ImmutableList.of(shared, cyclic, shared));
+      File file = Paths.get(testPath, "MyStateShared.sbmt").toFile();
+
+      GsonSerializer serializer = GsonSerializer.of();
+      serializer.register(SAMPLE_METADATA_KEY, new TestManager(state));
+      serializer.save(file);
+
+      SettableMetadata reloadedState = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      serializer = GsonSerializer.of();
+      serializer.register(SAMPLE_METADATA_KEY, new TestManager(reloadedState));
+      serializer.load(file);
+
+      Metadata first = reloadedState.get(Key.of("first"));
+      List<Metadata> list = reloadedState.get(Key.of("list"));
+      Metadata reloadedCyclic = list.get(1);
+
+      System.out.println("Reloaded shared instances were"
+          + (shared.equals(first) && first == reloadedState.get(Key.of("second"))
+              && first == list.get(0) && first == list.get(2)
+              && reloadedCyclic == reloadedCyclic.get(Key.of("self")) ? " "
+                  : " ******* NOT ******* ")
+          + "found to be restored as single instances");
+    }
+
+    // Test that the keys of a collection of Metadata with the same keys are written only once.
+    {
+      List<Metadata> records = new ArrayList<>();
+      Map<String, Metadata> recordMap = new LinkedHashMap<>();
+      for (int index = 0; index < 1000; ++index) {
+        SettableMetadata record = SettableMetadata.of(SAMPLE_SUB_METADATA_VERSION);
+        record.put(Key.of("name"), "record " + index);
+        record.put(Key.of("latitude"), index * 0.1);
+        record.put(Key.of("visible"), index % 2 == 0);
+        record.put(Key.of("tags"), index % 3 == 0 ? null : ImmutableList.of("a", "b"));
+        records.add(record);
+        recordMap.put("record " + index, record);
+      }
+      // A repeated record is written as a reference rather than by position.
+      records.add(records.get(0));
+
+      SettableMetadata state = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      state.put(Key.of("records"), records);
+      state.put(Key.of("recordMap"), recordMap);
+
+      File file = Paths.get(testPath, "MyStateShapes.sbmt").toFile();
+      File unsharedFile = Paths.get(testPath, "MyStateShapesV7.sbmt").toFile();
+
+      GsonSerializer serializer = GsonSerializer.of();
+      serializer.register(SAMPLE_METADATA_KEY, new TestManager(state));
+      serializer.save(file);
+      serializer.save(unsharedFile, SERIALIZER_VERSION_7);
+
+      SettableMetadata reloadedState = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      serializer = GsonSerializer.of();
+      serializer.register(SAMPLE_METADATA_KEY, new TestManager(reloadedState));
+      serializer.load(file);
+
+      System.out.println("Reloaded collections of Metadata with shared keys were"
+          + (state.equals(reloadedState) && file.length() < unsharedFile.length() ? " "
+              : " ******* NOT ******* ")
+          + "found equal to original, and smaller (" + file.length()
+          + " bytes) than without shared keys (" + unsharedFile.length() + " bytes)");
+    }
+
+    // Test writing a list of record-like Metadata column by column.
+    {
+      List<Metadata> frames = new ArrayList<>();
+      double[] times = new double[10000];
+      for (int index = 0; index < times.length; ++index) {
+        times[index] = index / 30.;
+
+        SettableMetadata frame = SettableMetadata.of(SAMPLE_SUB_METADATA_VERSION);
+        frame.put(Key.of("time"), times[index]);
+        frame.put(Key.of("x"), Math.cos(times[index]));
+        frame.put(Key.of("y"), Math.sin(times[index]));
+        frame.put(Key.of("z"), index * 1.e-3f);
+        frame.put(Key.of("frame"), index);
+        frame.put(Key.of("counter"), index * 1000000007L);
+        frame.put(Key.of("label"), "frame " + index);
+        frame.put(Key.of("valid"), index % 7 != 0);
+        frames.add(frame);
+      }
+
+      SettableMetadata state = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      state.put(Key.of("frames"), frames);
+      state.put(SAMPLE_SUB_METADATA_KEY, SettableMetadata.of(SAMPLE_SUB_METADATA_VERSION));
+
+      File file = Paths.get(testPath, "MyStateColumns.sbmt").toFile();
+      File rowFile = Paths.get(testPath, "MyStateColumnsV8.sbmt").toFile();
+
+      GsonSerializer serializer = GsonSerializer.of(SerializerOptions.of().withColumns(true));
+      serializer.register(SAMPLE_METADATA_KEY, new TestManager(state));
+      serializer.save(file);
+      serializer.save(rowFile, SERIALIZER_VERSION_8);
+
+      SettableMetadata reloadedState = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      serializer = GsonSerializer.of();
+      serializer.register(SAMPLE_METADATA_KEY, new TestManager(reloadedState));
+      serializer.load(file);
+
+      List<Metadata> reloadedFrames = reloadedState.get(Key.of("frames"));
+      boolean columnar = reloadedFrames instanceof ColumnarMetadataList
+          && Arrays.equals(times,
+              (double[]) ColumnarMetadataList.getColumn(reloadedFrames, Key.of("time")))
+          && Arrays.equals(times,
+              (double[]) ColumnarMetadataList.getColumn(frames, Key.of("time")));
+
+      System.out.println("Reloaded list of Metadata written in columns was"
+          + (state.equals(reloadedState) && columnar && file.length() < rowFile.length() ? " "
+              : " ******* NOT ******* ")
+          + "found equal to original, with columns, and smaller (" + file.length()
+          + " bytes) than written by rows (" + rowFile.length() + " bytes)");
+
+      file = Paths.get(testPath, "MyStateColumnsDictionary.sbmt").toFile();
+      testSaveAndReloadState(state, file, SERIALIZER_VERSION_9,
+          SerializerOptions.of().withStringDictionary(true).withColumns(true));
+
+      // By default, the lists are written row by row and read as lists the managers may modify.
+      file = Paths.get(testPath, "MyStateRows.sbmt").toFile();
+      serializer = GsonSerializer.of();
+      serializer.register(SAMPLE_METADATA_KEY, new TestManager(state));
+      serializer.save(file);
+
+      reloadedState = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      serializer = GsonSerializer.of();
+      serializer.register(SAMPLE_METADATA_KEY, new TestManager(reloadedState));
+      serializer.load(file);
+
+      reloadedFrames = reloadedState.get(Key.of("frames"));
+      boolean modifiable = reloadedFrames instanceof ArrayList
+          && reloadedFrames.get(0) instanceof SettableMetadata;
+
+      System.out.println("Reloaded list of Metadata written by default was"
+          + (state.equals(reloadedState) && modifiable ? " " : " ******* NOT ******* ")
+          + "found equal to original, and modifiable");
+    }
+
+    // Test converting files written by each version to the current version.
+    {
+      File directory = Paths.get(testPath, "convert").toFile();
+      if (directory.exists()) {
+        MoreFiles.deleteRecursively(directory.toPath(), RecursiveDeleteOption.ALLOW_INSECURE);
+      }
+      directory.mkdirs();
+
+      List<File> files = new ArrayList<>();
+      List<Metadata> originals = new ArrayList<>();
+      GsonSerializer serializer = GsonSerializer.of();
+      for (String name : new String[] { "MyStateV1.sbmt", "MyStateV2.sbmt", "MyStateV3.sbmt",
+          "MyStateV4.sbmt", "MyStateV5.sbmt", "MyStateV8.sbmt", "MyStateColumnsV8.sbmt" }) {
+        File file = new File(directory, name);
+        Files.copy(Paths.get(testPath, name).toFile(), file);
+        files.add(file);
+        originals.add(serializer.read(file));
+      }
+      File notMetadataFile = new File(directory, "readme.txt");
+      Files.asCharSink(notMetadataFile, StandardCharsets.UTF_8).write("Not a metadata file\n");
+
+      // Nor is a file holding one metadata file after another, such as a segment data file.
+      File concatenatedFile = new File(directory, "MyStateTwice.sbmt");
+      ByteSource.concat(Files.asByteSource(files.get(4)), Files.asByteSource(files.get(4)))
+          .copyTo(Files.asByteSink(concatenatedFile));
+      long concatenatedLength = concatenatedFile.length();
+
+      // A file whose values are read back as values that are unequal to them fails verification,
+      // as an object stored by a proxy that has no equals method does, and is left as it is.
+      File unverifiableFile = new File(directory, "MyStateUnverifiable.sbmt");
+      SettableMetadata samplerState = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      samplerState.put(Key.of("sampler"), new TestSampler(null));
+      GsonSerializer samplerSerializer = GsonSerializer.of();
+      samplerSerializer.register(SAMPLE_METADATA_KEY, new TestManager(samplerState));
+      samplerSerializer.save(unverifiableFile);
+
+      // Segmented files, journals and snapshot repositories are left as they are.
+      GsonSerializer stateSerializer = GsonSerializer.of(SerializerOptions.of().withSegments(true));
+      stateSerializer.register(SAMPLE_METADATA_KEY, new TestManager(createV5SampleMetadata()));
+      stateSerializer.save(new File(directory, "MyStateSegmented.sbmt"));
+      stateSerializer.saveSnapshot(Paths.get(directory.getPath(), "MyStateSnapshots").toFile());
+      stateSerializer = GsonSerializer.of(SerializerOptions.of().withJournal(true));
+      stateSerializer.register(SAMPLE_METADATA_KEY, new TestManager(createV5SampleMetadata()));
+      stateSerializer.save(new File(directory, "MyStateJournal.sbmt"));
+
+      Map<Path, HashCode> unconvertible = new HashMap<>();
+      try (Stream<Path> paths = java.nio.file.Files.walk(directory.toPath())) {
+        for (Path path : paths.filter(java.nio.file.Files::isRegularFile)
+            .collect(Collectors.toList())) {
+          if (!files.contains(path.toFile()) && !path.toFile().equals(notMetadataFile)
+              && !path.toFile().equals(concatenatedFile)) {
+            unconvertible.put(path, Files.asByteSource(path.toFile()).hash(Hashing.sha256()));
+          }
+        }
+      }
+
+      MetadataFileConverter converter = MetadataFileConverter
+          .of(GsonSerializer.of(SerializerOptions.of().withPrettyPrinting(false)));
+      List<MetadataFileConverter.Conversion> conversions = converter.convertDirectory(directory);
+
+      boolean converted = conversions.size() == files.size() + 3;
+      for (MetadataFileConverter.Conversion conversion : conversions) {
+        // The files that are not metadata files, or fail verification, must be reported as not
+        // converted.
+        converted &= conversion.isConverted() != (conversion.getFile().equals(notMetadataFile)
+            || conversion.getFile().equals(concatenatedFile)
+            || conversion.getFile().equals(unverifiableFile));
+        if (conversion.isConverted()) {
+          System.out.println("  " + conversion);
+        } else if (conversion.getFile().equals(unverifiableFile)) {
+          converted &= conversion.getFailure().getMessage().startsWith("Converted file has");
+        }
+      }
+      for (int index = 0; index < files.size(); ++index) {
+        Metadata original = originals.get(index);
+        Metadata convertedSource = serializer.read(files.get(index));
+        converted &= SERIALIZER_VERSION_9.equals(convertedSource.getVersion())
+            && ImmutableList.copyOf(original.getKeys())
+                .equals(ImmutableList.copyOf(convertedSource.getKeys()));
+        for (Key<?> key : original.getKeys()) {
+          converted &= Objects.equals(original.get(key), convertedSource.get(key));
+        }
+      }
+      converted &= notMetadataFile.length() == "Not a metadata file\n".length()
+          && concatenatedFile.length() == concatenatedLength && unconvertible.size() > 5
+          && !new File(unverifiableFile.getPath() + ".converting").exists();
+      for (Map.Entry<Path, HashCode> entry : unconvertible.entrySet()) {
+        converted &= Files.asByteSource(entry.getKey().toFile()).hash(Hashing.sha256())
+            .equals(entry.getValue());
+      }
+
+      System.out.println("Files of all versions were" + (converted ? " " : " ******* NOT ******* ")
+          + "converted to the current version");
+    }
+
+    // Test saving in segments, so that saving again writes only the segments that changed.
+    {
+      File directory = Paths.get(testPath, "segmented").toFile();
+      directory.mkdirs();
+      for (File oldFile : directory.listFiles()) {
+        oldFile.delete();
+      }
+      File file = new File(directory, "MyStateSegmented.sbmt");
+
+      CounterState original = createCounterState();
+      GsonSerializer serializer =
+          original.register(GsonSerializer.of(SerializerOptions.of().withSegments(true)));
+      serializer.save(file);
+
+      File dataFile = SegmentManifest.dataFileFor(file, 0);
+      long initialLength = dataFile.length();
+
+      original.counter.put(COUNT_KEY, 1);
+      serializer.save(file);
+      long growth = dataFile.length() - initialLength;
+
+      CounterState reloaded = createEmptyCounterState();
+      GsonSerializer loader = reloaded.register(GsonSerializer.of());
+      loader.load(file);
+
+      System.out.println("Reloaded segmented state was"
+          + (original.isEqualTo(reloaded) && growth > 0 && growth < initialLength / 10 ? " "
+              : " ******* NOT ******* ")
+          + "found equal to original, after saving only the changed segment (" + growth
+          + " of " + initialLength + " bytes)");
+
+      // Changing the largest segment repeatedly eventually replaces the data file.
+      for (int index = 0; index < 3; ++index) {
+        original.state.put(Key.of("saveNumber"), index);
+        serializer.save(file);
+      }
+      original.counter.put(COUNT_KEY, 2);
+      serializer.save(file);
+
+      reloaded.counter.clear();
+      loader.load(file, ImmutableSet.of(COUNTER_KEY));
+      boolean partial =
+          original.counter.equals(reloaded.counter) && !original.state.equals(reloaded.state);
+      int generation = SegmentManifest.read(file).getGeneration();
+      loader.load(file);
+
+      System.out.println("Compacted segmented state was"
+          + (partial && generation > 0 && !dataFile.exists()
+              && SegmentManifest.dataFileFor(file, generation).exists()
+              && original.isEqualTo(reloaded) ? " " : " ******* NOT ******* ")
+          + "found equal to original, in data file generation " + generation);
+    }
+
+    // Test saving to a journal, frequently, and compacting it in the background.
+    {
+      File directory = Paths.get(testPath, "journal").toFile();
+      directory.mkdirs();
+      for (File oldFile : directory.listFiles()) {
+        oldFile.delete();
+      }
+      File file = new File(directory, "MyStateJournal.sbmt");
+
+      CounterState original = createCounterState();
+      GsonSerializer serializer = original.register(GsonSerializer.of(
+          SerializerOptions.of().withJournal(true).withJournalCompactionThreshold(300000)));
+      serializer.save(file);
+      long initialLength = file.length();
+
+      for (int count = 1; count <= 20; ++count) {
+        original.counter.put(COUNT_KEY, count);
+        serializer.save(file);
+      }
+      long growth = file.length() - initialLength;
+
+      CounterState reloaded = createEmptyCounterState();
+      GsonSerializer loader = reloaded.register(GsonSerializer.of());
+      loader.load(file);
+
+      System.out.println("Replayed journal state was"
+          + (original.isEqualTo(reloaded) && growth > 0 && growth < initialLength / 10 ? " "
+              : " ******* NOT ******* ")
+          + "found equal to original, after appending 20 records of " + growth / 20
+          + " bytes to " + initialLength + " bytes");
+
+      // Changing the largest value a third time starts a compaction, during which saving
+      // continues.
+      for (int index = 0; index < 3; ++index) {
+        original.state.put(Key.of("saveNumber"), index);
+        serializer.save(file);
+      }
+      for (int count = 21; count <= 30; ++count) {
+        original.counter.put(COUNT_KEY, count);
+        serializer.save(file);
+      }
+      serializer.journals.get(file.getAbsoluteFile()).getCompaction().join();
+      long compactedLength = file.length();
+
+      original.counter.put(COUNT_KEY, 31);
+      serializer.save(file);
+      loader.load(file);
+      boolean compacted =
+          compactedLength < initialLength * 3 / 2 && original.isEqualTo(reloaded);
+
+      // A record left incomplete is ignored, and overwritten by the next save.
+      Files.asByteSink(file, FileWriteMode.APPEND).write(new byte[] { 0, 3, '1', '.' });
+      loader.load(file);
+      compacted &= original.counter.equals(reloaded.counter);
+      original.counter.put(COUNT_KEY, 32);
+      serializer.save(file);
+      loader.load(file);
+      compacted &= original.counter.equals(reloaded.counter);
+
+      System.out.println("Compacted journal state was" + (compacted ? " " : " ******* NOT ******* ")
+          + "found equal to original, after compacting four versions of it to " + compactedLength
+          + " bytes");
+    }
+
+    // Test skipping the store methods of change-aware managers whose state did not change.
+    {
+      CounterState original = createCounterState();
+
+      boolean skipped = true;
+      for (SerializerOptions options : ImmutableList.of(SerializerOptions.of(),
+          SerializerOptions.of().withJournal(true), SerializerOptions.of().withSegments(true))) {
+        File file = Paths.get(testPath, "changeAware", "MyStateChangeAware.sbmt").toFile();
+        file.delete();
+
+        CountingTestManager stateManager = new CountingTestManager(original.state);
+        CountingTestManager counterManager = new CountingTestManager(original.counter);
+        GsonSerializer serializer = GsonSerializer.of(options);
+        serializer.register(SAMPLE_METADATA_KEY, stateManager);
+        serializer.register(SAMPLE_SUB_METADATA_KEY, new TestManager(original.subState));
+        serializer.register(COUNTER_KEY, counterManager);
+        serializer.save(file);
+
+        for (int count = 1; count <= 5; ++count) {
+          counterManager.put(COUNT_KEY, count);
+          serializer.save(file);
+        }
+
+        skipped &= stateManager.storeCount == 1 && counterManager.storeCount == 6
+            && original.isEqualTo(reloadCounterState(file));
+
+        // Retrieving changes the state, so the next save stores it again.
+        serializer.load(file);
+        serializer.save(file);
+        skipped &= stateManager.storeCount == 2 && counterManager.storeCount == 7;
+      }
+
+      System.out.println("Unchanged state was" + (skipped ? " " : " ******* NOT ******* ")
+          + "found to be saved without calling its store method");
     }
 
-    private final String text;
+    // Test reusing the encodings of FixedMetadata that do not change.
+    {
+      Metadata fixedTable = createCalibrationTable(true);
+      Metadata settableTable = createCalibrationTable(false);
+      Key<Metadata> tableKey = Key.of("calibration");
+      Key<Metadata> otherTableKey = Key.of("same calibration");
+
+      boolean identical = true;
+      for (GsonSerializer serializer : ImmutableList.of(
+          GsonSerializer.of(SerializerOptions.of().withPrettyPrinting(false)),
+          BinarySerializer.of())) {
+        List<byte[]> contents = new ArrayList<>();
+        for (Metadata table : ImmutableList.of(settableTable, fixedTable, fixedTable)) {
+          SettableMetadata state = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+          state.put(tableKey, table);
+          state.put(otherTableKey, table);
+
+          File file = Paths.get(testPath, "MyStateFixed.sbmt").toFile();
+          serializer.register(SAMPLE_METADATA_KEY, new TestManager(state));
+          serializer.save(file);
+          serializer.deregister(SAMPLE_METADATA_KEY);
+          contents.add(Files.toByteArray(file));
+
+          SettableMetadata reloadedState = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+          GsonSerializer loader = GsonSerializer.of();
+          loader.register(SAMPLE_METADATA_KEY, new TestManager(reloadedState));
+          loader.load(file);
+          identical &= settableTable.equals(reloadedState.get(tableKey))
+              && settableTable.equals(reloadedState.get(otherTableKey));
+        }
 
-    TestEnum(String text) {
-      this.text = text;
+        identical &= Arrays.equals(contents.get(0), contents.get(1))
+            && Arrays.equals(contents.get(1), contents.get(2));
+      }
+
+      System.out.println("Reused encodings of FixedMetadata were"
+          + (identical ? " " : " ******* NOT ******* ")
+          + "found identical to new encodings of the same values");
     }
 
-    @Override
-    public String toString() {
-      return text;
+    // Test that FixedMetadata holding collections that are modified are encoded again.
+    {
+      Key<List<String>> namesKey = Key.of("names");
+      SettableMetadata settable = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      settable.put(namesKey, new ArrayList<>(ImmutableList.of("a", "b")));
+      // The FixedMetadata shares the list held by the SettableMetadata.
+      List<String> names = settable.get(namesKey);
+      Metadata fixed = FixedMetadata.of(settable);
+      Key<Metadata> fixedKey = Key.of("fixed");
+
+      boolean current = true;
+      for (GsonSerializer serializer : ImmutableList.of(
+          GsonSerializer.of(SerializerOptions.of().withPrettyPrinting(false)),
+          BinarySerializer.of())) {
+        SettableMetadata state = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+        state.put(fixedKey, fixed);
+
+        File file = Paths.get(testPath, "MyStateModifiedFixed.sbmt").toFile();
+        serializer.register(SAMPLE_METADATA_KEY, new TestManager(state));
+        for (String name : ImmutableList.of("c", "d")) {
+          serializer.save(file);
+          names.add(name);
+          serializer.save(file);
+
+          SettableMetadata reloadedState = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+          GsonSerializer loader = GsonSerializer.of();
+          loader.register(SAMPLE_METADATA_KEY, new TestManager(reloadedState));
+          loader.load(file);
+          current &= names.equals(reloadedState.get(fixedKey).get(namesKey));
+        }
+        serializer.deregister(SAMPLE_METADATA_KEY);
+      }
+
+      System.out.println("Modified collections in FixedMetadata were"
+          + (current ? " " : " ******* NOT ******* ") + "found in the saved files");
     }
 
-    @Override
-    public Key<TestEnum> getKey() {
-      return TEST_ENUM_PROXY_KEY;
+    // Test saving and loading a patch holding only the differences from a saved file.
+    {
+      SettableMetadata state = createV5SampleMetadata();
+      SettableMetadata subState = state.get(SAMPLE_SUB_METADATA_KEY);
+      File file = Paths.get(testPath, "patch", "MyStatePatched.sbmt").toFile();
+      File patchFile = Paths.get(testPath, "patch", "MyStatePatched.sbmt.patch").toFile();
+
+      // Remove one key, add one, and change values deep within both Metadata.
+      SettableMetadata newSubState = SettableMetadata.of(subState);
+      newSubState.put(Key.of("tab"), "2");
+      List<String> stringList = newSubState.get(Key.of("stringList"));
+      stringList.remove(0);
+      stringList.add("String3");
+
+      SettableMetadata newState = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      for (Key<?> key : state.getKeys()) {
+        if (!key.getId().equals("Tab Number")) {
+          @SuppressWarnings("unchecked")
+          Key<Object> objectKey = (Key<Object>) key;
+          newState.put(objectKey, state.get(key));
+        }
+      }
+      newState.put(SAMPLE_SUB_METADATA_KEY, newSubState);
+      newState.put(Key.of("added"), "a new value");
+      newState.get(LIST_LIST_STRING_KEY).set(1, ImmutableList.of("X", "y", "z", "w"));
+      Map<Byte, Short> byteShortMap = newState.get(Key.of("byteShortMap"));
+      byteShortMap.remove((byte) 10);
+      byteShortMap.put((byte) 12, (short) 5);
+
+      GsonSerializer serializer = GsonSerializer.of();
+      TestManager stateManager = new TestManager(state);
+      TestManager subStateManager = new TestManager(subState);
+      serializer.register(SAMPLE_METADATA_KEY, stateManager);
+      serializer.register(SAMPLE_SUB_METADATA_KEY, subStateManager);
+      serializer.save(file);
+
+      stateManager.retrieve(newState);
+      subStateManager.retrieve(newSubState);
+      serializer.savePatch(file, patchFile);
+
+      SettableMetadata reloadedState = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      SettableMetadata reloadedSubState = SettableMetadata.of(SAMPLE_SUB_METADATA_VERSION);
+      GsonSerializer loader = GsonSerializer.of();
+      loader.register(SAMPLE_METADATA_KEY, new TestManager(reloadedState));
+      loader.register(SAMPLE_SUB_METADATA_KEY, new TestManager(reloadedSubState));
+      loader.load(file, patchFile);
+
+      MetadataDiff diff = MetadataDiff.of(state, reloadedState);
+      MetadataDiff subDiff = MetadataDiff.of(reloadedSubState, newSubState);
+      boolean patched = newState.equals(reloadedState) && reloadedState.equals(newState)
+          && newSubState.equals(reloadedSubState) && reloadedSubState.equals(newSubState)
+          && diff.isEmpty() && subDiff.isEmpty() && patchFile.length() * 10 < file.length();
+
+      // Apply a diff restored from its representation in both directions.
+      Metadata oldState = loader.read(file).get(SAMPLE_METADATA_KEY);
+      patched &= MetadataDiff.of(MetadataDiff.of(oldState, newState).toMetadata()).apply(oldState)
+          .equals(newState)
+          && MetadataDiff.of(MetadataDiff.of(newState, oldState).toMetadata()).apply(newState)
+              .equals(oldState);
+
+      // A patch may only be loaded with the file against which it was made.
+      serializer.save(file);
+      try {
+        loader.load(file, patchFile);
+        patched = false;
+      } catch (@SuppressWarnings("unused") IOException e) {
+        // Expected.
+      }
+
+      System.out.println("Patched state was" + (patched ? " " : " ******* NOT ******* ")
+          + "found equal to original, from a patch of " + patchFile.length() + " bytes");
     }
 
-    @Override
-    public Metadata store() {
-      return SettableMetadata.of(VERSION).put(NAME, name());
+    // Test reloading only the managers whose state differs from the file.
+    {
+      CounterState original = createCounterState();
+      SettableMetadata state = original.state;
+      SettableMetadata subState = original.subState;
+      SettableMetadata counter = original.counter;
+      Key<SettableMetadata> dependentKey = Key.of("dependent");
+      Key<String> tabKey = Key.of("tab");
+      SettableMetadata dependent = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      dependent.put(Key.of("label"), "depends on the counter");
+      String tab = subState.get(tabKey);
+
+      boolean incremental = true;
+      for (SerializerOptions options : ImmutableList.of(SerializerOptions.of(),
+          SerializerOptions.of().withSegments(true), SerializerOptions.of().withJournal(true))) {
+        File file = Paths.get(testPath, "incremental", "MyStateIncremental.sbmt").toFile();
+        file.delete();
+
+        CountingTestManager stateManager = new CountingTestManager(state);
+        CountingTestManager counterManager = new CountingTestManager(counter);
+        // Unchanged itself, but called whenever the counter is.
+        CountingTestManager dependentManager = new CountingTestManager(dependent);
+        // Loading must never call store methods, including those of managers that are not
+        // change-aware, which are always called to retrieve instead.
+        int[] storeCount = { 0 };
+        GsonSerializer serializer = GsonSerializer.of(options.withIncrementalReload(true));
+        serializer.register(SAMPLE_METADATA_KEY, stateManager);
+        serializer.register(SAMPLE_SUB_METADATA_KEY, new TestManager(subState) {
+          @Override
+          public Metadata store() {
+            ++storeCount[0];
+            return super.store();
+          }
+        });
+        serializer.register(COUNTER_KEY, counterManager);
+        serializer.register(dependentKey, dependentManager, ImmutableList.of(COUNTER_KEY));
+        serializer.save(file);
+        IntSupplier stores = () -> storeCount[0] + stateManager.storeCount
+            + counterManager.storeCount + dependentManager.storeCount;
+        int savedStores = stores.getAsInt();
+
+        // Revert to the saved state after changing the counter and the sub-state.
+        counterManager.put(COUNT_KEY, 1);
+        subState.put(tabKey, tab + " changed");
+        serializer.load(file);
+        incremental &= stateManager.retrieveCount == 0 && counterManager.retrieveCount == 1
+            && dependentManager.retrieveCount == 1 && counter.get(COUNT_KEY) == 0
+            && subState.get(tabKey).equals(tab);
+
+        // Nothing changed since the last load.
+        serializer.load(file);
+        incremental &= stateManager.retrieveCount == 0 && counterManager.retrieveCount == 1
+            && dependentManager.retrieveCount == 1;
+
+        // A file saved by another serializer with different state.
+        File otherFile = Paths.get(testPath, "incremental", "MyStateOther.sbmt").toFile();
+        SettableMetadata otherCounter = SettableMetadata.of(counter);
+        otherCounter.put(COUNT_KEY, 2);
+        GsonSerializer otherSerializer = GsonSerializer.of(options);
+        otherSerializer.register(SAMPLE_METADATA_KEY, new TestManager(state));
+        otherSerializer.register(SAMPLE_SUB_METADATA_KEY, new TestManager(subState));
+        otherSerializer.register(COUNTER_KEY, new TestManager(otherCounter));
+        otherSerializer.register(dependentKey, new TestManager(dependent));
+        otherSerializer.save(otherFile);
+        serializer.load(otherFile);
+        incremental &= stateManager.retrieveCount == 0 && counterManager.retrieveCount == 2
+            && dependentManager.retrieveCount == 2 && counter.get(COUNT_KEY) == 2;
+        incremental &= stores.getAsInt() == savedStores;
+
+        counter.put(COUNT_KEY, 0);
+      }
+
+      System.out.println("Reloaded state was" + (incremental ? " " : " ******* NOT ******* ")
+          + "found to be retrieved only by the managers whose state changed, and their dependents");
     }
-  }
 
-  /**
-   * This enumeration demonstrates how to serialize/deserialize an enumeration without implementing
-   * StorableAsMetadata.
-   */
-  private enum TestEnum2 {
-    OPTION0, OPTION1;
-  }
+    // Test saving snapshots that share the blocks that did not change.
+    {
+      CounterState original = createCounterState();
+      File directory = Paths.get(testPath, "snapshots", "MyStateSnapshots").toFile();
+      if (directory.exists()) {
+        MoreFiles.deleteRecursively(directory.toPath(), RecursiveDeleteOption.ALLOW_INSECURE);
+      }
 
-  private static final Key<TestEnum2> TEST_ENUM2_PROXY_KEY = Key.of("TestEnum2");
+      CountingTestManager counterManager = new CountingTestManager(original.counter);
+      GsonSerializer serializer = GsonSerializer.of();
+      serializer.register(SAMPLE_METADATA_KEY, new TestManager(original.state));
+      serializer.register(SAMPLE_SUB_METADATA_KEY, new TestManager(original.subState));
+      serializer.register(COUNTER_KEY, counterManager);
+
+      List<String> snapshotIds = new ArrayList<>();
+      for (int count = 0; count < 5; ++count) {
+        counterManager.put(COUNT_KEY, count);
+        snapshotIds.add(serializer.saveSnapshot(directory));
+      }
 
-  private static void registerTestEnum2(InstanceGetter instanceGetter) {
-    instanceGetter.register(TEST_ENUM2_PROXY_KEY, metadata -> {
-      return TestEnum2.valueOf(metadata.get(NAME));
-    }, TestEnum2.class, object -> {
-      return SettableMetadata.of(VERSION).put(NAME, object.name());
-    });
-  }
+      // One block for each of the two unchanged values, and one for each count.
+      long numberOfBlocks;
+      Path objects = Paths.get(directory.getPath(), "objects");
+      try (Stream<Path> paths = java.nio.file.Files.walk(objects)) {
+        numberOfBlocks = paths.filter(java.nio.file.Files::isRegularFile).count();
+      }
+      boolean shared = numberOfBlocks == 2 + snapshotIds.size()
+          && getSnapshotIds(directory).equals(snapshotIds);
 
-  private static class TestManager implements MetadataManager {
-    private final SettableMetadata metadata;
+      String headId =
+          Files.asCharSource(new File(directory, "HEAD"), StandardCharsets.UTF_8).read().trim();
+      boolean headed = headId.equals(snapshotIds.get(snapshotIds.size() - 1));
 
-    TestManager(SettableMetadata metadata) {
-      this.metadata = metadata;
-    }
+      for (int count = 0; count < snapshotIds.size(); ++count) {
+        CounterState reloaded = createEmptyCounterState();
+        reloaded.register(GsonSerializer.of()).loadSnapshot(directory, snapshotIds.get(count));
 
-    @Override
-    public Metadata store() {
-      SettableMetadata destination = SettableMetadata.of(metadata.getVersion());
-      for (Key<?> key : metadata.getKeys()) {
-        @SuppressWarnings("unchecked")
-        Key<Object> newKey = (Key<Object>) key;
-        destination.put(newKey, metadata.get(key));
+        shared &= original.state.equals(reloaded.state)
+            && original.subState.equals(reloaded.subState)
+            && reloaded.counter.get(COUNT_KEY) == count;
       }
 
-      return destination;
+      System.out.println("Snapshots were" + (shared && headed ? " " : " ******* NOT ******* ")
+          + "found to share unchanged blocks, to record the newest, and to load as saved");
     }
 
-    @Override
-    public void retrieve(Metadata source) {
-      metadata.clear();
-      for (Key<?> key : source.getKeys()) {
-        Object value = source.get(key);
-        @SuppressWarnings("unchecked")
-        Key<Object> newKey = (Key<Object>) key;
-        metadata.put(newKey, value);
+    // Test calling the managers' store methods concurrently.
+    {
+      SettableMetadata state = createV4SampleMetadata();
+      File file = Paths.get(testPath, "MyStateParallel.sbmt").toFile();
+      testSaveAndReloadState(state, file, SERIALIZER_VERSION_9,
+          SerializerOptions.of().withParallelStore(true));
+    }
+
+    // Test calling the managers' retrieve methods concurrently, respecting dependencies.
+    {
+      SettableMetadata state = createV4SampleMetadata();
+      File file = Paths.get(testPath, "MyStateParallel.sbmt").toFile();
+
+      List<String> retrieved = new ArrayList<>();
+      class OrderedTestManager extends TestManager {
+        private final String name;
+        private final long delay;
+
+        OrderedTestManager(SettableMetadata metadata, String name, long delay) {
+          super(metadata);
+          this.name = name;
+          this.delay = delay;
+        }
+
+        @Override
+        public void retrieve(Metadata source) {
+          try {
+            Thread.sleep(delay);
+          } catch (@SuppressWarnings("unused") InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          super.retrieve(source);
+          synchronized (retrieved) {
+            retrieved.add(name);
+          }
+        }
       }
+
+      SettableMetadata reloadedState = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      SettableMetadata reloadedSubState = SettableMetadata.of(SAMPLE_SUB_METADATA_VERSION);
+
+      GsonSerializer serializer =
+          GsonSerializer.of(SerializerOptions.of().withParallelRetrieve(true));
+      // The state manager is slow, but the sub-state manager must wait for it anyway.
+      serializer.register(SAMPLE_METADATA_KEY,
+          new OrderedTestManager(reloadedState, "state", 100));
+      serializer.register(SAMPLE_SUB_METADATA_KEY,
+          new OrderedTestManager(reloadedSubState, "subState", 0),
+          ImmutableList.of(SAMPLE_METADATA_KEY));
+      serializer.load(file);
+
+      System.out.println("Reloaded state in parallel was"
+          + (state.equals(reloadedState) && state.get(SAMPLE_SUB_METADATA_KEY).equals(
+              reloadedSubState) ? " " : " ******* NOT ******* ")
+          + "found equal to original");
+      System.out.println("Reloaded state in parallel was"
+          + (retrieved.equals(ImmutableList.of("state", "subState")) ? " "
+              : " ******* NOT ******* ")
+          + "retrieved in dependency order");
     }
 
-  }
+    // Test loading only some of the keys, from current and older files.
+    for (String fileName : ImmutableList.of("MyState.sbmt", "MyStateV2.sbmt")) {
+      File file = Paths.get(testPath, fileName).toFile();
 
-  // These are all just fodder for test cases, These version numbers have nothing to do with the
-  // version of
-  // the serializer.
-  private static final Version SAMPLE_METADATA_VERSION = Version.of(1, 0);
-  private static final Version SAMPLE_SUB_METADATA_VERSION = Version.of(3, 1);
-  private static final String SUB_METADATA_ID = "Bennu / V3";
-  private static final Key<SettableMetadata> SAMPLE_METADATA_KEY = Key.of("testState");
-  private static final Key<SettableMetadata> SAMPLE_SUB_METADATA_KEY = Key.of(SUB_METADATA_ID);
-  private static final Key<List<List<String>>> LIST_LIST_STRING_KEY = Key.of("listListString");
+      SettableMetadata reloadedState = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      SettableMetadata reloadedSubState = SettableMetadata.of(SAMPLE_SUB_METADATA_VERSION);
 
-  public static void main(String[] args) throws IOException {
-    TestEnum.register(InstanceGetter.defaultInstanceGetter());
-    registerTestEnum2(InstanceGetter.defaultInstanceGetter());
+      GsonSerializer serializer = GsonSerializer.of();
+      serializer.register(SAMPLE_METADATA_KEY, new TestManager(reloadedState));
+      serializer.register(SAMPLE_SUB_METADATA_KEY, new TestManager(reloadedSubState));
+      serializer.load(file, ImmutableSet.of(SAMPLE_SUB_METADATA_KEY));
 
-    // Test failure when trying to serialize something that can't be serialized.
+      Map<String, FixedMetadata> deserialized =
+          Serializers.deserialize(file, ImmutableSet.of(SUB_METADATA_ID, "noSuchId"));
+
+      SettableMetadata expectedSubState = (fileName.equals("MyState.sbmt")
+          ? createV4SampleMetadata() : createV2SampleMetadata()).get(SAMPLE_SUB_METADATA_KEY);
+
+      System.out.println("Partially loaded " + fileName + " was"
+          + (reloadedState.getKeys().isEmpty() && expectedSubState.equals(reloadedSubState)
+              && deserialized.keySet().equals(ImmutableSet.of(SUB_METADATA_ID)) ? " "
+                  : " ******* NOT ******* ")
+          + "found to contain only the requested state");
+    }
+
+    // Test loading only some of the keys using an index, and falling back when it is stale.
     {
-      class UnserializableObject {
+      SettableMetadata state = createV4SampleMetadata();
+      File file = Paths.get(testPath, "MyStateIndexed.sbmt").toFile();
+      testSaveAndReloadState(state, file, SERIALIZER_VERSION_9,
+          SerializerOptions.of().withIndex(true));
+
+      SettableMetadata expectedSubState = state.get(SAMPLE_SUB_METADATA_KEY);
+      for (boolean stale : new boolean[] { false, true }) {
+        if (stale) {
+          file.setLastModified(file.lastModified() - 10000);
+        }
 
-      };
+        SettableMetadata reloadedState = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+        SettableMetadata reloadedSubState = SettableMetadata.of(SAMPLE_SUB_METADATA_VERSION);
 
-      UnserializableObject unserializableObject = new UnserializableObject();
+        GsonSerializer serializer = GsonSerializer.of();
+        serializer.register(SAMPLE_METADATA_KEY, new TestManager(reloadedState));
+        serializer.register(SAMPLE_SUB_METADATA_KEY, new TestManager(reloadedSubState));
 
-      try {
-        SettableMetadata.of(SAMPLE_METADATA_VERSION).put(Key.of("unserializable"),
-            unserializableObject);
-        System.err.println("Saving an unserializable object did not throw an exception");
-      } catch (@SuppressWarnings("unused") IllegalArgumentException e) {
-        // This is as it should be.
+        boolean indexUsed = serializer.loadIndexed(file,
+            ImmutableSet.of(SAMPLE_SUB_METADATA_KEY.getId())) != null;
+        serializer.load(file, ImmutableSet.of(SAMPLE_SUB_METADATA_KEY));
+
+        System.out.println("Partially loaded " + (stale ? "stale " : "") + "indexed file was"
+            + (indexUsed != stale && reloadedState.getKeys().isEmpty()
+                && expectedSubState.equals(reloadedSubState) ? " " : " ******* NOT ******* ")
+            + "found to contain only the requested state " + (stale ? "without" : "using")
+            + " the index");
       }
     }
 
-    // Test V1.
-    String testPath = Paths.get(System.getProperty("user.home"), "Downloads").toString();
+    // Test asynchronous save.
     {
-      SettableMetadata state = createV1SampleMetadata();
-      File file = Paths.get(testPath, "MyStateV1.sbmt").toFile();
-      testSaveAndReloadState(state, file, SERIALIZER_VERSION_1);
+      SettableMetadata state = createV4SampleMetadata();
+      File file = Paths.get(testPath, "MyStateAsync.sbmt").toFile();
+
+      GsonSerializer serializer = GsonSerializer.of();
+      serializer.register(SAMPLE_METADATA_KEY, new TestManager(state));
+      serializer.saveAsync(file).join();
+
+      SettableMetadata reloadedState = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      serializer = GsonSerializer.of();
+      serializer.register(SAMPLE_METADATA_KEY, new TestManager(reloadedState));
+      serializer.load(file);
+
+      System.out.println("Reloaded asynchronously saved state was"
+          + (state.equals(reloadedState) ? " " : " ******* NOT ******* ") + "found equal to original");
+
+      // A save requested after an asynchronous save that has yet to run is written after it.
+      boolean ordered = true;
+      for (SerializerOptions options : ImmutableList.of(SerializerOptions.of(),
+          SerializerOptions.of().withSegments(true), SerializerOptions.of().withJournal(true))) {
+        File orderedFile = Paths.get(testPath, "ordered", "MyStateOrdered.sbmt").toFile();
+        orderedFile.delete();
+
+        SettableMetadata counter = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+        serializer = GsonSerializer.of(options);
+        serializer.register(COUNTER_KEY, new TestManager(counter));
+
+        // The asynchronous save is held back until after the second save has been requested.
+        CompletableFuture<Void> delay = new CompletableFuture<>();
+        counter.put(COUNT_KEY, 1);
+        CompletableFuture<Void> asyncSave =
+            serializer.saveAsync(orderedFile, command -> delay.thenRun(command));
+        CompletableFuture.runAsync(() -> {
+          try {
+            Thread.sleep(200);
+          } catch (@SuppressWarnings("unused") InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          delay.complete(null);
+        });
+        counter.put(COUNT_KEY, 2);
+        serializer.save(orderedFile);
+        asyncSave.join();
+
+        SettableMetadata reloadedCounter = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+        GsonSerializer loader = GsonSerializer.of();
+        loader.register(COUNTER_KEY, new TestManager(reloadedCounter));
+        loader.load(orderedFile);
+        ordered &= reloadedCounter.get(COUNT_KEY) == 2;
+      }
+
+      System.out.println("State saved after a pending asynchronous save was"
+          + (ordered ? " " : " ******* NOT ******* ") + "found to be the state kept");
     }
 
-    // Test V2.
-    {
-      SettableMetadata state = createV2SampleMetadata();
-      File file = Paths.get(testPath, "MyStateV2.sbmt").toFile();
-      testSaveAndReloadState(state, file, SERIALIZER_VERSION_2);
+    // Test compressed output. The reloading serializer must detect the compression.
+    for (CompressionCodec codec : CompressionCodecs.getCodecs()) {
+      SettableMetadata state = createV4SampleMetadata();
+      File file = Paths.get(testPath, "MyState." + codec.getName() + ".sbmt").toFile();
+      testSaveAndReloadState(state, file, SERIALIZER_VERSION_9,
+          SerializerOptions.of().withCompression(codec));
     }
 
-    // Test V3.
+    // Test that codecs whose magic numbers could start content that is not compressed are refused.
     {
-      SettableMetadata state = createV3SampleMetadata();
-      File file = Paths.get(testPath, "MyStateV3.sbmt").toFile();
-      testSaveAndReloadState(state, file, SERIALIZER_VERSION_3);
+      boolean refused = true;
+      for (String magic : ImmutableList.of("{\"", " {", "\n", "JSQ", "JSQB1", "JSQJ")) {
+        CompressionCodec none = CompressionCodecs.none();
+        byte[] magicBytes = magic.getBytes(StandardCharsets.UTF_8);
+        try {
+          CompressionCodecs.register(new CompressionCodec() {
+
+            @Override
+            public String getName() {
+              return "refused " + magic;
+            }
+
+            @Override
+            public byte[] getMagic() {
+              return magicBytes;
+            }
+
+            @Override
+            public OutputStream compress(OutputStream out) throws IOException {
+              return none.compress(out);
+            }
+
+            @Override
+            public InputStream decompress(InputStream in) throws IOException {
+              return none.decompress(in);
+            }
+
+          });
+          refused = false;
+        } catch (IllegalArgumentException e) {
+          // Expected.
+        }
+      }
+
+      System.out.println("Codecs whose magic numbers could start uncompressed content were"
+          + (refused ? " " : " ******* NOT ******* ") + "found to be refused");
     }
 
-    // Test current version.
+    // Test binary output, which any serializer must be able to load.
+    for (CompressionCodec codec : ImmutableList.of(CompressionCodecs.none(),
+        CompressionCodecs.gzip())) {
+      SettableMetadata state = createV5SampleMetadata();
+      SettableMetadata subState = state.get(SAMPLE_SUB_METADATA_KEY);
+      File file = Paths.get(testPath, "MyState." + codec.getName() + ".sbmb").toFile();
+
+      GsonSerializer serializer =
+          BinarySerializer.of(SerializerOptions.of().withCompression(codec));
+      serializer.register(SAMPLE_METADATA_KEY, new TestManager(state));
+      serializer.register(SAMPLE_SUB_METADATA_KEY, new TestManager(subState));
+      serializer.save(file);
+
+      SettableMetadata reloadedState = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      SettableMetadata reloadedSubState = SettableMetadata.of(SAMPLE_SUB_METADATA_VERSION);
+      serializer = GsonSerializer.of();
+      serializer.register(SAMPLE_METADATA_KEY, new TestManager(reloadedState));
+      serializer.register(SAMPLE_SUB_METADATA_KEY, new TestManager(reloadedSubState));
+      serializer.load(file);
+
+      System.out.println("Reloaded " + codec.getName() + " binary state was"
+          + (state.equals(reloadedState) && subState.equals(reloadedSubState) ? " "
+              : " ******* NOT ******* ")
+          + "found equal to original");
+
+      reloadedState = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      reloadedSubState = SettableMetadata.of(SAMPLE_SUB_METADATA_VERSION);
+      serializer = BinarySerializer.of();
+      serializer.register(SAMPLE_METADATA_KEY, new TestManager(reloadedState));
+      serializer.register(SAMPLE_SUB_METADATA_KEY, new TestManager(reloadedSubState));
+      serializer.load(file, ImmutableSet.of(SAMPLE_SUB_METADATA_KEY));
+
+      System.out.println("Partially loaded " + codec.getName() + " binary file was"
+          + (reloadedState.getKeys().isEmpty() && subState.equals(reloadedSubState) ? " "
+              : " ******* NOT ******* ")
+          + "found to contain only the requested state");
+    }
+
+    // Test memory-mapped loading of an uncompressed binary file.
     {
-      SettableMetadata state = createV4SampleMetadata();
-      File file = Paths.get(testPath, "MyState.sbmt").toFile();
-      state = testSaveAndReloadState(state, file, SERIALIZER_VERSION_4);
+      SettableMetadata state = createV5SampleMetadata();
+      File file = Paths.get(testPath, "MyStateMapped.sbmb").toFile();
 
-      SettableMetadata subState = state.get(SAMPLE_SUB_METADATA_KEY);
+      GsonSerializer serializer = BinarySerializer.of();
+      serializer.register(SAMPLE_METADATA_KEY, new TestManager(state));
+      serializer.save(file);
 
-      // Test some further unpacking.
-      state.get(Key.of("double array"));
-      state.get(Key.of("int array"));
-      state.get(Key.of("Double array"));
-      state.get(Key.of("Integer array"));
-      state.get(Key.of("String array"));
+      Metadata[] mappedState = new Metadata[1];
+      serializer = BinarySerializer.of(SerializerOptions.of().withMemoryMapping(true));
+      serializer.register(SAMPLE_METADATA_KEY, new MetadataManager() {
 
-      subState.get(Key.of("longNull"));
-      if (TestEnum.OPTION1 != subState.get(Key.of("testEnum"))) {
-        System.err.println("testEnum value was not option 1");
-      }
+        @Override
+        public Metadata store() {
+          throw new UnsupportedOperationException();
+        }
 
-      state.get(Key.of("stringSet"));
+        @Override
+        public void retrieve(Metadata source) {
+          mappedState[0] = source;
+        }
 
-      if (TestEnum2.OPTION1 != subState.get(Key.of("testEnum2"))) {
-        System.err
-            .println("testEnum2 value was " + subState.get(Key.of("testEnum2")) + ", not option 1");
-      }
+      });
+      serializer.load(file);
 
-      // This fails at runtime. If this were a real key templated on Long it would fail at compile
-      // time.
-      // Float fVal = subState.get(Key.of("long"));
+      Key<double[]> arrayKey = Key.of("large double array");
+      boolean mapped = mappedState[0] instanceof MappedMetadata
+          && ((MappedMetadata) mappedState[0]).isMapped(arrayKey);
+      boolean viewed = DoubleBuffer.wrap(state.get(arrayKey))
+          .equals(MappedMetadata.getView(mappedState[0], arrayKey));
 
-      // This doesn't fail at runtime or compile time but I wish it would:
-      // List<List<Integer>> unpackedListList = state.get(Key.of("listListString"));
+      System.out.println("Memory-mapped state was"
+          + (mapped && viewed && mappedState[0].equals(state) ? " " : " ******* NOT ******* ")
+          + "found equal to original without copying its arrays until needed");
 
-      // But the following does fail to compile, which is probably good enough.
-      // unpackedListList = state.get(listListStringKey);
-      // And this fails at runtime, as it should.
-      // System.out.println(unpackedListList.get(1).get(1) * 7);
+      // Saving the mapped state over the file it is mapped from replaces the file rather than
+      // truncating it, so the mapped arrays remain readable while they are written.
+      serializer = BinarySerializer.of(SerializerOptions.of().withMemoryMapping(true));
+      serializer.register(SAMPLE_METADATA_KEY, new MetadataManager() {
 
-      // It would be OK if this were to work but it doesn't.
-      // float fVal = subState.get(Key.of("resolution"));
+        @Override
+        public Metadata store() {
+          return mappedState[0];
+        }
 
-      // This one is supposed to throw an exception.
-      // Short longAsShort = subState.get(Key.of("facets"));
-      // System.err.println("long retrieved as a short is " + longAsShort);
+        @Override
+        public void retrieve(Metadata source) {
+          mappedState[0] = source;
+        }
+
+      });
+      serializer.load(file);
+      serializer.save(file);
+
+      SettableMetadata reloadedState = SettableMetadata.of(SAMPLE_METADATA_VERSION);
+      serializer = BinarySerializer.of();
+      serializer.register(SAMPLE_METADATA_KEY, new TestManager(reloadedState));
+      serializer.load(file);
+
+      System.out.println("Memory-mapped state saved over its own file was"
+          + (reloadedState.equals(state) && mappedState[0].equals(state) ? " "
+              : " ******* NOT ******* ")
+          + "found equal to original");
     }
 
   }
@@ -742,19 +3262,122 @@ public class GsonSerializer implements Serializer {
     return state;
   }
 
+  private static SettableMetadata createV5SampleMetadata() {
+    SettableMetadata state = createV4SampleMetadata();
+
+    // Starting in V5, arrays of primitive numbers are written as blocks of raw bytes, which must
+    // preserve every value exactly.
+    double[] doubleArray = new double[10000];
+    for (int index = 0; index < doubleArray.length; ++index) {
+      doubleArray[index] = Math.sin(index) * 1.e10;
+    }
+    doubleArray[1] = Double.NaN;
+    doubleArray[2] = Double.NEGATIVE_INFINITY;
+    doubleArray[3] = -0.;
+    doubleArray[4] = Double.MIN_VALUE;
+    state.put(Key.of("large double array"), doubleArray);
+    state.put(Key.of("float array"), new float[] { 1.5f, Float.NaN, -Float.MAX_VALUE });
+    state.put(Key.of("long array"), new long[] { Long.MIN_VALUE, -1L, Long.MAX_VALUE });
+    state.put(Key.of("short array"), new short[] { Short.MIN_VALUE, 0, Short.MAX_VALUE });
+    state.put(Key.of("byte array"), new byte[] { Byte.MIN_VALUE, 0, Byte.MAX_VALUE });
+    state.put(Key.of("empty int array"), new int[0]);
+
+    return state;
+  }
+
+  /**
+   * Create a large table of reference data that does not change once created, either as
+   * FixedMetadata, or as equivalent SettableMetadata.
+   */
+  private static Metadata createCalibrationTable(boolean fixed) {
+    Version version = Version.of(2, 1);
+
+    // Only immutable collections are treated as never changing.
+    ImmutableList.Builder<Metadata> bands = ImmutableList.builder();
+    for (int index = 0; index < 50; ++index) {
+      SettableMetadata band = SettableMetadata.of(version);
+      band.put(Key.of("name"), "band " + index);
+      band.put(Key.of("gain"), 1. + index / 64.);
+      band.put(Key.of("offsets"), ImmutableList.of((double) index, (double) -index, 0.5 * index));
+      bands.add(fixed ? FixedMetadata.of(band) : band);
+    }
+
+    ImmutableList.Builder<Double> response = ImmutableList.builder();
+    for (int index = 0; index < 20000; ++index) {
+      response.add(Math.cos(index) * 1.e-3);
+    }
+
+    SettableMetadata detector = SettableMetadata.of(version);
+    detector.put(Key.of("rows"), 1024);
+    detector.put(Key.of("columns"), 2048);
+
+    SettableMetadata table = SettableMetadata.of(version);
+    table.put(Key.of("instrument"), "imager");
+    table.put(Key.of("response"), response.build());
+    table.put(Key.of("bands"), bands.build());
+    table.put(Key.of("detector"), fixed ? FixedMetadata.of(detector) : detector);
+
+    return fixed ? FixedMetadata.of(table) : table;
+  }
+
+  /**
+   * Write the same file as {@link #save(File, Version)}, but using Gson's tree model, which builds
+   * the complete JSON representation of the state in memory before writing it. This is how
+   * versions 3 and 4 were originally written, so the output of the streaming encoder is checked
+   * against it.
+   */
+  private static void saveTreeModel(GsonSerializer serializer, File file, Version version)
+      throws IOException {
+    Gson gson = serializer.configureGson(version);
+    try (Writer fileWriter = serializer.newWriter(file)) {
+      try (JsonWriter jsonWriter = serializer.newJsonWriter(gson, fileWriter)) {
+
+        SettableMetadata metaMetadata = serializer.storeMetaMetadata(version);
+
+        gson.toJson(metaMetadata, DataTypeInfo.METADATA.getType(), jsonWriter);
+
+        fileWriter.write('\n');
+      }
+    }
+  }
+
   private static SettableMetadata testSaveAndReloadState(SettableMetadata originalState, File file,
       Version saveVersion) throws IOException {
+    return testSaveAndReloadState(originalState, file, saveVersion, SerializerOptions.of());
+  }
+
+  private static SettableMetadata testSaveAndReloadState(SettableMetadata originalState, File file,
+      Version saveVersion, SerializerOptions saveOptions) throws IOException {
     SettableMetadata originalSubState = originalState.get(SAMPLE_SUB_METADATA_KEY);
 
     {
       TestManager stateManager = new TestManager(originalState);
       TestManager subStateManager = new TestManager(originalSubState);
 
-      GsonSerializer serializer = GsonSerializer.of();
+      GsonSerializer serializer = GsonSerializer.of(saveOptions);
       serializer.register(SAMPLE_METADATA_KEY, stateManager);
       serializer.register(SAMPLE_SUB_METADATA_KEY, subStateManager);
 
       serializer.save(file, saveVersion);
+
+      // The tree model does not support dictionaries.
+      if (SERIALIZER_VERSION_3.compareTo(saveVersion) <= 0 && !saveOptions.isDictionaryEncoded()) {
+        File treeFile = new File(file.getPath() + ".tree");
+        saveTreeModel(serializer, treeFile, saveVersion);
+
+        if (SERIALIZER_VERSION_7.compareTo(saveVersion) > 0) {
+          boolean identical = Files.equal(file, treeFile);
+          System.out.println("Streamed " + saveVersion + " output was"
+              + (identical ? " " : " ******* NOT ******* ")
+              + "found identical to tree model output");
+        } else {
+          // The tree model writes every occurrence of a shared instance in full.
+          boolean smaller = file.length() < treeFile.length();
+          System.out.println("Streamed " + saveVersion + " output was"
+              + (smaller ? " " : " ******* NOT ******* ")
+              + "found smaller than tree model output without references");
+        }
+      }
     }
 
     {
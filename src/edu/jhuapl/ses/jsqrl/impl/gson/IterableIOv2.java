@@ -76,10 +76,14 @@ abstract class IterableIOv2 implements JsonSerializer<Iterable<?>> {
   private static final String VALUE_KEY = "value";
   private static final Key<?> PRIVATE_NULL_KEY = Key.of("PRIVATE NULL KEY");
 
-  @Override
-  public JsonElement serialize(Iterable<?> src, @SuppressWarnings("unused") Type typeOfSrc,
-      JsonSerializationContext context) {
-
+  /**
+   * Make the first pass over the supplied iterable, determining whether all the items have the same
+   * type, and whether the Metadata items share a common version.
+   * 
+   * @param src the items to be encoded
+   * @return the summary of type information to be written with the items
+   */
+  static ValueTypeSummary summarize(Iterable<?> src) {
     // First pass: if any entries are found, determine types of key and value based on the type of
     // the first non-null element.
     // Note that although iterableTypeInfo and iterableTypeKey are very similar, there are nuances
@@ -127,9 +131,25 @@ abstract class IterableIOv2 implements JsonSerializer<Iterable<?>> {
       iterableTypeKey = null;
     }
 
+    String iterableTypeId = null;
+    if (sameType) {
+      iterableTypeId =
+          iterableTypeKey != null ? iterableTypeKey.getId() : iterableTypeInfo.getTypeId();
+    }
+
     // Extract metadata version, if any.
     Version commonVersion = getCommonVersion(src);
-    boolean excludeMetadataVersionInValues = commonVersion != null;
+
+    return new ValueTypeSummary(null, iterableTypeId, commonVersion);
+  }
+
+  @Override
+  public JsonElement serialize(Iterable<?> src, @SuppressWarnings("unused") Type typeOfSrc,
+      JsonSerializationContext context) {
+
+    ValueTypeSummary summary = summarize(src);
+    boolean sameType = summary.isSameValueType();
+    boolean excludeMetadataVersionInValues = summary.excludeMetadataVersionInValues();
 
     // Second pass: write items, either with or without their types depending on whether they are
     // the same.
@@ -144,12 +164,10 @@ abstract class IterableIOv2 implements JsonSerializer<Iterable<?>> {
     // Put iterable metadata and data into the resultant object.
     JsonObject result = new JsonObject();
     if (sameType) {
-      String iterableTypeId =
-          iterableTypeKey != null ? iterableTypeKey.getId() : iterableTypeInfo.getTypeId();
-      GsonElement.encodeTypeInfo(iterableTypeId, result);
+      GsonElement.encodeTypeInfo(summary.getValueTypeId(), result);
     }
     if (excludeMetadataVersionInValues) {
-      MetadataIOv2.encodeVersion(commonVersion, result);
+      MetadataIOv2.encodeVersion(summary.getCommonVersion(), result);
     }
     result.add(VALUE_KEY, jsonArray);
 
@@ -48,11 +48,15 @@ abstract class MapBaseIOv2 implements JsonSerializer<Map<?, ?>> {
 
   }
 
-  @Override
-  public JsonElement serialize(Map<?, ?> src, @SuppressWarnings("unused") Type typeOfSrc,
-      JsonSerializationContext context) {
+  /**
+   * Make the first pass over the supplied map, determining the type of the keys, whether all the
+   * values have the same type, and whether the Metadata values share a common version.
+   * 
+   * @param src the map to be encoded
+   * @return the summary of type information to be written with the map
+   */
+  static ValueTypeSummary summarize(Map<?, ?> src) {
     Preconditions.checkNotNull(src);
-    Preconditions.checkNotNull(context);
 
     Set<?> keys = src.keySet();
 
@@ -115,9 +119,28 @@ abstract class MapBaseIOv2 implements JsonSerializer<Map<?, ?>> {
       mapValueTypeKey = null;
     }
 
+    String mapValueTypeId = null;
+    if (sameValueType) {
+      mapValueTypeId = mapValueTypeKey != null ? mapValueTypeKey.getId() : mapValueInfo.getTypeId();
+    }
+
     // Extract metadata version, if any.
     Version commonVersion = IterableIOv2.getCommonVersion(values);
-    boolean excludeMetadataVersionInValues = commonVersion != null;
+
+    return new ValueTypeSummary(mapKeyInfo, mapValueTypeId, commonVersion);
+  }
+
+  @Override
+  public JsonElement serialize(Map<?, ?> src, @SuppressWarnings("unused") Type typeOfSrc,
+      JsonSerializationContext context) {
+    Preconditions.checkNotNull(src);
+    Preconditions.checkNotNull(context);
+
+    Set<?> keys = src.keySet();
+
+    ValueTypeSummary summary = summarize(src);
+    boolean sameValueType = summary.isSameValueType();
+    boolean excludeMetadataVersionInValues = summary.excludeMetadataVersionInValues();
 
     // Second pass: write the map entries to a JsonObject.
     JsonObject encodedMap = new JsonObject();
@@ -135,14 +158,12 @@ abstract class MapBaseIOv2 implements JsonSerializer<Map<?, ?>> {
     // Put type information about key and value, along with the map entries
     // into the resultant object.
     JsonObject result = new JsonObject();
-    result.addProperty(KEY_TYPE_KEY, mapKeyInfo.getTypeId());
+    result.addProperty(KEY_TYPE_KEY, summary.getKeyInfo().getTypeId());
     if (sameValueType) {
-      String mapValueTypeId =
-          mapValueTypeKey != null ? mapValueTypeKey.getId() : mapValueInfo.getTypeId();
-      GsonElement.encodeTypeInfo(mapValueTypeId, result);
+      GsonElement.encodeTypeInfo(summary.getValueTypeId(), result);
     }
     if (excludeMetadataVersionInValues) {
-      MetadataIOv2.encodeVersion(commonVersion, result);
+      MetadataIOv2.encodeVersion(summary.getCommonVersion(), result);
     }
     result.add(VALUE_KEY, encodedMap);
 
@@ -0,0 +1,325 @@
+package edu.jhuapl.ses.jsqrl.impl.gson;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import edu.jhuapl.ses.jsqrl.api.Key;
+import edu.jhuapl.ses.jsqrl.api.Metadata;
+import edu.jhuapl.ses.jsqrl.api.Version;
+import edu.jhuapl.ses.jsqrl.impl.gson.Serializers.Format;
+
+/**
+ * Rewrites files saved by any version of {@link GsonSerializer} or
+ * {@link edu.jhuapl.ses.jsqrl.impl.binary.BinarySerializer} in the format and with the options of a
+ * target serializer, for example to convert archived files to the newest JSON format, which loads
+ * much faster than the older formats, or to the binary format.
+ * <p>
+ * Each file is written to a temporary file next to it, which is then read back and compared with
+ * the metadata read from the original file. The original is replaced only if they are equal, so a
+ * file that cannot be read, or that does not survive the round trip, is left unchanged. As when
+ * loading, files that contain proxied objects can only be read once the types of those objects
+ * have been registered with the {@link edu.jhuapl.ses.jsqrl.impl.InstanceGetter}.
+ * <p>
+ * Converting a directory converts its files concurrently. Files must not be loaded or saved by
+ * anything else while they are being converted.
+ */
+public final class MetadataFileConverter {
+
+  private static final String TEMPORARY_FILE_SUFFIX = ".converting";
+
+  /**
+   * Outcome of converting one file.
+   */
+  public static final class Conversion {
+    private final File file;
+    private final Version sourceVersion;
+    private final long sourceLength;
+    private final long convertedLength;
+    private final long nanoseconds;
+    private final Exception failure;
+
+    private Conversion(File file, Version sourceVersion, long sourceLength, long convertedLength,
+        long nanoseconds, Exception failure) {
+      this.file = file;
+      this.sourceVersion = sourceVersion;
+      this.sourceLength = sourceLength;
+      this.convertedLength = convertedLength;
+      this.nanoseconds = nanoseconds;
+      this.failure = failure;
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    /**
+     * @return true if the file was replaced by the converted file
+     */
+    public boolean isConverted() {
+      return failure == null;
+    }
+
+    /**
+     * @return the version of the outermost Metadata read from the original file, which is 0.0 for
+     *         files written before serializer version 3, or null if the file could not be read
+     */
+    public Version getSourceVersion() {
+      return sourceVersion;
+    }
+
+    /**
+     * @return the length in bytes of the original file
+     */
+    public long getSourceLength() {
+      return sourceLength;
+    }
+
+    /**
+     * @return the length in bytes of the converted file, or -1 if it was not written
+     */
+    public long getConvertedLength() {
+      return convertedLength;
+    }
+
+    /**
+     * @return the time taken to read, write and verify the file
+     */
+    public long getNanoseconds() {
+      return nanoseconds;
+    }
+
+    /**
+     * @return the reason the file was not converted, or null if it was
+     */
+    public Exception getFailure() {
+      return failure;
+    }
+
+    @Override
+    public String toString() {
+      if (failure != null) {
+        return file + ": NOT converted: " + failure.getMessage();
+      }
+
+      return String.format("%s: version %s, %d -> %d bytes (%+.1f%%), %d ms", file, sourceVersion,
+          sourceLength, convertedLength, percentChange(sourceLength, convertedLength),
+          nanoseconds / 1000000);
+    }
+
+  }
+
+  public static MetadataFileConverter of(GsonSerializer serializer) {
+    return of(serializer, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * @param serializer the serializer whose format and options are used to write the files. Its
+   *        registered managers, if any, are not used
+   * @param executor the executor that converts the files of a directory concurrently
+   * @return the converter
+   */
+  public static MetadataFileConverter of(GsonSerializer serializer, Executor executor) {
+    Preconditions.checkNotNull(serializer);
+    Preconditions.checkNotNull(executor);
+
+    return new MetadataFileConverter(serializer, executor);
+  }
+
+  private final GsonSerializer serializer;
+  private final Executor executor;
+
+  private MetadataFileConverter(GsonSerializer serializer, Executor executor) {
+    this.serializer = serializer;
+    this.executor = executor;
+  }
+
+  /**
+   * Convert all the files in the supplied directory and its subdirectories, except for index
+   * files, and for segmented files, journals and snapshot repositories, whose files refer to each
+   * other by offsets and hashes, and so cannot be converted one at a time. Files that are not
+   * metadata files are reported as not converted.
+   *
+   * @param directory the directory
+   * @return the outcome for each file, in the order in which the files were found
+   * @throws IOException if the directory cannot be listed
+   */
+  public ImmutableList<Conversion> convertDirectory(File directory) throws IOException {
+    Preconditions.checkArgument(directory.isDirectory(), "%s is not a directory", directory);
+
+    List<File> files = new ArrayList<>();
+    Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        return SnapshotRepository.isRepository(dir.toFile()) ? FileVisitResult.SKIP_SUBTREE
+            : FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        if (attrs.isRegularFile() && isConvertible(file.toFile())) {
+          files.add(file.toFile());
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+    });
+
+    List<CompletableFuture<Conversion>> futures = new ArrayList<>(files.size());
+    for (File file : files) {
+      futures.add(CompletableFuture.supplyAsync(() -> convert(file), executor));
+    }
+
+    ImmutableList.Builder<Conversion> result = ImmutableList.builder();
+    for (CompletableFuture<Conversion> future : futures) {
+      result.add(future.join());
+    }
+
+    return result.build();
+  }
+
+  /**
+   * Convert one file. This never throws: failures are reported in the result.
+   *
+   * @param file the file
+   * @return the outcome
+   */
+  public Conversion convert(File file) {
+    Preconditions.checkNotNull(file);
+
+    long start = System.nanoTime();
+    long sourceLength = file.length();
+    File temporaryFile = new File(file.getPath() + TEMPORARY_FILE_SUFFIX);
+
+    Version sourceVersion = null;
+    long convertedLength = -1;
+    try {
+      Metadata source = serializer.read(file);
+      sourceVersion = source.getVersion();
+
+      serializer.rewrite(temporaryFile, source);
+      convertedLength = temporaryFile.length();
+
+      verify(source, serializer.read(temporaryFile));
+
+      GsonSerializer.replace(temporaryFile, file);
+    } catch (IOException | RuntimeException e) {
+      try {
+        delete(MetadataIndex.indexFileFor(temporaryFile));
+        delete(temporaryFile);
+      } catch (IOException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+
+      return new Conversion(file, sourceVersion, sourceLength, convertedLength,
+          System.nanoTime() - start, e);
+    }
+
+    return new Conversion(file, sourceVersion, sourceLength, convertedLength,
+        System.nanoTime() - start, null);
+  }
+
+  private static boolean isConvertible(File file) {
+    return !file.getName().endsWith(TEMPORARY_FILE_SUFFIX) && !MetadataIndex.isIndexFile(file)
+        && !SegmentManifest.isManifest(file) && !SegmentManifest.isDataFile(file)
+        && !MetadataJournal.isJournal(file);
+  }
+
+  /**
+   * Check that the metadata read back from a converted file are the same as the original.
+   */
+  private static void verify(Metadata source, Metadata converted) throws IOException {
+    if (source.getKeys().size() != converted.getKeys().size()) {
+      throw new IOException("Converted file has " + converted.getKeys().size()
+          + " top-level values instead of " + source.getKeys().size());
+    }
+
+    for (Key<?> key : source.getKeys()) {
+      if (!converted.hasKey(key) || !Objects.equals(source.get(key), converted.get(key))) {
+        throw new IOException("Converted file has different metadata for key " + key);
+      }
+    }
+  }
+
+  private static void delete(File file) throws IOException {
+    Files.deleteIfExists(file.toPath());
+  }
+
+  private static double percentChange(long from, long to) {
+    return from > 0 ? 100. * (to - from) / from : 0.;
+  }
+
+  /**
+   * Convert the files in one or more directories, reporting the outcome, time taken and change in
+   * size of each file.
+   *
+   * <pre>
+   * MetadataFileConverter [-binary] [-compact] [-gzip] directory...
+   * </pre>
+   *
+   * By default, files are converted to pretty-printed JSON in the newest format. The options select
+   * the binary format instead, compact JSON, or gzip compression, respectively.
+   */
+  public static void main(String[] args) throws IOException {
+    Format format = Format.JSON;
+    SerializerOptions options = SerializerOptions.of();
+    List<File> directories = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.equals("-binary")) {
+        format = Format.BINARY;
+      } else if (arg.equals("-compact")) {
+        options = options.withPrettyPrinting(false);
+      } else if (arg.equals("-gzip")) {
+        options = options.withCompression(CompressionCodecs.gzip());
+      } else {
+        directories.add(new File(arg));
+      }
+    }
+
+    if (directories.isEmpty()) {
+      System.err.println(
+          "Usage: MetadataFileConverter [-binary] [-compact] [-gzip] directory [directory...]");
+      System.exit(1);
+    }
+
+    MetadataFileConverter converter =
+        MetadataFileConverter.of((GsonSerializer) Serializers.of(format, options));
+
+    long start = System.nanoTime();
+    int numberOfFiles = 0;
+    int numberConverted = 0;
+    long sourceLength = 0;
+    long convertedLength = 0;
+    for (File directory : directories) {
+      for (Conversion conversion : converter.convertDirectory(directory)) {
+        System.out.println(conversion);
+
+        ++numberOfFiles;
+        if (conversion.isConverted()) {
+          ++numberConverted;
+          sourceLength += conversion.getSourceLength();
+          convertedLength += conversion.getConvertedLength();
+        }
+      }
+    }
+
+    System.out.println(String.format("Converted %d of %d files, %d -> %d bytes (%+.1f%%), in %d ms",
+        numberConverted, numberOfFiles, sourceLength, convertedLength,
+        percentChange(sourceLength, convertedLength), (System.nanoTime() - start) / 1000000));
+  }
+
+}
@@ -18,7 +18,7 @@ import edu.jhuapl.ses.jsqrl.impl.SettableMetadata;
 
 final class MetadataIOv2 implements MetadataIO {
 
-  private static final String VERSION_KEY = "metadata.Version";
+  static final String VERSION_KEY = "metadata.Version";
 
   public static JsonObject encodeWithoutVersion(Metadata src, JsonSerializationContext context) {
     JsonObject result = encodeWithVersion(src, context);
@@ -109,7 +109,15 @@ final class MetadataIOv2 implements MetadataIO {
       JsonDeserializationContext context) {
     Preconditions.checkNotNull(jsonMetadata);
 
-    Version version = decodeVersion(jsonMetadata);
+    // The Metadata's own version takes precedence: if "metadata.Version" is also present, it is the
+    // common version of the Metadata values this Metadata contains, not the version of this one.
+    Version version;
+    if (jsonMetadata.has(DataTypeInfo.VERSION.getTypeId())) {
+      version = GsonVersionIO
+          .decode(jsonMetadata.get(DataTypeInfo.VERSION.getTypeId()).getAsJsonPrimitive());
+    } else {
+      version = decodeVersion(jsonMetadata);
+    }
 
     return decode(jsonMetadata, version, context);
   }
@@ -0,0 +1,254 @@
+package edu.jhuapl.ses.jsqrl.impl.gson;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import edu.jhuapl.ses.jsqrl.api.Version;
+
+/**
+ * Sidecar index for a file written by {@link GsonSerializer}. The index records the byte offset and
+ * length of the block of the file that holds each top-level value, together with the information
+ * from the file's header that is needed to decode one block on its own, including the file's
+ * {@link StringDictionary} if it has one. This allows a single
+ * top-level value to be loaded by reading only its block.
+ * <p>
+ * The index also records the length and modification time of the file it describes. An index
+ * that does not match its file is stale and must not be used.
+ */
+final class MetadataIndex {
+
+  private static final Version INDEX_VERSION = Version.of(1, 0);
+
+  private static final String FILE_SUFFIX = ".idx";
+
+  private static final String FILE_LENGTH_KEY = "fileLength";
+  private static final String LAST_MODIFIED_KEY = "lastModified";
+  private static final String CHARSET_KEY = "charset";
+  private static final String METADATA_VERSION_KEY = "metadataVersion";
+  private static final String BLOCKS_KEY = "blocks";
+
+  /**
+   * Location of one top-level value within the file, including any separator written before it.
+   */
+  static final class Block {
+    private final long offset;
+    private final long length;
+
+    Block(long offset, long length) {
+      Preconditions.checkArgument(offset >= 0 && length >= 0);
+      this.offset = offset;
+      this.length = length;
+    }
+
+    long getOffset() {
+      return offset;
+    }
+
+    long getLength() {
+      return length;
+    }
+
+  }
+
+  static File indexFileFor(File file) {
+    return new File(file.getPath() + FILE_SUFFIX);
+  }
+
+  static boolean isIndexFile(File file) {
+    return file.getName().endsWith(FILE_SUFFIX);
+  }
+
+  /**
+   * Create an index of the supplied file, which must have been completely written and closed.
+   */
+  static MetadataIndex of(File file, Charset charset, Version version, ValueTypeSummary summary,
+      StringDictionary dictionary, Map<String, Block> blocks) {
+    return new MetadataIndex(file.length(), file.lastModified(), charset, version,
+        summary.getValueTypeId(), summary.getCommonVersion(), dictionary,
+        ImmutableMap.copyOf(blocks));
+  }
+
+  static MetadataIndex read(File indexFile) throws IOException {
+    Preconditions.checkNotNull(indexFile);
+
+    try (JsonReader reader =
+        new JsonReader(Files.newReader(indexFile, StandardCharsets.UTF_8))) {
+      Version indexVersion = null;
+      Long fileLength = null;
+      Long lastModified = null;
+      Charset charset = null;
+      Version version = null;
+      String valueTypeId = null;
+      Version commonVersion = null;
+      StringDictionary dictionary = null;
+      Map<String, Block> blocks = new LinkedHashMap<>();
+
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (name.equals(DataTypeInfo.VERSION.getTypeId())) {
+          indexVersion = Version.of(reader.nextString());
+          if (!INDEX_VERSION.equals(indexVersion)) {
+            throw new IOException("Unsupported index version " + indexVersion);
+          }
+        } else if (name.equals(FILE_LENGTH_KEY)) {
+          fileLength = reader.nextLong();
+        } else if (name.equals(LAST_MODIFIED_KEY)) {
+          lastModified = reader.nextLong();
+        } else if (name.equals(CHARSET_KEY)) {
+          charset = Charset.forName(reader.nextString());
+        } else if (name.equals(METADATA_VERSION_KEY)) {
+          version = Version.of(reader.nextString());
+        } else if (name.equals(GsonElement.VALUE_TYPE_KEY)) {
+          valueTypeId = reader.nextString();
+        } else if (name.equals(MetadataIOv2.VERSION_KEY)) {
+          commonVersion = Version.of(reader.nextString());
+        } else if (name.equals(StringDictionary.DICTIONARY_KEY)) {
+          dictionary = StringDictionary.read(reader);
+        } else if (name.equals(BLOCKS_KEY)) {
+          reader.beginObject();
+          while (reader.hasNext()) {
+            String keyId = reader.nextName();
+            reader.beginArray();
+            blocks.put(keyId, new Block(reader.nextLong(), reader.nextLong()));
+            reader.endArray();
+          }
+          reader.endObject();
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+
+      if (indexVersion == null || fileLength == null || lastModified == null || charset == null
+          || version == null) {
+        throw new JsonParseException("Incomplete index file " + indexFile);
+      }
+
+      return new MetadataIndex(fileLength, lastModified, charset, version, valueTypeId,
+          commonVersion, dictionary, ImmutableMap.copyOf(blocks));
+    } catch (RuntimeException e) {
+      throw new IOException("Unable to read index file " + indexFile, e);
+    }
+  }
+
+  private final long fileLength;
+  private final long lastModified;
+  private final Charset charset;
+  private final Version version;
+  private final String valueTypeId;
+  private final Version commonVersion;
+  private final StringDictionary dictionary;
+  private final ImmutableMap<String, Block> blocks;
+
+  private MetadataIndex(long fileLength, long lastModified, Charset charset, Version version,
+      String valueTypeId, Version commonVersion, StringDictionary dictionary,
+      ImmutableMap<String, Block> blocks) {
+    this.fileLength = fileLength;
+    this.lastModified = lastModified;
+    this.charset = charset;
+    this.version = version;
+    this.valueTypeId = valueTypeId;
+    this.commonVersion = commonVersion;
+    this.dictionary = dictionary;
+    this.blocks = blocks;
+  }
+
+  /**
+   * @return true if the file appears to be the one this index describes
+   */
+  boolean isCurrent(File file) {
+    return file.length() == fileLength && file.lastModified() == lastModified;
+  }
+
+  /**
+   * @return the character encoding of the file
+   */
+  Charset getCharset() {
+    return charset;
+  }
+
+  /**
+   * @return the version of the file, which is also the version of its outermost Metadata
+   */
+  Version getVersion() {
+    return version;
+  }
+
+  /**
+   * @return the type of all the top-level values, or null if they do not all have the same type
+   */
+  String getValueTypeId() {
+    return valueTypeId;
+  }
+
+  /**
+   * @return the version shared by all the top-level values, or null if there is none
+   */
+  Version getCommonVersion() {
+    return commonVersion;
+  }
+
+  /**
+   * @return the dictionary to which the blocks refer, or null if the file has none
+   */
+  StringDictionary getDictionary() {
+    return dictionary;
+  }
+
+  Set<String> getKeyIds() {
+    return blocks.keySet();
+  }
+
+  Block getBlock(String keyId) {
+    return blocks.get(keyId);
+  }
+
+  void write(File indexFile) throws IOException {
+    try (Writer writer = Files.newWriter(indexFile, StandardCharsets.UTF_8)) {
+      try (JsonWriter jsonWriter = new JsonWriter(writer)) {
+        jsonWriter.beginObject();
+        jsonWriter.name(DataTypeInfo.VERSION.getTypeId()).value(INDEX_VERSION.toString());
+        jsonWriter.name(FILE_LENGTH_KEY).value(fileLength);
+        jsonWriter.name(LAST_MODIFIED_KEY).value(lastModified);
+        jsonWriter.name(CHARSET_KEY).value(charset.name());
+        jsonWriter.name(METADATA_VERSION_KEY).value(version.toString());
+        if (valueTypeId != null) {
+          jsonWriter.name(GsonElement.VALUE_TYPE_KEY).value(valueTypeId);
+        }
+        if (commonVersion != null) {
+          jsonWriter.name(MetadataIOv2.VERSION_KEY).value(commonVersion.toString());
+        }
+        if (dictionary != null) {
+          jsonWriter.name(StringDictionary.DICTIONARY_KEY);
+          dictionary.write(jsonWriter);
+        }
+        jsonWriter.name(BLOCKS_KEY);
+        jsonWriter.beginObject();
+        for (Map.Entry<String, Block> entry : blocks.entrySet()) {
+          jsonWriter.name(entry.getKey());
+          jsonWriter.beginArray();
+          jsonWriter.value(entry.getValue().getOffset());
+          jsonWriter.value(entry.getValue().getLength());
+          jsonWriter.endArray();
+        }
+        jsonWriter.endObject();
+        jsonWriter.endObject();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,544 @@
+package edu.jhuapl.ses.jsqrl.impl.gson;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import edu.jhuapl.ses.jsqrl.api.Key;
+import edu.jhuapl.ses.jsqrl.api.Metadata;
+import edu.jhuapl.ses.jsqrl.api.Version;
+import edu.jhuapl.ses.jsqrl.impl.SettableMetadata;
+import edu.jhuapl.ses.jsqrl.impl.gson.SegmentManifest.Segment;
+
+/**
+ * Append-only journal of saves (see {@link SerializerOptions#withJournal(boolean)}). A journal
+ * starts with a short header, followed by one record for each save. A record lists the key,
+ * length and hash of each top-level value that changed since the previous save, followed by the
+ * segments that hold those values. As in a segmented file (see {@link SegmentManifest}), each
+ * segment is encoded exactly as a whole file holding only that value would be. Loading replays the
+ * records in order, so the newest segment of each value is the one that is decoded.
+ * <p>
+ * Each record is forced to storage before the save returns. A record left incomplete by a save
+ * that did not finish is ignored when loading, and overwritten by the next save.
+ * <p>
+ * Compaction copies the newest segment of each value into a single record at the start of a new
+ * file, which then replaces the journal in a single atomic rename. It runs on a background thread
+ * while saves continue: records appended in the meantime are copied to the end of the new file
+ * just before it replaces the old one.
+ * <p>
+ * Values are never removed from a journal: a value that is no longer saved keeps its last saved
+ * segment, just as if it had not changed.
+ */
+final class MetadataJournal {
+
+  private static final byte[] MAGIC = new byte[] { 'J', 'S', 'Q', 'J' };
+
+  private static final Version JOURNAL_VERSION = Version.of(1, 0);
+
+  private static final int HASH_LENGTH = SegmentManifest.hash(new byte[0]).bits() / Byte.SIZE;
+
+  private static final String TEMPORARY_FILE_SUFFIX = ".compacting";
+
+  private static final Logger LOGGER = Logger.getLogger(MetadataJournal.class.getName());
+
+  private static final ExecutorService COMPACTION_EXECUTOR =
+      Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("MetadataJournal-compact-%d").setDaemon(true).build());
+
+  /**
+   * Decoder of one segment into the outermost Metadata of a file holding only that value.
+   */
+  @FunctionalInterface
+  interface SegmentDecoder {
+    Metadata decode(String keyId, byte[] content) throws IOException;
+  }
+
+  /**
+   * One complete record, as found when a journal is replayed.
+   */
+  private static final class Record {
+    private final Version version;
+    private final Map<String, Segment> segments;
+    private final long end;
+
+    private Record(Version version, Map<String, Segment> segments, long end) {
+      this.version = version;
+      this.segments = segments;
+      this.end = end;
+    }
+  }
+
+  /**
+   * @return true if the file exists and is a journal
+   */
+  static boolean isJournal(File file) {
+    if (!file.isFile()) {
+      return false;
+    }
+
+    try (InputStream in = new FileInputStream(file)) {
+      return Arrays.equals(in.readNBytes(MAGIC.length), MAGIC);
+    } catch (@SuppressWarnings("unused") IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Read the newest values associated with the selected keys. Each segment is checked against its
+   * hash before it is decoded. The records and the segments are read through the same open file,
+   * so a compaction that replaces the journal meanwhile does not affect what is read.
+   *
+   * @param file the journal
+   * @param keyFilter the keys to read
+   * @param hashes map to which the hash of each segment read is added by key id, or null
+   * @param decoder the decoder of the segments
+   * @return the outermost Metadata, with the version of the newest record
+   */
+  static Metadata read(File file, Predicate<String> keyFilter, Map<String, HashCode> hashes,
+      SegmentDecoder decoder) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      MetadataJournal journal = open(file, channel);
+      if (journal.version == null) {
+        throw new IOException("Journal " + file + " contains no complete record");
+      }
+
+      SettableMetadata result = SettableMetadata.of(journal.version);
+      for (Map.Entry<String, Segment> entry : journal.segments.entrySet()) {
+        String keyId = entry.getKey();
+        if (!keyFilter.test(keyId)) {
+          continue;
+        }
+
+        byte[] content = readSegment(channel, entry.getValue());
+        if (content == null) {
+          throw new IOException("Segment " + keyId + " of journal " + file + " is corrupt");
+        }
+        if (hashes != null) {
+          hashes.put(keyId, entry.getValue().getHash());
+        }
+
+        Metadata segmentSource = decoder.decode(keyId, content);
+        Key<Object> key = Key.of(keyId);
+        if (segmentSource.hasKey(key)) {
+          result.put(key, segmentSource.get(key));
+        }
+      }
+
+      return result;
+    }
+  }
+
+  /**
+   * Open a journal for appending. If the file does not exist or is not a journal, the journal is
+   * empty, and the first record replaces the file.
+   *
+   * @param file the file
+   * @return the journal, holding the location of the newest segment of each value
+   */
+  static MetadataJournal open(File file) throws IOException {
+    Preconditions.checkNotNull(file);
+
+    if (!isJournal(file)) {
+      return new MetadataJournal(file);
+    }
+
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      return open(file, channel);
+    }
+  }
+
+  /**
+   * Same as {@link #open(File)}, reading the journal through the supplied channel, which is left
+   * open.
+   */
+  private static MetadataJournal open(File file, FileChannel channel) throws IOException {
+    MetadataJournal result = new MetadataJournal(file);
+
+    List<Record> records = new ArrayList<>();
+    long fileLength = channel.size();
+    // The stream is not closed, since that would close the channel.
+    CountingInputStream counting = new CountingInputStream(
+        new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+    DataInputStream in = new DataInputStream(counting);
+    byte[] magic = new byte[MAGIC.length];
+    if (ByteStreams.read(in, magic, 0, magic.length) < magic.length
+        || !Arrays.equals(magic, MAGIC)) {
+      return result;
+    }
+    Version journalVersion = Version.of(in.readUTF());
+    if (journalVersion.getMajor() != JOURNAL_VERSION.getMajor()) {
+      throw new IOException("Unsupported journal version " + journalVersion);
+    }
+    long headerLength = counting.getCount();
+
+    try {
+      while (counting.getCount() < fileLength) {
+        records.add(readRecord(in, counting));
+      }
+    } catch (@SuppressWarnings("unused") EOFException | IllegalArgumentException e) {
+      // The last record is incomplete.
+    }
+
+    // Earlier records were complete when the next one was appended, but the last one may have
+    // been left partly written even though its length is right.
+    if (!records.isEmpty()) {
+      for (Segment segment : records.get(records.size() - 1).segments.values()) {
+        if (readSegment(channel, segment) == null) {
+          records.remove(records.size() - 1);
+          break;
+        }
+      }
+    }
+
+    result.length = headerLength;
+    for (Record record : records) {
+      result.version = record.version;
+      result.segments.putAll(record.segments);
+      result.length = record.end;
+    }
+
+    return result;
+  }
+
+  private static Record readRecord(DataInputStream in, CountingInputStream counting)
+      throws IOException {
+    Version version = Version.of(in.readUTF());
+    int numberOfSegments = in.readInt();
+    Preconditions.checkArgument(numberOfSegments >= 0);
+
+    List<String> keyIds = new ArrayList<>(numberOfSegments);
+    List<Long> lengths = new ArrayList<>(numberOfSegments);
+    List<HashCode> hashes = new ArrayList<>(numberOfSegments);
+    for (int index = 0; index < numberOfSegments; ++index) {
+      keyIds.add(in.readUTF());
+      lengths.add(in.readLong());
+      byte[] hash = new byte[HASH_LENGTH];
+      in.readFully(hash);
+      hashes.add(HashCode.fromBytes(hash));
+    }
+
+    Map<String, Segment> segments = new LinkedHashMap<>();
+    long offset = counting.getCount();
+    for (int index = 0; index < numberOfSegments; ++index) {
+      segments.put(keyIds.get(index), new Segment(offset, lengths.get(index), hashes.get(index)));
+      offset += lengths.get(index);
+    }
+    ByteStreams.skipFully(in, offset - counting.getCount());
+
+    return new Record(version, segments, offset);
+  }
+
+  /**
+   * @return the content of the segment, or null if it is incomplete or does not match its hash
+   */
+  private static byte[] readSegment(FileChannel channel, Segment segment) throws IOException {
+    if (segment.getOffset() + segment.getLength() > channel.size()) {
+      return null;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(segment.getLength()));
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, segment.getOffset() + buffer.position()) < 0) {
+        return null;
+      }
+    }
+
+    byte[] content = buffer.array();
+    if (!SegmentManifest.hash(content).equals(segment.getHash())) {
+      return null;
+    }
+
+    return content;
+  }
+
+  private static byte[] header() {
+    ByteArrayDataOutput out = ByteStreams.newDataOutput();
+    out.write(MAGIC);
+    out.writeUTF(JOURNAL_VERSION.toString());
+
+    return out.toByteArray();
+  }
+
+  /**
+   * @return the header of a record holding segments with the supplied lengths and hashes
+   */
+  private static byte[] recordHeader(Version version, Map<String, Segment> segments) {
+    ByteArrayDataOutput out = ByteStreams.newDataOutput();
+    out.writeUTF(version.toString());
+    out.writeInt(segments.size());
+    for (Map.Entry<String, Segment> entry : segments.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeLong(entry.getValue().getLength());
+      out.write(entry.getValue().getHash().asBytes());
+    }
+
+    return out.toByteArray();
+  }
+
+  private static void write(FileChannel channel, long position, byte[] content)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(content);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, position + buffer.position());
+    }
+  }
+
+  private static void transfer(FileChannel from, long position, long count, FileChannel to,
+      long toPosition) throws IOException {
+    long transferred = 0;
+    while (transferred < count) {
+      long n = to.transferFrom(from.position(position + transferred), toPosition + transferred,
+          count - transferred);
+      if (n <= 0) {
+        throw new EOFException("Journal ended unexpectedly");
+      }
+      transferred += n;
+    }
+  }
+
+  private static void replace(File temporaryFile, File file) throws IOException {
+    try {
+      Files.move(temporaryFile.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (@SuppressWarnings("unused") AtomicMoveNotSupportedException e) {
+      Files.move(temporaryFile.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private final File file;
+  private final Map<String, Segment> segments;
+  private Version version;
+  private long length;
+  private CompletableFuture<Void> compaction;
+
+  private MetadataJournal(File file) {
+    this.file = file;
+    this.segments = new LinkedHashMap<>();
+    this.version = null;
+    this.length = 0;
+    this.compaction = CompletableFuture.completedFuture(null);
+  }
+
+  /**
+   * @return true if the file still has the length of the complete records known to this journal,
+   *         that is, it has not been replaced or modified by anything else
+   */
+  synchronized boolean isCurrent() {
+    return length > 0 ? file.length() == length && isJournal(file) : !isJournal(file);
+  }
+
+  /**
+   * @return the total length of the segments that have been superseded by later ones
+   */
+  synchronized long getSupersededLength() {
+    long liveLength = 0;
+    for (Segment segment : segments.values()) {
+      liveLength += segment.getLength();
+    }
+
+    // Record headers are counted as superseded too.
+    return length - header().length - liveLength;
+  }
+
+  /**
+   * Append a record holding the supplied segments that differ from the newest segments of the same
+   * values in the journal, and force it to storage. If nothing changed, nothing is appended.
+   *
+   * @param version the version of the outermost Metadata
+   * @param contents the encoded segment of each top-level value
+   * @return true if a record was appended
+   */
+  synchronized boolean append(Version version, Map<String, byte[]> contents) throws IOException {
+    Preconditions.checkNotNull(version);
+
+    Map<String, Segment> changedSegments = new LinkedHashMap<>();
+    List<byte[]> changedContents = new ArrayList<>();
+    for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+      byte[] content = entry.getValue();
+      HashCode hash = SegmentManifest.hash(content);
+      Segment segment = segments.get(entry.getKey());
+      if (segment == null || !segment.getHash().equals(hash)) {
+        changedSegments.put(entry.getKey(), new Segment(0, content.length, hash));
+        changedContents.add(content);
+      }
+    }
+
+    if (changedSegments.isEmpty() && version.equals(this.version)) {
+      return false;
+    }
+
+    boolean create = length == 0;
+    byte[] prefix = create ? header() : new byte[0];
+    byte[] recordHeader = recordHeader(version, changedSegments);
+
+    long start = length;
+    File target = create ? new File(file.getPath() + TEMPORARY_FILE_SUFFIX) : file;
+    long end;
+    try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE)) {
+      write(channel, start, prefix);
+      write(channel, start + prefix.length, recordHeader);
+      end = start + prefix.length + recordHeader.length;
+      for (byte[] content : changedContents) {
+        write(channel, end, content);
+        end += content.length;
+      }
+
+      // Remove whatever an incomplete save may have left beyond the last complete record.
+      channel.truncate(end);
+      channel.force(true);
+    }
+
+    if (create) {
+      replace(target, file);
+    }
+
+    long offset = start + prefix.length + recordHeader.length;
+    for (Map.Entry<String, Segment> entry : changedSegments.entrySet()) {
+      Segment segment = entry.getValue();
+      segments.put(entry.getKey(), new Segment(offset, segment.getLength(), segment.getHash()));
+      offset += segment.getLength();
+    }
+    this.version = version;
+    this.length = end;
+
+    return true;
+  }
+
+  /**
+   * Start compacting the journal on the background thread shared by all journals, unless a
+   * compaction is already under way. If compaction fails, the journal is left as it was, the
+   * failure is logged, and the next call starts another compaction.
+   *
+   * @return a future that completes when the compaction does, exceptionally if it fails
+   */
+  synchronized CompletableFuture<Void> compactAsync() {
+    if (compaction.isDone()) {
+      compaction = CompletableFuture.runAsync(() -> {
+        try {
+          compact();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }, COMPACTION_EXECUTOR);
+      compaction.whenComplete((result, e) -> {
+        if (e != null) {
+          LOGGER.log(Level.WARNING, "Unable to compact journal " + file, e);
+        }
+      });
+    }
+
+    return compaction;
+  }
+
+  /**
+   * @return the future of the most recent compaction, which is complete if none was ever started
+   */
+  synchronized CompletableFuture<Void> getCompaction() {
+    return compaction;
+  }
+
+  /**
+   * Write the newest segments to a new file without holding the lock, then, holding it, copy the
+   * records appended in the meantime and replace the journal.
+   */
+  private void compact() throws IOException {
+    Version snapshotVersion;
+    Map<String, Segment> snapshot;
+    long snapshotLength;
+    synchronized (this) {
+      if (length == 0) {
+        return;
+      }
+      snapshotVersion = version;
+      snapshot = new LinkedHashMap<>(segments);
+      snapshotLength = length;
+    }
+
+    File temporaryFile = new File(file.getPath() + TEMPORARY_FILE_SUFFIX);
+    try {
+      compact(snapshotVersion, snapshot, snapshotLength, temporaryFile);
+    } catch (IOException | RuntimeException e) {
+      try {
+        Files.deleteIfExists(temporaryFile.toPath());
+      } catch (IOException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+      throw e;
+    }
+  }
+
+  private void compact(Version snapshotVersion, Map<String, Segment> snapshot,
+      long snapshotLength, File temporaryFile) throws IOException {
+    Map<String, Segment> compacted = new LinkedHashMap<>();
+    long end;
+    try (FileChannel from = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        FileChannel to = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      byte[] header = header();
+      byte[] recordHeader = recordHeader(snapshotVersion, snapshot);
+      write(to, 0, header);
+      write(to, header.length, recordHeader);
+      end = header.length + recordHeader.length;
+      for (Map.Entry<String, Segment> entry : snapshot.entrySet()) {
+        Segment segment = entry.getValue();
+        transfer(from, segment.getOffset(), segment.getLength(), to, end);
+        compacted.put(entry.getKey(), new Segment(end, segment.getLength(), segment.getHash()));
+        end += segment.getLength();
+      }
+    }
+
+    synchronized (this) {
+      // Saves appended records after the snapshot was taken; the offsets of their segments move
+      // by the same amount as the records.
+      long shift = end - snapshotLength;
+      try (FileChannel from = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+          FileChannel to = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.WRITE)) {
+        transfer(from, snapshotLength, length - snapshotLength, to, end);
+        to.force(true);
+      }
+
+      replace(temporaryFile, file);
+
+      for (Map.Entry<String, Segment> entry : segments.entrySet()) {
+        Segment segment = entry.getValue();
+        entry.setValue(segment.getOffset() >= snapshotLength
+            ? new Segment(segment.getOffset() + shift, segment.getLength(), segment.getHash())
+            : compacted.get(entry.getKey()));
+      }
+      length += shift;
+    }
+  }
+
+}
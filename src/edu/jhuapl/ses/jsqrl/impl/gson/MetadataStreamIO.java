@@ -0,0 +1,1424 @@
+package edu.jhuapl.ses.jsqrl.impl.gson;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.LinkedHashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.io.CharStreams;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import edu.jhuapl.ses.jsqrl.api.Key;
+import edu.jhuapl.ses.jsqrl.api.Metadata;
+import edu.jhuapl.ses.jsqrl.api.Version;
+import edu.jhuapl.ses.jsqrl.impl.ColumnarMetadataList;
+import edu.jhuapl.ses.jsqrl.impl.EncodedFormCache;
+import edu.jhuapl.ses.jsqrl.impl.FixedMetadata;
+import edu.jhuapl.ses.jsqrl.impl.InstanceGetter;
+import edu.jhuapl.ses.jsqrl.impl.SettableMetadata;
+import edu.jhuapl.ses.jsqrl.impl.Utilities;
+
+/**
+ * Streaming implementation of the v2 encapsulation used by serializer versions 3 and 4. This
+ * produces exactly the same JSON as {@link MetadataIOv2}, {@link MapBaseIOv2},
+ * {@link IterableIOv2} and {@link ProxyIOv2}, but writes each value directly to the
+ * {@link JsonWriter} as it is visited instead of first building a {@link com.google.gson.JsonObject}
+ * tree of the whole state. Transient memory used while writing is therefore proportional to the
+ * nesting depth of the metadata rather than to the size of the output.
+ * <p>
+ * Similarly, reading pulls tokens from the {@link JsonReader} and builds the {@link Metadata}
+ * objects and collections directly, without first parsing the file into a
+ * {@link com.google.gson.JsonElement} tree.
+ * <p>
+ * Leaf values (strings, numbers, arrays, dates, classes etc.) are delegated to the supplied
+ * {@link Gson}, which must be configured the same way as the {@link Gson} used by the tree-model
+ * encoders so that leaf values are written identically.
+ * <p>
+ * Starting with serializer version 6, a file may instead be written with a
+ * {@link StringDictionary}, in which case the field names and type identifiers written by this
+ * class refer to the dictionary rather than being written in full. The tree-model encoders do not
+ * support dictionaries.
+ * <p>
+ * Starting with serializer version 7, a Metadata or proxied object that occurs more than once
+ * within the same top-level value is written in full only the first time. Each later occurrence is
+ * written as a number that refers back to it, and is restored as the same instance, which also
+ * allows Metadata to refer to themselves. References never cross from one top-level value to
+ * another, so that each top-level value can still be read on its own.
+ * <p>
+ * Starting with serializer version 8, when all the values of a collection or map are Metadata
+ * with the same keys in the same order, the key identifiers are written once in the header of the
+ * collection or map, and the values of each Metadata are written as an array in the same order.
+ * <p>
+ * Starting with serializer version 9, a list of such Metadata whose values are all strings,
+ * booleans, characters or numbers, with each key always associated with values of the same type,
+ * is instead written column by column: the values associated with each key are written as a single
+ * array, so that numbers are written as blocks of the corresponding primitive type. Such lists are
+ * read as {@link ColumnarMetadataList}s.
+ */
+final class MetadataStreamIO extends TypeAdapter<Metadata> {
+
+  private static final InstanceGetter INSTANCE_GETTER = InstanceGetter.defaultInstanceGetter();
+
+  private static final Predicate<String> ALL_KEYS = keyId -> true;
+
+  /**
+   * Name of the header field that lists the keys shared by all the Metadata values of a collection
+   * or map, whose values are then written as arrays.
+   */
+  private static final String KEYS_KEY = "metadata.Keys";
+
+  /**
+   * Name of the header field that lists the type identifiers of the columns of a list of Metadata
+   * written column by column, whose value is then an array of the columns.
+   */
+  private static final String COLUMNS_KEY = "metadata.Columns";
+
+  /**
+   * Placeholder for a proxied object that cannot be referred to yet, because it is provided from
+   * metadata that are still being read.
+   */
+  private static final Object PENDING = new Object();
+
+  /**
+   * The Metadata and proxied objects encountered so far within one top-level value, numbered in the
+   * order in which they were first encountered.
+   */
+  private static final class References {
+    // Used when writing.
+    private final Map<Object, Integer> numbers = new IdentityHashMap<>();
+    private final Set<Object> pending = Collections.newSetFromMap(new IdentityHashMap<>());
+    // Used when reading.
+    private final List<Object> instances = new ArrayList<>();
+    // Whether any reference has been written.
+    private boolean referred = false;
+  }
+
+  /**
+   * Number of forms in which the same Metadata may be encoded: with or without its version, which
+   * is left out when all the Metadata in a collection share it and it is written once for all of
+   * them, and with its values written in an object or, when a collection's Metadata share their
+   * keys, in an array.
+   */
+  private static final int NUMBER_OF_ENCODED_FORMS = 4;
+
+  /**
+   * Encoding of a Metadata, and the instances numbered within it, so that later occurrences of
+   * them may refer back to them.
+   */
+  static final class EncodedForm {
+    private final String json;
+    private final ImmutableList<Object> instances;
+
+    private EncodedForm(String json, List<Object> instances) {
+      this.json = Preconditions.checkNotNull(json);
+      this.instances = ImmutableList.copyOf(instances);
+    }
+
+    /**
+     * @return the Metadata and proxied objects within the Metadata, not including the Metadata
+     *         itself, in the order in which they are numbered
+     */
+    private ImmutableList<Object> getInstances() {
+      return instances;
+    }
+
+  }
+
+  /**
+   * @param maximumLength the maximum total length of the cached encodings, in characters
+   * @return a cache of the encodings written by this class, which may be passed to the constructor
+   */
+  static EncodedFormCache<EncodedForm> createEncodedFormCache(long maximumLength) {
+    return EncodedFormCache.of(maximumLength, NUMBER_OF_ENCODED_FORMS, form -> form.json.length());
+  }
+
+  private static int indexOfEncodedForm(boolean includeVersion, boolean positional) {
+    return (includeVersion ? 1 : 0) + (positional ? 2 : 0);
+  }
+
+  private final Gson gson;
+  // Dictionary to which names and type identifiers refer, or null if they are written in full.
+  private final StringDictionary dictionary;
+  private final boolean writeReferences;
+  private final boolean writeShapes;
+  private final boolean writeColumns;
+  // Counts of the strings that would be written using a dictionary, when collecting them to create
+  // one, or null.
+  private final Multiset<String> stringCounts;
+  // Instances encountered within the current top-level value, or null outside of any.
+  private final References references;
+  // Cache of the encodings of immutable Metadata, or null.
+  private final EncodedFormCache<EncodedForm> encodedForms;
+  // Metadata provided by proxies for the objects they store, which are kept while a dictionary is
+  // created so that the same Metadata are written with it, or null.
+  private final Map<Object, Object> providedMetadata;
+
+  MetadataStreamIO(Gson gson) {
+    this(gson, null);
+  }
+
+  /**
+   * @param dictionary the dictionary with which values are read, or null. Files that have a
+   *        dictionary may be read either way, because the dictionary is read from the file
+   */
+  MetadataStreamIO(Gson gson, StringDictionary dictionary) {
+    this(gson, dictionary, false, false, false);
+  }
+
+  /**
+   * @param dictionary the dictionary with which values are written or read, or null to write them
+   *        without a dictionary
+   * @param writeReferences true to write repeated instances as references, false to write every
+   *        occurrence in full. References are read regardless of this setting
+   * @param writeShapes true to write the keys of collections of Metadata with the same keys once,
+   *        false to write them with each Metadata. Both forms are read regardless of this setting
+   * @param writeColumns true to write lists of Metadata with the same keys and values of simple
+   *        types column by column, if writeShapes is also true. Columns are read regardless of this
+   *        setting
+   */
+  MetadataStreamIO(Gson gson, StringDictionary dictionary, boolean writeReferences,
+      boolean writeShapes, boolean writeColumns) {
+    this(gson, dictionary, writeReferences, writeShapes, writeColumns, null);
+  }
+
+  /**
+   * @param encodedForms cache from which the encodings of immutable {@link FixedMetadata} are
+   *        copied, and to which they are added, or null to encode them every time. The cache must
+   *        only be used with the same Gson configuration and flags, no dictionary, and a writer
+   *        that does not indent
+   */
+  MetadataStreamIO(Gson gson, StringDictionary dictionary, boolean writeReferences,
+      boolean writeShapes, boolean writeColumns, EncodedFormCache<EncodedForm> encodedForms) {
+    this(gson, dictionary, writeReferences, writeShapes, writeColumns, null, null, encodedForms,
+        null);
+  }
+
+  private MetadataStreamIO(Gson gson, StringDictionary dictionary, boolean writeReferences,
+      boolean writeShapes, boolean writeColumns, Multiset<String> stringCounts,
+      References references, EncodedFormCache<EncodedForm> encodedForms,
+      Map<Object, Object> providedMetadata) {
+    Preconditions.checkNotNull(gson);
+    this.gson = gson;
+    this.dictionary = dictionary;
+    this.writeReferences = writeReferences;
+    this.writeShapes = writeShapes;
+    this.writeColumns = writeColumns;
+    this.stringCounts = stringCounts;
+    this.references = references;
+    this.encodedForms = encodedForms;
+    this.providedMetadata = providedMetadata;
+  }
+
+  /**
+   * Callback that is notified immediately before and after each of the values of the outermost
+   * Metadata is written, which allows the caller to find where each value is in the output.
+   */
+  interface EntryListener {
+
+    void entryStarted(String keyId) throws IOException;
+
+    void entryFinished(String keyId) throws IOException;
+
+  }
+
+  /**
+   * Determine the same type information that {@link #write(JsonWriter, Metadata)} hoists out of
+   * the values of the supplied Metadata and writes in its header.
+   */
+  static ValueTypeSummary summarize(Metadata src) {
+    return MapBaseIOv2.summarize(toMap(src));
+  }
+
+  /**
+   * Return an instance that is the same as this one but that writes the supplied Metadata with a
+   * dictionary of the strings that would be written in full without one (see
+   * {@link #getDictionary()}). Only the structure of the Metadata is traversed to create the
+   * dictionary; leaf values are not encoded. The Metadata provided by proxies for the objects they
+   * store are kept and written by the returned instance, so that each proxy is only called once,
+   * and the strings written are those in the dictionary even if a proxy would not provide the same
+   * Metadata again. The returned instance must therefore only be used to write the supplied
+   * Metadata, once, and encodings are never reused from the cache when writing with a dictionary.
+   */
+  MetadataStreamIO withDictionaryFor(Metadata src) throws IOException {
+    Preconditions.checkNotNull(src);
+
+    Multiset<String> counts = LinkedHashMultiset.create();
+    Map<Object, Object> provided = new IdentityHashMap<>();
+    MetadataStreamIO collector = new MetadataStreamIO(gson, null, writeReferences, writeShapes,
+        writeColumns, counts, null, null, provided);
+    try (JsonWriter out = new JsonWriter(CharStreams.nullWriter())) {
+      out.setLenient(true);
+      out.beginObject();
+      collector.writeMetadataFields(out, src, null);
+      out.endObject();
+    }
+
+    return new MetadataStreamIO(gson, StringDictionary.of(counts), writeReferences, writeShapes,
+        writeColumns, null, null, null, provided);
+  }
+
+  /**
+   * @return the dictionary with which values are written or read, or null if there is none
+   */
+  StringDictionary getDictionary() {
+    return dictionary;
+  }
+
+  @Override
+  public void write(JsonWriter out, Metadata value) throws IOException {
+    write(out, value, null);
+  }
+
+  /**
+   * Write the Metadata, notifying the supplied listener (if any) as each of its values is written.
+   */
+  void write(JsonWriter out, Metadata value, EntryListener listener) throws IOException {
+    boolean lenient = out.isLenient();
+    // Same as Gson.toJson, which is what the tree model uses: allows NaN and infinities.
+    out.setLenient(true);
+    try {
+      if (value == null) {
+        out.nullValue();
+      } else {
+        writeOutermost(out, value, listener);
+      }
+    } finally {
+      out.setLenient(lenient);
+    }
+  }
+
+  @Override
+  public Metadata read(JsonReader in) throws IOException {
+    boolean lenient = in.isLenient();
+    // Same as Gson.fromJson, which is what the tree model uses: allows NaN and infinities.
+    in.setLenient(true);
+    try {
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        return null;
+      }
+      return readMetadata(in, null, -1);
+    } finally {
+      in.setLenient(lenient);
+    }
+  }
+
+  /**
+   * Read the rest of an encoded Metadata object whose opening brace and "Version" field have
+   * already been consumed from the reader, for example by a caller that needed to know the version
+   * before deciding how to decode the content. If the object has a dictionary, it is read and
+   * used to decode the rest of the object.
+   * 
+   * <p>
+   * Only the values whose key identifiers are accepted by the supplied filter are decoded. The
+   * others are skipped at the token level without decoding or building any part of their values,
+   * and are absent from the returned Metadata.
+   * 
+   * @param in the reader, positioned inside the encoded Metadata object
+   * @param version the version that was read from the object
+   * @param keyFilter filter that accepts the identifiers of the keys whose values should be read
+   * @return the decoded Metadata
+   */
+  Metadata readRemainder(JsonReader in, Version version, Predicate<String> keyFilter)
+      throws IOException {
+    Preconditions.checkNotNull(version);
+    Preconditions.checkNotNull(keyFilter);
+
+    boolean lenient = in.isLenient();
+    in.setLenient(true);
+    try {
+      Metadata result = readMetadataFields(in, version, keyFilter, -1, null);
+
+      in.endObject();
+
+      return result;
+    } finally {
+      in.setLenient(lenient);
+    }
+  }
+
+  /**
+   * Streaming equivalent of {@link MetadataIOv2#encodeWithVersion(Metadata,
+   * com.google.gson.JsonSerializationContext)} and
+   * {@link MetadataIOv2#encodeWithoutVersion(Metadata, com.google.gson.JsonSerializationContext)}.
+   */
+  private void writeMetadata(JsonWriter out, Metadata src, boolean includeVersion)
+      throws IOException {
+    writeMetadata(out, src, includeVersion, false);
+  }
+
+  /**
+   * @param positional true to write the values as an array, without their keys, false to write
+   *        them as an object
+   */
+  private void writeMetadata(JsonWriter out, Metadata src, boolean includeVersion,
+      boolean positional) throws IOException {
+    if (writeReference(out, src)) {
+      return;
+    }
+
+    if (encodedForms != null && src instanceof FixedMetadata
+        && writeEncodedForm(out, (FixedMetadata) src, includeVersion, positional)) {
+      return;
+    }
+
+    writeMetadataObject(out, src, includeVersion, positional);
+  }
+
+  private void writeMetadataObject(JsonWriter out, Metadata src, boolean includeVersion,
+      boolean positional) throws IOException {
+    out.beginObject();
+    if (includeVersion) {
+      writeName(out, DataTypeInfo.VERSION.getTypeId());
+      writeString(out, src.getVersion().toString());
+    }
+    if (positional) {
+      writePositionalFields(out, src);
+    } else {
+      writeMetadataFields(out, src, null);
+    }
+    out.endObject();
+  }
+
+  /**
+   * Write the encoding of an immutable Metadata, which has just been numbered, from the cache,
+   * encoding it and adding it to the cache first if it is not there yet. The encoding is written
+   * in the context of the Metadata alone, so it is only used if it does not contain references,
+   * and if none of the instances it numbers have already been numbered where the Metadata is being
+   * written.
+   *
+   * @return true if the encoding was written, false if nothing was written
+   */
+  private boolean writeEncodedForm(JsonWriter out, FixedMetadata src, boolean includeVersion,
+      boolean positional) throws IOException {
+    if (!encodedForms.isReusable(src)) {
+      return false;
+    }
+
+    int index = indexOfEncodedForm(includeVersion, positional);
+    EncodedForm form = encodedForms.get(src, index);
+    if (form == null) {
+      form = encode(src, includeVersion, positional);
+      if (form == null) {
+        encodedForms.setNotReusable(src);
+        return false;
+      }
+      encodedForms.put(src, index, form);
+    }
+
+    if (writeReferences) {
+      for (Object instance : form.getInstances()) {
+        if (references.numbers.containsKey(instance)) {
+          return false;
+        }
+      }
+      for (Object instance : form.getInstances()) {
+        references.numbers.put(instance, references.numbers.size());
+      }
+    }
+
+    out.jsonValue(form.json);
+
+    return true;
+  }
+
+  /**
+   * Encode a Metadata on its own, numbering the instances within it as if the Metadata itself were
+   * numbered 0.
+   *
+   * @return the encoding, or null if it contains references
+   */
+  private EncodedForm encode(FixedMetadata src, boolean includeVersion,
+      boolean positional) throws IOException {
+    References formReferences = new References();
+    formReferences.numbers.put(src, 0);
+    MetadataStreamIO formIo = new MetadataStreamIO(gson, null, writeReferences, writeShapes,
+        writeColumns, null, formReferences, null, providedMetadata);
+
+    StringWriter json = new StringWriter();
+    try (JsonWriter formOut = gson.newJsonWriter(json)) {
+      formOut.setIndent("");
+      formOut.setLenient(true);
+      formIo.writeMetadataObject(formOut, src, includeVersion, positional);
+    }
+
+    if (formReferences.referred) {
+      return null;
+    }
+
+    Object[] instances = new Object[formReferences.numbers.size() - 1];
+    for (Map.Entry<Object, Integer> entry : formReferences.numbers.entrySet()) {
+      if (entry.getValue() > 0) {
+        instances[entry.getValue() - 1] = entry.getKey();
+      }
+    }
+
+    return new EncodedForm(json.toString(), Arrays.asList(instances));
+  }
+
+  private void writeOutermost(JsonWriter out, Metadata src, EntryListener listener)
+      throws IOException {
+    out.beginObject();
+    // The version and the dictionary are always written in full, so that they can be read before
+    // it is known whether there is a dictionary.
+    out.name(DataTypeInfo.VERSION.getTypeId()).value(src.getVersion().toString());
+    if (dictionary != null) {
+      out.name(StringDictionary.DICTIONARY_KEY);
+      dictionary.write(out);
+    }
+    writeMetadataFields(out, src, listener);
+    out.endObject();
+  }
+
+  private void writeMetadataFields(JsonWriter out, Metadata src, EntryListener listener)
+      throws IOException {
+    Map<String, Object> map = toMap(src);
+
+    ValueTypeSummary summary = MapBaseIOv2.summarize(map);
+
+    writeHeader(out, summary);
+
+    writeName(out, MapBaseIOv2.VALUE_KEY);
+    out.beginObject();
+    for (Map.Entry<String, Object> entry : map.entrySet()) {
+      if (listener != null) {
+        listener.entryStarted(entry.getKey());
+      }
+      writeName(out, entry.getKey());
+      MetadataStreamIO entryIo = references != null ? this : withNewReferences();
+      entryIo.writeEntry(out, entry.getValue(), summary);
+      if (listener != null) {
+        listener.entryFinished(entry.getKey());
+      }
+    }
+    out.endObject();
+  }
+
+  private void writePositionalFields(JsonWriter out, Metadata src) throws IOException {
+    Map<String, Object> map = toMap(src);
+
+    ValueTypeSummary summary = MapBaseIOv2.summarize(map);
+
+    writeHeader(out, summary);
+
+    writeName(out, MapBaseIOv2.VALUE_KEY);
+    out.beginArray();
+    for (Object value : map.values()) {
+      writeEntry(out, value, summary);
+    }
+    out.endArray();
+  }
+
+  /**
+   * Determine whether the supplied values are all Metadata with the same keys, in the same order,
+   * which may then be written once for all of them.
+   *
+   * @return the identifiers of the shared keys, or null if the values do not share their keys, or
+   *         if there are too few of them to be worth sharing
+   */
+  private List<String> getCommonKeyIds(Iterable<?> values, ValueTypeSummary summary) {
+    if (!writeShapes || !summary.isSameValueType()
+        || !DataTypeInfo.METADATA.getTypeId().equals(summary.getValueTypeId())) {
+      return null;
+    }
+
+    Collection<Key<?>> commonKeys = null;
+    int numberOfValues = 0;
+    for (Object value : values) {
+      if (!(value instanceof Metadata)) {
+        return null;
+      }
+
+      Collection<Key<?>> keys = ((Metadata) value).getKeys();
+      if (commonKeys == null) {
+        commonKeys = keys;
+      } else if (!Iterables.elementsEqual(commonKeys, keys)) {
+        return null;
+      }
+      ++numberOfValues;
+    }
+
+    if (numberOfValues < 2) {
+      return null;
+    }
+
+    List<String> result = new ArrayList<>(commonKeys.size());
+    for (Key<?> key : commonKeys) {
+      result.add(key.getId());
+    }
+
+    return result;
+  }
+
+  /**
+   * Determine whether the supplied values are a list of Metadata with the same keys, whose values
+   * may be written column by column, and if so, get the columns.
+   *
+   * @param commonKeyIds the identifiers of the keys shared by all the values, or null if they do
+   *        not share their keys
+   * @return the column of values for each of the shared keys, in order, or null if the values are
+   *         to be written one by one
+   */
+  private List<Object> getColumns(Iterable<?> values, ValueTypeSummary summary,
+      List<String> commonKeyIds) {
+    if (!writeColumns || commonKeyIds == null || commonKeyIds.isEmpty()
+        || !(values instanceof List) || !summary.excludeMetadataVersionInValues()) {
+      return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    List<Metadata> rows = (List<Metadata>) values;
+
+    if (writeReferences) {
+      // Metadata written in columns are not numbered, so a Metadata that occurs more than once
+      // would not be restored as the same instance.
+      Set<Metadata> distinctRows = Collections.newSetFromMap(new IdentityHashMap<>());
+      for (Metadata row : rows) {
+        if (references.numbers.containsKey(row) || !distinctRows.add(row)) {
+          return null;
+        }
+      }
+    }
+
+    Collection<Key<?>> keys = rows.get(0).getKeys();
+    for (Key<?> key : keys) {
+      if (ColumnarMetadataList.getColumnType(rows, key) == null) {
+        return null;
+      }
+    }
+
+    List<Object> result = new ArrayList<>(keys.size());
+    for (Key<?> key : keys) {
+      result.add(ColumnarMetadataList.getColumn(rows, key));
+    }
+
+    return result;
+  }
+
+  private static Map<String, Object> toMap(Metadata src) {
+    Map<String, Object> result = new LinkedHashMap<>();
+    for (Key<?> key : src.getKeys()) {
+      result.put(key.getId(), src.get(key));
+    }
+
+    return result;
+  }
+
+  /**
+   * Streaming equivalent of {@link MapBaseIOv2#serialize(Map, java.lang.reflect.Type,
+   * com.google.gson.JsonSerializationContext)}.
+   */
+  private void writeMap(JsonWriter out, Map<?, ?> src) throws IOException {
+    ValueTypeSummary summary = MapBaseIOv2.summarize(src);
+    List<String> commonKeyIds = getCommonKeyIds(src.values(), summary);
+
+    out.beginObject();
+    writeName(out, MapBaseIOv2.KEY_TYPE_KEY);
+    writeString(out, summary.getKeyInfo().getTypeId());
+    writeHeader(out, summary, commonKeyIds);
+
+    writeName(out, MapBaseIOv2.VALUE_KEY);
+    out.beginObject();
+    for (Object key : src.keySet()) {
+      writeName(out, key != null ? key.toString() : "null");
+      writeEntry(out, src.get(key), summary, commonKeyIds);
+    }
+    out.endObject();
+
+    out.endObject();
+  }
+
+  /**
+   * Streaming equivalent of {@link IterableIOv2#serialize(Iterable, java.lang.reflect.Type,
+   * com.google.gson.JsonSerializationContext)}.
+   */
+  private void writeIterable(JsonWriter out, Iterable<?> src) throws IOException {
+    ValueTypeSummary summary = IterableIOv2.summarize(src);
+    List<String> commonKeyIds = getCommonKeyIds(src, summary);
+    List<Object> columns = getColumns(src, summary, commonKeyIds);
+
+    out.beginObject();
+    writeHeader(out, summary, commonKeyIds);
+
+    if (columns != null) {
+      writeColumns(out, columns);
+    } else {
+      writeName(out, MapBaseIOv2.VALUE_KEY);
+      out.beginArray();
+      for (Object item : src) {
+        writeEntry(out, item, summary, commonKeyIds);
+      }
+      out.endArray();
+    }
+
+    out.endObject();
+  }
+
+  /**
+   * Write the type identifiers of the supplied columns, followed by the columns themselves, each of
+   * which is written as a single array value.
+   */
+  private void writeColumns(JsonWriter out, List<Object> columns) throws IOException {
+    writeName(out, COLUMNS_KEY);
+    out.beginArray();
+    for (Object column : columns) {
+      writeString(out, DataTypeInfo.forObject(column).getTypeId());
+    }
+    out.endArray();
+
+    writeName(out, MapBaseIOv2.VALUE_KEY);
+    out.beginArray();
+    for (Object column : columns) {
+      writeValue(out, column, DataTypeInfo.forObject(column));
+    }
+    out.endArray();
+  }
+
+  /**
+   * Streaming equivalent of {@link ProxyIOv2#serialize(Object, java.lang.reflect.Type,
+   * com.google.gson.JsonSerializationContext)}.
+   */
+  private void writeProxy(JsonWriter out, Object src) throws IOException {
+    if (writeReference(out, src)) {
+      return;
+    }
+
+    Key<?> key = ProxyIOv2.getProxyKey(src);
+    Metadata metadata = (Metadata) provideMetadata(src, ProxyIOv2::getProxyMetadata);
+
+    references.pending.add(src);
+
+    out.beginObject();
+    writeName(out, ProxyIOv2.PROXIED_TYPE_KEY);
+    writeString(out, key.getId());
+    writeName(out, ProxyIOv2.PROXY_METADATA_KEY);
+    if (metadata != null) {
+      writeMetadata(out, metadata, true);
+    } else {
+      out.nullValue();
+    }
+    out.endObject();
+
+    references.pending.remove(src);
+  }
+
+  /**
+   * Return the Metadata provided by the supplied function for an object stored by a proxy, or the
+   * Metadata already provided for the same instance while creating the dictionary.
+   */
+  private Object provideMetadata(Object src, Function<Object, Object> provider) {
+    if (providedMetadata == null) {
+      return provider.apply(src);
+    }
+
+    return providedMetadata.computeIfAbsent(src, provider);
+  }
+
+  /**
+   * Same as Gson's handling of arrays of Metadata, which uses the Metadata adapter for each element.
+   */
+  private void writeMetadataArray(JsonWriter out, Metadata[] src) throws IOException {
+    out.beginArray();
+    for (Metadata metadata : src) {
+      if (metadata != null) {
+        writeMetadata(out, metadata, true);
+      } else {
+        out.nullValue();
+      }
+    }
+    out.endArray();
+  }
+
+  private void writeHeader(JsonWriter out, ValueTypeSummary summary) throws IOException {
+    writeHeader(out, summary, null);
+  }
+
+  /**
+   * @param commonKeyIds the identifiers of the keys shared by all the values, which are Metadata,
+   *        or null if the values are written with their keys
+   */
+  private void writeHeader(JsonWriter out, ValueTypeSummary summary, List<String> commonKeyIds)
+      throws IOException {
+    if (summary.isSameValueType()) {
+      writeName(out, GsonElement.VALUE_TYPE_KEY);
+      writeString(out, summary.getValueTypeId());
+    }
+    if (summary.excludeMetadataVersionInValues()) {
+      writeName(out, MetadataIOv2.VERSION_KEY);
+      writeString(out, summary.getCommonVersion().toString());
+    }
+    if (commonKeyIds != null) {
+      writeName(out, KEYS_KEY);
+      out.beginArray();
+      for (String keyId : commonKeyIds) {
+        writeString(out, keyId);
+      }
+      out.endArray();
+    }
+  }
+
+  /**
+   * Write a field name, which refers to the dictionary if there is one.
+   */
+  private void writeName(JsonWriter out, String name) throws IOException {
+    if (stringCounts != null) {
+      stringCounts.add(name);
+    }
+    out.name(dictionary != null ? Integer.toString(dictionary.positionOf(name)) : name);
+  }
+
+  /**
+   * Write a type identifier or version, which refers to the dictionary if there is one.
+   */
+  private void writeString(JsonWriter out, String value) throws IOException {
+    if (stringCounts != null) {
+      stringCounts.add(value);
+    }
+    if (dictionary != null) {
+      out.value(dictionary.positionOf(value));
+    } else {
+      out.value(value);
+    }
+  }
+
+  /**
+   * Return an instance that is the same as this one but that has encountered no instances yet.
+   */
+  private MetadataStreamIO withNewReferences() {
+    return new MetadataStreamIO(gson, dictionary, writeReferences, writeShapes, writeColumns,
+        stringCounts, new References(), encodedForms, providedMetadata);
+  }
+
+  /**
+   * If the supplied instance was already written within the current top-level value, write a
+   * reference to it. Otherwise, number it so that later occurrences can refer to it.
+   *
+   * @return true if a reference was written, in which case the instance itself must not be written
+   */
+  private boolean writeReference(JsonWriter out, Object instance) throws IOException {
+    if (!writeReferences) {
+      return false;
+    }
+
+    Integer number = references.numbers.putIfAbsent(instance, references.numbers.size());
+    if (number == null) {
+      return false;
+    }
+    if (references.pending.contains(instance)) {
+      throw new IllegalArgumentException(
+          "Cannot serialize object " + instance + ", which is contained in its own metadata");
+    }
+
+    references.referred = true;
+    out.value(number);
+
+    return true;
+  }
+
+  /**
+   * Reserve the next number for an instance that is about to be read. The instance must be
+   * supplied using {@link #resolveReference(int, Object)} as soon as it exists.
+   */
+  private int reserveReference() {
+    references.instances.add(PENDING);
+    return references.instances.size() - 1;
+  }
+
+  private void resolveReference(int number, Object instance) {
+    if (number >= 0) {
+      references.instances.set(number, instance);
+    }
+  }
+
+  private boolean isReference(JsonReader in) throws IOException {
+    return in.peek() == JsonToken.NUMBER;
+  }
+
+  private Object readReference(JsonReader in) throws IOException {
+    int number = in.nextInt();
+    if (number < 0 || number >= references.instances.size()) {
+      throw new JsonParseException("Invalid reference " + number);
+    }
+
+    Object result = references.instances.get(number);
+    if (result == PENDING) {
+      throw new JsonParseException("Reference " + number + " to an object that is not yet read");
+    }
+
+    return result;
+  }
+
+  private String readName(JsonReader in) throws IOException {
+    return dictionary != null ? dictionary.get(in.nextName()) : in.nextName();
+  }
+
+  private String readString(JsonReader in) throws IOException {
+    return dictionary != null ? dictionary.get(in.nextInt()) : in.nextString();
+  }
+
+  private void writeEntry(JsonWriter out, Object value, ValueTypeSummary summary,
+      List<String> commonKeyIds) throws IOException {
+    if (commonKeyIds != null) {
+      writeMetadata(out, (Metadata) value, !summary.excludeMetadataVersionInValues(), true);
+    } else {
+      writeEntry(out, value, summary);
+    }
+  }
+
+  private void writeEntry(JsonWriter out, Object value, ValueTypeSummary summary)
+      throws IOException {
+    if (summary.isSameValueType()) {
+      writeItem(out, value, summary.excludeMetadataVersionInValues());
+    } else {
+      writeItemWithType(out, value, summary.excludeMetadataVersionInValues());
+    }
+  }
+
+  /**
+   * Streaming equivalent of {@link GsonElement#encodeItem(Object, boolean,
+   * com.google.gson.JsonSerializationContext)}.
+   */
+  private void writeItem(JsonWriter out, Object item, boolean excludeMetadataVersion)
+      throws IOException {
+    if (item != null && INSTANCE_GETTER.isStorableAsMetadata(item)) {
+      if (writeReference(out, item)) {
+        return;
+      }
+
+      references.pending.add(item);
+      writeItem(out, provideMetadata(item, Utilities::provideMetadataIfPossible),
+          excludeMetadataVersion);
+      references.pending.remove(item);
+
+      return;
+    }
+
+    DataTypeInfo typeInfo = DataTypeInfo.forObject(item);
+
+    if (excludeMetadataVersion && typeInfo == DataTypeInfo.METADATA) {
+      writeMetadata(out, (Metadata) item, false);
+    } else {
+      writeValue(out, item, typeInfo);
+    }
+  }
+
+  /**
+   * Streaming equivalent of {@link GsonElement#encodeItemWithType(Object, boolean,
+   * com.google.gson.JsonSerializationContext)}.
+   */
+  private void writeItemWithType(JsonWriter out, Object item, boolean excludeMetadataVersion)
+      throws IOException {
+    Key<? extends Object> typeKey = Utilities.provideTypeKeyIfPossible(item);
+
+    // The item itself is converted to Metadata (if it can be) by writeItem.
+    String typeId = typeKey != null ? typeKey.getId() : DataTypeInfo.forObject(item).getTypeId();
+
+    out.beginObject();
+    writeName(out, typeId);
+    writeItem(out, item, excludeMetadataVersion);
+    out.endObject();
+  }
+
+  /**
+   * Write the supplied value the way the type adapter registered for the supplied type would. The
+   * types whose registered adapters build trees are written here directly; everything else is a
+   * leaf and is handed to Gson.
+   */
+  private void writeValue(JsonWriter out, Object value, DataTypeInfo typeInfo) throws IOException {
+    if (value == null) {
+      out.nullValue();
+      return;
+    }
+
+    switch (typeInfo) {
+      case METADATA:
+        writeMetadata(out, (Metadata) value, true);
+        break;
+      case MAP:
+      case SORTED_MAP:
+        writeMap(out, (Map<?, ?>) value);
+        break;
+      case LIST:
+      case ITERABLE:
+      case SET:
+      case SORTED_SET:
+        writeIterable(out, (Iterable<?>) value);
+        break;
+      case PROXIED_OBJECT:
+        writeProxy(out, value);
+        break;
+      case METADATA_ARRAY:
+        writeMetadataArray(out, (Metadata[]) value);
+        break;
+      default:
+        if (stringCounts != null) {
+          // Leaf values never refer to the dictionary, so there is no need to encode them while
+          // collecting its strings.
+          out.nullValue();
+        } else {
+          gson.toJson(value, typeInfo.getType(), out);
+        }
+        break;
+    }
+  }
+
+
+  /**
+   * Streaming equivalent of {@link MetadataIOv2#decode(com.google.gson.JsonObject, Version,
+   * com.google.gson.JsonDeserializationContext)} and
+   * {@link MetadataIOv2#decodeWithVersion(com.google.gson.JsonObject,
+   * com.google.gson.JsonDeserializationContext)}. The Metadata is built directly from the tokens
+   * without first building an intermediate tree or map.
+   * 
+   * @param in the reader, positioned at the start of an encoded Metadata object
+   * @param version the version to use for the Metadata if it was encoded without its own version,
+   *        or null if the encoded Metadata is expected to include its version
+   */
+  private Metadata readMetadata(JsonReader in, Version version, int referenceNumber)
+      throws IOException {
+    in.beginObject();
+
+    Metadata result = readMetadataFields(in, version, ALL_KEYS, referenceNumber, null);
+
+    in.endObject();
+
+    return result;
+  }
+
+  /**
+   * @param referenceNumber the number reserved for the Metadata, which is supplied as soon as it is
+   *        created so that its values can refer to it, or -1 if none was reserved
+   * @param keyIds the identifiers of the keys, if the values were written as an array, or null if
+   *        they were written with their keys
+   */
+  private Metadata readMetadataFields(JsonReader in, Version version, Predicate<String> keyFilter,
+      int referenceNumber, List<String> keyIds) throws IOException {
+    Key<?> valueType = null;
+    Version commonVersion = null;
+    SettableMetadata result = null;
+
+    // The encoders always write the fields that describe the values before the values themselves,
+    // so everything needed to decode the values is known by the time they are reached.
+    while (in.hasNext()) {
+      String name = readName(in);
+      if (dictionary == null && name.equals(StringDictionary.DICTIONARY_KEY)) {
+        if (valueType != null || commonVersion != null || result != null) {
+          throw new JsonParseException("Dictionary must precede the fields that refer to it");
+        }
+        // Decode the rest of the fields using the dictionary.
+        return new MetadataStreamIO(gson, StringDictionary.read(in)).readMetadataFields(in,
+            version, keyFilter, referenceNumber, keyIds);
+      } else if (name.equals(DataTypeInfo.VERSION.getTypeId())) {
+        version = Version.of(readString(in));
+      } else if (name.equals(GsonElement.VALUE_TYPE_KEY)) {
+        valueType = Key.of(readString(in));
+      } else if (name.equals(MetadataIOv2.VERSION_KEY)) {
+        commonVersion = Version.of(readString(in));
+      } else if (name.equals(MapBaseIOv2.VALUE_KEY)) {
+        if (version == null) {
+          throw new JsonParseException("Metadata version must precede its values");
+        }
+        result = SettableMetadata.of(version);
+        resolveReference(referenceNumber, result);
+
+        if (keyIds != null) {
+          readPositionalValues(in, valueType, commonVersion, keyIds, result);
+        } else {
+          readValues(in, valueType, commonVersion, keyFilter, result);
+        }
+      } else {
+        in.skipValue();
+      }
+    }
+
+    if (result == null) {
+      throw new JsonParseException("Encoded Metadata has no \"" + MapBaseIOv2.VALUE_KEY + "\"");
+    }
+
+    return result;
+  }
+
+  /**
+   * Read an object containing some or all of the values of an encoded Metadata, in the same form
+   * as the object in the Metadata's "value" field, and add them to the supplied Metadata. The type
+   * information from the encoded Metadata's header must be supplied.
+   * 
+   * @param in the reader, positioned at the start of the object
+   * @param valueTypeId the encoded Metadata's "valueType", or null if it had none
+   * @param commonVersion the encoded Metadata's "metadata.Version", or null if it had none
+   * @param result the Metadata to which to add the values
+   */
+  void readValues(JsonReader in, String valueTypeId, Version commonVersion,
+      SettableMetadata result) throws IOException {
+    Preconditions.checkNotNull(result);
+
+    boolean lenient = in.isLenient();
+    in.setLenient(true);
+    try {
+      readValues(in, valueTypeId != null ? Key.of(valueTypeId) : null, commonVersion, ALL_KEYS,
+          result);
+    } finally {
+      in.setLenient(lenient);
+    }
+  }
+
+  private void readValues(JsonReader in, Key<?> valueType, Version commonVersion,
+      Predicate<String> keyFilter, SettableMetadata result) throws IOException {
+    in.beginObject();
+    while (in.hasNext()) {
+      String keyId = readName(in);
+      if (keyFilter.test(keyId)) {
+        MetadataStreamIO entryIo = references != null ? this : withNewReferences();
+        result.put(Key.of(keyId), entryIo.readEntry(in, valueType, commonVersion));
+      } else {
+        in.skipValue();
+      }
+    }
+    in.endObject();
+  }
+
+  private void readPositionalValues(JsonReader in, Key<?> valueType, Version commonVersion,
+      List<String> keyIds, SettableMetadata result) throws IOException {
+    in.beginArray();
+    for (String keyId : keyIds) {
+      if (!in.hasNext()) {
+        throw new JsonParseException(
+            "Metadata has fewer values than its " + keyIds.size() + " keys");
+      }
+      result.put(Key.of(keyId), readEntry(in, valueType, commonVersion));
+    }
+    if (in.hasNext()) {
+      throw new JsonParseException(
+          "Metadata has more values than its " + keyIds.size() + " keys");
+    }
+    in.endArray();
+  }
+
+  /**
+   * Read a Metadata value of a collection or map whose header lists the keys of its values.
+   */
+  private Object readPositionalMetadata(JsonReader in, Version version, List<String> keyIds)
+      throws IOException {
+    if (isReference(in)) {
+      return readReference(in);
+    }
+
+    int referenceNumber = reserveReference();
+
+    in.beginObject();
+
+    Metadata result = readMetadataFields(in, version, ALL_KEYS, referenceNumber, keyIds);
+
+    in.endObject();
+
+    return result;
+  }
+
+  private List<String> readKeyIds(JsonReader in) throws IOException {
+    List<String> result = new ArrayList<>();
+
+    in.beginArray();
+    while (in.hasNext()) {
+      result.add(readString(in));
+    }
+    in.endArray();
+
+    return result;
+  }
+
+  /**
+   * Streaming equivalent of {@link MapBaseIOv2#deserialize(com.google.gson.JsonObject,
+   * com.google.gson.JsonDeserializationContext, Map)}.
+   */
+  private <M extends Map<Object, Object>> M readMap(JsonReader in, M result) throws IOException {
+    DataTypeInfo mapKeyInfo = null;
+    Key<?> valueType = null;
+    Version commonVersion = null;
+    List<String> commonKeyIds = null;
+
+    in.beginObject();
+    while (in.hasNext()) {
+      String name = readName(in);
+      if (name.equals(MapBaseIOv2.KEY_TYPE_KEY)) {
+        mapKeyInfo = DataTypeInfo.of(readString(in));
+      } else if (name.equals(GsonElement.VALUE_TYPE_KEY)) {
+        valueType = Key.of(readString(in));
+      } else if (name.equals(MetadataIOv2.VERSION_KEY)) {
+        commonVersion = Version.of(readString(in));
+      } else if (name.equals(KEYS_KEY)) {
+        commonKeyIds = readKeyIds(in);
+      } else if (name.equals(MapBaseIOv2.VALUE_KEY)) {
+        if (mapKeyInfo == null) {
+          throw new JsonParseException("Map key type must precede its values");
+        }
+
+        in.beginObject();
+        while (in.hasNext()) {
+          Object key = decodeKey(readName(in), mapKeyInfo);
+          result.put(key,
+              commonKeyIds != null ? readPositionalMetadata(in, commonVersion, commonKeyIds)
+                  : readEntry(in, valueType, commonVersion));
+        }
+        in.endObject();
+      } else {
+        in.skipValue();
+      }
+    }
+    in.endObject();
+
+    return result;
+  }
+
+  /**
+   * Streaming equivalent of {@link IterableIOv2#deserialize(com.google.gson.JsonObject,
+   * com.google.gson.JsonDeserializationContext)}.
+   */
+  private List<?> readIterable(JsonReader in) throws IOException {
+    Key<?> valueType = null;
+    Version commonVersion = null;
+    List<String> commonKeyIds = null;
+    List<DataTypeInfo> columnTypes = null;
+    List<Object> result = new ArrayList<>();
+    ColumnarMetadataList columns = null;
+
+    in.beginObject();
+    while (in.hasNext()) {
+      String name = readName(in);
+      if (name.equals(GsonElement.VALUE_TYPE_KEY)) {
+        valueType = Key.of(readString(in));
+      } else if (name.equals(MetadataIOv2.VERSION_KEY)) {
+        commonVersion = Version.of(readString(in));
+      } else if (name.equals(KEYS_KEY)) {
+        commonKeyIds = readKeyIds(in);
+      } else if (name.equals(COLUMNS_KEY)) {
+        columnTypes = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+          columnTypes.add(DataTypeInfo.of(readString(in)));
+        }
+        in.endArray();
+      } else if (name.equals(MapBaseIOv2.VALUE_KEY) && columnTypes != null) {
+        columns = readColumns(in, commonVersion, commonKeyIds, columnTypes);
+      } else if (name.equals(MapBaseIOv2.VALUE_KEY)) {
+        in.beginArray();
+        while (in.hasNext()) {
+          result.add(commonKeyIds != null ? readPositionalMetadata(in, commonVersion, commonKeyIds)
+              : readEntry(in, valueType, commonVersion));
+        }
+        in.endArray();
+      } else {
+        in.skipValue();
+      }
+    }
+    in.endObject();
+
+    return columns != null ? columns : result;
+  }
+
+  /**
+   * Read the columns of a list of Metadata written column by column.
+   */
+  private ColumnarMetadataList readColumns(JsonReader in, Version version, List<String> keyIds,
+      List<DataTypeInfo> columnTypes) throws IOException {
+    if (version == null || keyIds == null) {
+      throw new JsonParseException("Metadata version and keys must precede the columns");
+    }
+    if (keyIds.size() != columnTypes.size()) {
+      throw new JsonParseException("List of Metadata with " + keyIds.size() + " keys has "
+          + columnTypes.size() + " column types");
+    }
+
+    List<Key<?>> keys = new ArrayList<>(keyIds.size());
+    for (String keyId : keyIds) {
+      keys.add(Key.of(keyId));
+    }
+
+    List<Object> columns = new ArrayList<>(columnTypes.size());
+    in.beginArray();
+    for (DataTypeInfo typeInfo : columnTypes) {
+      if (!in.hasNext()) {
+        throw new JsonParseException(
+            "List of Metadata has fewer columns than its " + keyIds.size() + " keys");
+      }
+      columns.add(readValue(in, typeInfo, null));
+    }
+    if (in.hasNext()) {
+      throw new JsonParseException(
+          "List of Metadata has more columns than its " + keyIds.size() + " keys");
+    }
+    in.endArray();
+
+    try {
+      return ColumnarMetadataList.of(version, keys, columns);
+    } catch (IllegalArgumentException | NullPointerException e) {
+      throw new JsonParseException("Invalid columns of a list of Metadata", e);
+    }
+  }
+
+  /**
+   * Streaming equivalent of {@link ProxyIOv2#deserialize(com.google.gson.JsonElement,
+   * java.lang.reflect.Type, com.google.gson.JsonDeserializationContext)}.
+   */
+  private Object readProxy(JsonReader in) throws IOException {
+    int referenceNumber = reserveReference();
+    Key<Object> proxyKey = null;
+    Metadata objectMetadata = null;
+
+    in.beginObject();
+    while (in.hasNext()) {
+      String name = readName(in);
+      if (name.equals(ProxyIOv2.PROXIED_TYPE_KEY)) {
+        proxyKey = Key.of(readString(in));
+      } else if (name.equals(ProxyIOv2.PROXY_METADATA_KEY)) {
+        objectMetadata = (Metadata) readValue(in, DataTypeInfo.METADATA, null);
+      } else {
+        in.skipValue();
+      }
+    }
+    in.endObject();
+
+    if (proxyKey == null) {
+      throw new JsonParseException("Proxied object has no \"" + ProxyIOv2.PROXIED_TYPE_KEY + "\"");
+    }
+
+    Object result =
+        INSTANCE_GETTER.providesGenericObjectFromMetadata(proxyKey).provide(objectMetadata);
+    resolveReference(referenceNumber, result);
+
+    return result;
+  }
+
+  private Metadata[] readMetadataArray(JsonReader in) throws IOException {
+    List<Metadata> result = new ArrayList<>();
+
+    in.beginArray();
+    while (in.hasNext()) {
+      result.add((Metadata) readValue(in, DataTypeInfo.METADATA, null));
+    }
+    in.endArray();
+
+    return result.toArray(new Metadata[result.size()]);
+  }
+
+  private Object readEntry(JsonReader in, Key<?> valueType, Version commonVersion)
+      throws IOException {
+    return valueType != null ? readItem(in, valueType, commonVersion)
+        : readItemWithType(in, commonVersion);
+  }
+
+  /**
+   * Streaming equivalent of {@link GsonElement#decodeItem(com.google.gson.JsonElement, Key,
+   * Version, com.google.gson.JsonDeserializationContext)}.
+   */
+  private Object readItem(JsonReader in, Key<?> typeKey, Version commonVersion)
+      throws IOException {
+    if (INSTANCE_GETTER.isProvidableFromMetadata(typeKey)) {
+      if (isReference(in)) {
+        return readReference(in);
+      }
+
+      int referenceNumber = reserveReference();
+      Metadata metadata = (Metadata) readValue(in, DataTypeInfo.METADATA, commonVersion);
+      Object result = INSTANCE_GETTER.providesGenericObjectFromMetadata(typeKey).provide(metadata);
+      resolveReference(referenceNumber, result);
+
+      return result;
+    }
+
+    return readValue(in, DataTypeInfo.of(typeKey.getId()), commonVersion);
+  }
+
+  /**
+   * Streaming equivalent of {@link GsonElement#decodeItem(com.google.gson.JsonElement, Version,
+   * com.google.gson.JsonDeserializationContext)}: the item is encoded as an object with exactly one
+   * field, whose name identifies the type of the field's value.
+   */
+  private Object readItemWithType(JsonReader in, Version commonVersion) throws IOException {
+    in.beginObject();
+
+    Object result = readItem(in, Key.of(readName(in)), commonVersion);
+
+    in.endObject();
+
+    return result;
+  }
+
+  /**
+   * Read a value the way the type adapter registered for the supplied type would. The types whose
+   * registered adapters use trees are decoded here directly; everything else is a leaf and is
+   * handed to Gson.
+   */
+  private Object readValue(JsonReader in, DataTypeInfo typeInfo, Version commonVersion)
+      throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+
+    if ((typeInfo == DataTypeInfo.METADATA || typeInfo == DataTypeInfo.PROXIED_OBJECT)
+        && isReference(in)) {
+      return readReference(in);
+    }
+
+    switch (typeInfo) {
+      case METADATA:
+        return readMetadata(in, commonVersion, reserveReference());
+      case MAP:
+        return readMap(in, new LinkedHashMap<>());
+      case SORTED_MAP:
+        return readMap(in, new TreeMap<>());
+      case LIST:
+      case ITERABLE:
+        return readIterable(in);
+      case SET:
+        return new LinkedHashSet<>(readIterable(in));
+      case SORTED_SET:
+        return new TreeSet<>(readIterable(in));
+      case PROXIED_OBJECT:
+        return readProxy(in);
+      case METADATA_ARRAY:
+        return readMetadataArray(in);
+      default:
+        return gson.getAdapter(TypeToken.get(typeInfo.getType())).read(in);
+    }
+  }
+
+  /**
+   * Same as {@link MapBaseIOv2#decodeKeyString(String, DataTypeInfo,
+   * com.google.gson.JsonDeserializationContext)}.
+   */
+  private Object decodeKey(String keyString, DataTypeInfo typeInfo) {
+    if (keyString.equals("null")) {
+      return null;
+    }
+    if (typeInfo == DataTypeInfo.STRING) {
+      return keyString;
+    }
+    return gson.fromJson(new JsonPrimitive(keyString), typeInfo.getType());
+  }
+
+}
@@ -0,0 +1,259 @@
+package edu.jhuapl.ses.jsqrl.impl.gson;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Base64;
+
+import com.google.common.base.Preconditions;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Encodes arrays of primitive numbers (double[], float[], int[], long[], short[] and byte[]) as
+ * single blocks of little-endian bytes, which are copied to and from the arrays in bulk instead of
+ * element by element. In JSON, a block is written as a base64 string.
+ * <p>
+ * As a Gson {@link TypeAdapterFactory}, this writes either blocks or (as Gson does by default)
+ * arrays of numbers, depending on how it was created. Either form is accepted when reading.
+ */
+public final class PrimitiveArrayIO implements TypeAdapterFactory {
+
+  /**
+   * @param arrayType the type of an array
+   * @return true if arrays of the supplied type may be encoded as blocks
+   */
+  public static boolean isSupported(Class<?> arrayType) {
+    switch (DataTypeInfo.of(arrayType)) {
+      case DOUBLE_ARRAY:
+      case FLOAT_ARRAY:
+      case INTEGER_ARRAY:
+      case LONG_ARRAY:
+      case SHORT_ARRAY:
+      case BYTE_ARRAY:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @param arrayType a type for which {@link #isSupported(Class)} returns true
+   * @return the number of bytes used to encode each element
+   */
+  public static int getElementSize(Class<?> arrayType) {
+    switch (DataTypeInfo.of(arrayType)) {
+      case DOUBLE_ARRAY:
+        return Double.BYTES;
+      case FLOAT_ARRAY:
+        return Float.BYTES;
+      case INTEGER_ARRAY:
+        return Integer.BYTES;
+      case LONG_ARRAY:
+        return Long.BYTES;
+      case SHORT_ARRAY:
+        return Short.BYTES;
+      case BYTE_ARRAY:
+        return Byte.BYTES;
+      default:
+        throw new IllegalArgumentException(
+            "Cannot encode " + arrayType.getSimpleName() + " as a block");
+    }
+  }
+
+  /**
+   * Encode the supplied array as a block.
+   *
+   * @param array the array, whose type must be supported
+   * @return the little-endian bytes of the elements
+   */
+  public static byte[] encode(Object array) {
+    Class<?> arrayType = array.getClass();
+    DataTypeInfo info = DataTypeInfo.of(arrayType);
+
+    if (info == DataTypeInfo.BYTE_ARRAY) {
+      return ((byte[]) array).clone();
+    }
+
+    int length = Array.getLength(array);
+    ByteBuffer buffer = ByteBuffer.allocate(Math.multiplyExact(length, getElementSize(arrayType)))
+        .order(ByteOrder.LITTLE_ENDIAN);
+
+    switch (info) {
+      case DOUBLE_ARRAY:
+        buffer.asDoubleBuffer().put((double[]) array);
+        break;
+      case FLOAT_ARRAY:
+        buffer.asFloatBuffer().put((float[]) array);
+        break;
+      case INTEGER_ARRAY:
+        buffer.asIntBuffer().put((int[]) array);
+        break;
+      case LONG_ARRAY:
+        buffer.asLongBuffer().put((long[]) array);
+        break;
+      case SHORT_ARRAY:
+        buffer.asShortBuffer().put((short[]) array);
+        break;
+      default:
+        throw new IllegalArgumentException(
+            "Cannot encode " + arrayType.getSimpleName() + " as a block");
+    }
+
+    return buffer.array();
+  }
+
+  /**
+   * Decode a block returned by {@link #encode(Object)}.
+   *
+   * @param bytes the little-endian bytes of the elements
+   * @param arrayType the type of the array to return, which must be supported
+   * @return the array
+   */
+  public static Object decode(byte[] bytes, Class<?> arrayType) {
+    if (DataTypeInfo.of(arrayType) == DataTypeInfo.BYTE_ARRAY) {
+      return bytes;
+    }
+
+    return decode(ByteBuffer.wrap(bytes), arrayType);
+  }
+
+  /**
+   * Decode a block returned by {@link #encode(Object)}, copying the elements directly from the
+   * supplied buffer, which may for example be a slice of a memory-mapped file.
+   *
+   * @param block the little-endian bytes of the elements, from the buffer's position to its limit.
+   *        The buffer's position, limit and byte order are not changed
+   * @param arrayType the type of the array to return, which must be supported
+   * @return the array
+   */
+  public static Object decode(ByteBuffer block, Class<?> arrayType) {
+    int elementSize = getElementSize(arrayType);
+    int numberOfBytes = block.remaining();
+    Preconditions.checkArgument(numberOfBytes % elementSize == 0,
+        "Block of %s bytes is not a whole number of %s-byte elements", numberOfBytes, elementSize);
+
+    int length = numberOfBytes / elementSize;
+    ByteBuffer buffer = block.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+    switch (DataTypeInfo.of(arrayType)) {
+      case DOUBLE_ARRAY:
+        double[] doubles = new double[length];
+        buffer.asDoubleBuffer().get(doubles);
+        return doubles;
+      case FLOAT_ARRAY:
+        float[] floats = new float[length];
+        buffer.asFloatBuffer().get(floats);
+        return floats;
+      case INTEGER_ARRAY:
+        int[] ints = new int[length];
+        buffer.asIntBuffer().get(ints);
+        return ints;
+      case LONG_ARRAY:
+        long[] longs = new long[length];
+        buffer.asLongBuffer().get(longs);
+        return longs;
+      case SHORT_ARRAY:
+        short[] shorts = new short[length];
+        buffer.asShortBuffer().get(shorts);
+        return shorts;
+      case BYTE_ARRAY:
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+      default:
+        throw new AssertionError();
+    }
+  }
+
+  /**
+   * Return a read-only view of the elements of a block returned by {@link #encode(Object)}, without
+   * copying them.
+   *
+   * @param block the little-endian bytes of the elements, from the buffer's position to its limit.
+   *        The buffer's position, limit and byte order are not changed
+   * @param arrayType the type of the array the block encodes, which must be supported
+   * @return a {@link java.nio.DoubleBuffer} for double[], a {@link java.nio.IntBuffer} for int[]
+   *         etc., or a {@link ByteBuffer} for byte[]
+   */
+  public static Buffer view(ByteBuffer block, Class<?> arrayType) {
+    int elementSize = getElementSize(arrayType);
+    Preconditions.checkArgument(block.remaining() % elementSize == 0,
+        "Block of %s bytes is not a whole number of %s-byte elements", block.remaining(),
+        elementSize);
+
+    ByteBuffer buffer = block.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+
+    switch (DataTypeInfo.of(arrayType)) {
+      case DOUBLE_ARRAY:
+        return buffer.asDoubleBuffer();
+      case FLOAT_ARRAY:
+        return buffer.asFloatBuffer();
+      case INTEGER_ARRAY:
+        return buffer.asIntBuffer();
+      case LONG_ARRAY:
+        return buffer.asLongBuffer();
+      case SHORT_ARRAY:
+        return buffer.asShortBuffer();
+      case BYTE_ARRAY:
+        return buffer.slice();
+      default:
+        throw new AssertionError();
+    }
+  }
+
+  private final boolean writeBlocks;
+
+  /**
+   * @param writeBlocks true to write arrays as base64 blocks, false to write them as arrays of
+   *        numbers
+   */
+  PrimitiveArrayIO(boolean writeBlocks) {
+    this.writeBlocks = writeBlocks;
+  }
+
+  @Override
+  public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+    Class<? super T> arrayType = type.getRawType();
+    if (!arrayType.isArray() || !isSupported(arrayType)) {
+      return null;
+    }
+
+    TypeAdapter<T> delegate = gson.getDelegateAdapter(this, type);
+
+    return new TypeAdapter<T>() {
+
+      @Override
+      public void write(JsonWriter out, T value) throws IOException {
+        if (value == null) {
+          out.nullValue();
+        } else if (writeBlocks) {
+          out.value(Base64.getEncoder().encodeToString(encode(value)));
+        } else {
+          delegate.write(out, value);
+        }
+      }
+
+      @Override
+      public T read(JsonReader in) throws IOException {
+        if (in.peek() != JsonToken.STRING) {
+          return delegate.read(in);
+        }
+
+        @SuppressWarnings("unchecked")
+        T result = (T) decode(Base64.getDecoder().decode(in.nextString()), arrayType);
+
+        return result;
+      }
+
+    };
+  }
+
+}
@@ -15,29 +15,53 @@ import edu.jhuapl.ses.jsqrl.impl.InstanceGetter;
 
 final class ProxyIOv2<T> implements ProxyIO<T> {
 
-  @Override
-  public JsonElement serialize(Object src, @SuppressWarnings("unused") Type typeOfSrc,
-      JsonSerializationContext context) {
-    JsonObject object = new JsonObject();
+  static final String PROXIED_TYPE_KEY = "proxiedType";
+  static final String PROXY_METADATA_KEY = "proxyMetadata";
 
-    Key<?> key;
-    Metadata metadata;
+  /**
+   * Return the key identifying the type of the supplied proxied object.
+   * 
+   * @param src the object, which must either implement {@link StorableAsMetadata} or be of a type
+   *        registered with the default {@link InstanceGetter}
+   * @return the type key
+   */
+  static Key<?> getProxyKey(Object src) {
     if (src instanceof StorableAsMetadata) {
-      StorableAsMetadata<?> storable = (StorableAsMetadata<?>) src;
+      return ((StorableAsMetadata<?>) src).getKey();
+    }
 
-      key = storable.getKey();
-      metadata = storable.store();
-    } else {
-      @SuppressWarnings("unchecked")
-      Class<Object> objectType = (Class<Object>) src.getClass();
-      InstanceGetter instanceGetter = InstanceGetter.defaultInstanceGetter();
+    return InstanceGetter.defaultInstanceGetter().getKeyForType(src.getClass());
+  }
 
-      key = instanceGetter.getKeyForType(objectType);
-      metadata = instanceGetter.providesMetadataFromGenericObject(objectType).provide(src);
+  /**
+   * Return the metadata that represents the state of the supplied proxied object.
+   * 
+   * @param src the object, which must either implement {@link StorableAsMetadata} or be of a type
+   *        registered with the default {@link InstanceGetter}
+   * @return the metadata
+   */
+  static Metadata getProxyMetadata(Object src) {
+    if (src instanceof StorableAsMetadata) {
+      return ((StorableAsMetadata<?>) src).store();
     }
 
-    object.addProperty("proxiedType", key.getId());
-    object.add("proxyMetadata", context.serialize(metadata, DataTypeInfo.METADATA.getType()));
+    @SuppressWarnings("unchecked")
+    Class<Object> objectType = (Class<Object>) src.getClass();
+    InstanceGetter instanceGetter = InstanceGetter.defaultInstanceGetter();
+
+    return instanceGetter.providesMetadataFromGenericObject(objectType).provide(src);
+  }
+
+  @Override
+  public JsonElement serialize(Object src, @SuppressWarnings("unused") Type typeOfSrc,
+      JsonSerializationContext context) {
+    JsonObject object = new JsonObject();
+
+    Key<?> key = getProxyKey(src);
+    Metadata metadata = getProxyMetadata(src);
+
+    object.addProperty(PROXIED_TYPE_KEY, key.getId());
+    object.add(PROXY_METADATA_KEY, context.serialize(metadata, DataTypeInfo.METADATA.getType()));
 
     return object;
   }
@@ -46,9 +70,9 @@ final class ProxyIOv2<T> implements ProxyIO<T> {
   public T deserialize(JsonElement json, @SuppressWarnings("unused") Type typeOfT,
       JsonDeserializationContext context) throws JsonParseException {
     JsonObject object = json.getAsJsonObject();
-    Key<T> proxyKey = Key.of(object.get("proxiedType").getAsString());
+    Key<T> proxyKey = Key.of(object.get(PROXIED_TYPE_KEY).getAsString());
     Metadata objectMetadata =
-        context.deserialize(object.get("proxyMetadata"), DataTypeInfo.METADATA.getType());
+        context.deserialize(object.get(PROXY_METADATA_KEY), DataTypeInfo.METADATA.getType());
 
     return InstanceGetter.defaultInstanceGetter().providesGenericObjectFromMetadata(proxyKey)
         .provide(objectMetadata);
@@ -0,0 +1,339 @@
+package edu.jhuapl.ses.jsqrl.impl.gson;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import edu.jhuapl.ses.jsqrl.api.Version;
+
+/**
+ * Manifest of a segmented file (see {@link SerializerOptions#withSegments(boolean)}). The manifest
+ * is saved under the name of the file, and refers to a data file in the same directory that holds
+ * one segment for each top-level value. Each segment is encoded exactly as a whole file holding
+ * only that value would be. The manifest records the offset and length of each segment in the data
+ * file, and a hash of its content, from which a later save can tell which segments changed.
+ * <p>
+ * Segments that did not change are left where they are; changed segments are appended to the data
+ * file. Each data file has a generation number; once a data file holds more bytes of segments that
+ * are no longer used than of segments that are, the next save writes all the segments to a data
+ * file of the next generation instead, and the old one is deleted.
+ */
+final class SegmentManifest {
+
+  private static final Version MANIFEST_VERSION = Version.of(1, 0);
+
+  /**
+   * Name of the first field of a manifest, which distinguishes it from other files.
+   */
+  private static final String MANIFEST_KEY = "segmentManifest";
+
+  private static final String METADATA_VERSION_KEY = "metadataVersion";
+  private static final String GENERATION_KEY = "generation";
+  private static final String DATA_FILE_KEY = "dataFile";
+  private static final String SEGMENTS_KEY = "segments";
+
+  private static final String DATA_FILE_SUFFIX = ".segments";
+  private static final String TEMPORARY_FILE_SUFFIX = ".manifest";
+
+  /**
+   * Location and hash of the segment that holds one top-level value.
+   */
+  static final class Segment {
+    private final long offset;
+    private final long length;
+    private final HashCode hash;
+
+    Segment(long offset, long length, HashCode hash) {
+      Preconditions.checkArgument(offset >= 0 && length >= 0);
+      Preconditions.checkNotNull(hash);
+      this.offset = offset;
+      this.length = length;
+      this.hash = hash;
+    }
+
+    long getOffset() {
+      return offset;
+    }
+
+    long getLength() {
+      return length;
+    }
+
+    HashCode getHash() {
+      return hash;
+    }
+
+  }
+
+  static HashCode hash(byte[] content) {
+    return Hashing.sha256().hashBytes(content);
+  }
+
+  /**
+   * @return the data file of the supplied generation for the segmented file
+   */
+  static File dataFileFor(File file, int generation) {
+    return new File(file.getPath() + DATA_FILE_SUFFIX + "." + generation);
+  }
+
+  /**
+   * @return true if the file is named as a data file of a segmented file whose manifest exists,
+   *         whether or not the manifest still uses that generation
+   */
+  static boolean isDataFile(File file) {
+    String path = file.getPath();
+    int index = path.lastIndexOf(DATA_FILE_SUFFIX + ".");
+    if (index < 0) {
+      return false;
+    }
+
+    String generation = path.substring(index + DATA_FILE_SUFFIX.length() + 1);
+    return generation.matches("[0-9]+") && isManifest(new File(path.substring(0, index)));
+  }
+
+  /**
+   * @return true if the file exists and is a manifest
+   */
+  static boolean isManifest(File file) {
+    if (!file.isFile()) {
+      return false;
+    }
+
+    try (JsonReader reader = new JsonReader(Files.newReader(file, StandardCharsets.UTF_8))) {
+      return reader.peek() == JsonToken.BEGIN_OBJECT && beginManifest(reader);
+    } catch (IOException | RuntimeException e) {
+      return false;
+    }
+  }
+
+  private static boolean beginManifest(JsonReader reader) throws IOException {
+    reader.beginObject();
+    return reader.hasNext() && reader.nextName().equals(MANIFEST_KEY);
+  }
+
+  static SegmentManifest of(Version version, int generation, File dataFile,
+      Map<String, Segment> segments) {
+    Preconditions.checkNotNull(version);
+    Preconditions.checkArgument(generation >= 0);
+
+    return new SegmentManifest(version, generation, dataFile.getName(),
+        ImmutableMap.copyOf(segments));
+  }
+
+  static SegmentManifest read(File file) throws IOException {
+    Preconditions.checkNotNull(file);
+
+    try (JsonReader reader = new JsonReader(Files.newReader(file, StandardCharsets.UTF_8))) {
+      if (!beginManifest(reader)) {
+        throw new IOException("File " + file + " is not a segment manifest");
+      }
+
+      Version manifestVersion = Version.of(reader.nextString());
+      if (manifestVersion.getMajor() != MANIFEST_VERSION.getMajor()) {
+        throw new IOException("Unsupported segment manifest version " + manifestVersion);
+      }
+
+      Version version = null;
+      Integer generation = null;
+      String dataFileName = null;
+      Map<String, Segment> segments = new LinkedHashMap<>();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (name.equals(METADATA_VERSION_KEY)) {
+          version = Version.of(reader.nextString());
+        } else if (name.equals(GENERATION_KEY)) {
+          generation = reader.nextInt();
+        } else if (name.equals(DATA_FILE_KEY)) {
+          dataFileName = reader.nextString();
+        } else if (name.equals(SEGMENTS_KEY)) {
+          reader.beginObject();
+          while (reader.hasNext()) {
+            String keyId = reader.nextName();
+            reader.beginArray();
+            segments.put(keyId, new Segment(reader.nextLong(), reader.nextLong(),
+                HashCode.fromString(reader.nextString())));
+            reader.endArray();
+          }
+          reader.endObject();
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+
+      if (version == null || generation == null || dataFileName == null) {
+        throw new JsonParseException("Incomplete segment manifest " + file);
+      }
+
+      return new SegmentManifest(version, generation, dataFileName, ImmutableMap.copyOf(segments));
+    } catch (RuntimeException e) {
+      throw new IOException("Unable to read segment manifest " + file, e);
+    }
+  }
+
+  private final Version version;
+  private final int generation;
+  private final String dataFileName;
+  private final ImmutableMap<String, Segment> segments;
+
+  private SegmentManifest(Version version, int generation, String dataFileName,
+      ImmutableMap<String, Segment> segments) {
+    this.version = version;
+    this.generation = generation;
+    this.dataFileName = dataFileName;
+    this.segments = segments;
+  }
+
+  /**
+   * @return the version of the outermost Metadata
+   */
+  Version getVersion() {
+    return version;
+  }
+
+  int getGeneration() {
+    return generation;
+  }
+
+  /**
+   * @param file the segmented file, that is, the file from which this manifest was read
+   * @return the data file that holds the segments
+   */
+  File getDataFile(File file) {
+    return new File(file.getAbsoluteFile().getParentFile(), dataFileName);
+  }
+
+  Set<String> getKeyIds() {
+    return segments.keySet();
+  }
+
+  Segment getSegment(String keyId) {
+    return segments.get(keyId);
+  }
+
+  /**
+   * @return the total length of the segments in use
+   */
+  long getLength() {
+    long result = 0;
+    for (Segment segment : segments.values()) {
+      result += segment.getLength();
+    }
+
+    return result;
+  }
+
+  /**
+   * @return true if the data file contains all the segments, at least as far as its length shows
+   */
+  boolean isComplete(File file) {
+    long dataFileLength = getDataFile(file).length();
+    for (Segment segment : segments.values()) {
+      if (segment.getOffset() + segment.getLength() > dataFileLength) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Write the manifest to a temporary file, force that to storage, and then rename it to the
+   * supplied file, replacing any existing file, so that the file is always either the old or the
+   * new manifest. When this returns, the rename itself has been forced to storage where the
+   * platform allows it, so a data file the old manifest used may then be deleted.
+   */
+  void write(File file) throws IOException {
+    StringWriter writer = new StringWriter();
+    try (JsonWriter jsonWriter = new JsonWriter(writer)) {
+      jsonWriter.setIndent("  ");
+      jsonWriter.beginObject();
+      jsonWriter.name(MANIFEST_KEY).value(MANIFEST_VERSION.toString());
+      jsonWriter.name(METADATA_VERSION_KEY).value(version.toString());
+      jsonWriter.name(GENERATION_KEY).value(generation);
+      jsonWriter.name(DATA_FILE_KEY).value(dataFileName);
+      jsonWriter.name(SEGMENTS_KEY);
+      jsonWriter.beginObject();
+      for (Map.Entry<String, Segment> entry : segments.entrySet()) {
+        jsonWriter.name(entry.getKey());
+        jsonWriter.beginArray();
+        jsonWriter.value(entry.getValue().getOffset());
+        jsonWriter.value(entry.getValue().getLength());
+        jsonWriter.value(entry.getValue().getHash().toString());
+        jsonWriter.endArray();
+      }
+      jsonWriter.endObject();
+      jsonWriter.endObject();
+    }
+
+    File temporaryFile = new File(file.getPath() + TEMPORARY_FILE_SUFFIX);
+    writeForced(temporaryFile, writer.toString().getBytes(StandardCharsets.UTF_8));
+
+    try {
+      java.nio.file.Files.move(temporaryFile.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (@SuppressWarnings("unused") AtomicMoveNotSupportedException e) {
+      java.nio.file.Files.move(temporaryFile.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    forceDirectory(file.getAbsoluteFile().getParentFile());
+  }
+
+  /**
+   * Write the content to the file, replacing any existing content, and force it to storage before
+   * returning.
+   */
+  static void writeForced(File file, byte[] content) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.wrap(content);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(true);
+    }
+  }
+
+  /**
+   * Force the content of a file that has already been written and closed to storage.
+   */
+  static void forceFile(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+  }
+
+  /**
+   * Force the entries of the directory, such as a file just renamed into it, to storage. Some
+   * platforms, including Windows, cannot open a directory to do so; there this does nothing, and
+   * the rename is as durable as the platform makes it.
+   */
+  static void forceDirectory(File directory) {
+    try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (@SuppressWarnings("unused") IOException e) {
+      // Not supported here.
+    }
+  }
+
+}
@@ -26,20 +26,48 @@ public class SerializableIO
     super();
   }
 
-  @Override
-  public JsonElement serialize(Serializable src, Type typeOfSrc, JsonSerializationContext context) {
-    String encodedString;
+  /**
+   * Encode the supplied object using Java serialization, compressed with gzip.
+   * 
+   * @param src the object
+   * @return the encoded bytes, or null if the object could not be serialized
+   */
+  public static byte[] encode(Serializable src) {
     try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
       try (ObjectOutputStream oos =
           new ObjectOutputStream(/* new GZIPOutputStream( */new GZIPOutputStream(baos))) {
         oos.writeObject(src);
       }
-      encodedString = Base64.getEncoder().encodeToString(baos.toByteArray());
+      return baos.toByteArray();
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Decode bytes returned by {@link #encode(Serializable)}.
+   * 
+   * @param data the encoded bytes
+   * @return the object, or null if it could not be deserialized
+   */
+  public static Serializable decode(byte[] data) {
+    Serializable serializable;
+    try (ObjectInputStream ois =
+        new ObjectInputStream(new GZIPInputStream(new ByteArrayInputStream(data)))) {
+      serializable = (Serializable) ois.readObject();
     } catch (Exception e) {
-      encodedString = null;
+      serializable = null;
     }
 
-    return encodedString != null ? new JsonPrimitive(encodedString) : JsonNull.INSTANCE;
+    return serializable;
+  }
+
+  @Override
+  public JsonElement serialize(Serializable src, Type typeOfSrc, JsonSerializationContext context) {
+    byte[] data = encode(src);
+
+    return data != null ? new JsonPrimitive(Base64.getEncoder().encodeToString(data))
+        : JsonNull.INSTANCE;
   }
 
   @Override
@@ -51,16 +79,7 @@ public class SerializableIO
 
     byte[] data = Base64.getDecoder().decode(encodedString);
 
-    Serializable serializable;
-    try (ObjectInputStream ois =
-        new ObjectInputStream(new GZIPInputStream(new ByteArrayInputStream(data)))) {
-      serializable = (Serializable) ois.readObject();
-    } catch (Exception e) {
-      serializable = null;
-    }
-
-
-    return serializable;
+    return decode(data);
   }
 
 }
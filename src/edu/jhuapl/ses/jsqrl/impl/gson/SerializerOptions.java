@@ -0,0 +1,566 @@
+package edu.jhuapl.ses.jsqrl.impl.gson;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Immutable collection of options that control how a {@link GsonSerializer} writes and reads files.
+ * Start with {@link #of()}, which returns the default options, and use the "with" methods to
+ * derive options that differ from the defaults, for example:
+ *
+ * <pre>
+ * GsonSerializer serializer = GsonSerializer.of(SerializerOptions.of().withPrettyPrinting(false));
+ * </pre>
+ *
+ * Options that only affect the layout of the output (such as pretty printing) never need to be
+ * matched when reading: files written with any layout may be read using any options.
+ */
+public final class SerializerOptions {
+
+  private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  private static final long DEFAULT_JOURNAL_COMPACTION_THRESHOLD = 16 * 1024 * 1024;
+
+  private static final SerializerOptions DEFAULT = new Builder().build();
+
+  /**
+   * Return the default options: pretty-printed, uncompressed output, a 64 KiB I/O buffer, UTF-8
+   * encoding, managers called sequentially on the calling thread, in registration order, no index,
+   * files read from streams rather than memory-mapped, no string dictionary, lists of Metadata
+   * written row by row, and each file written as a whole rather than in segments or a journal, and
+   * every manager's retrieve method called when loading. Journals, if enabled, are compacted once
+   * they hold more than 16 MiB of superseded values.
+   *
+   * @return the default options
+   */
+  public static SerializerOptions of() {
+    return DEFAULT;
+  }
+
+  private final boolean prettyPrinting;
+  private final int bufferSize;
+  private final Charset charset;
+  private final CompressionCodec compression;
+  private final Executor storeExecutor;
+  private final Executor retrieveExecutor;
+  private final boolean indexed;
+  private final boolean memoryMapped;
+  private final boolean dictionaryEncoded;
+  private final boolean columnar;
+  private final boolean segmented;
+  private final boolean journaled;
+  private final long journalCompactionThreshold;
+  private final boolean incrementalReload;
+
+  private SerializerOptions(Builder builder) {
+    this.prettyPrinting = builder.prettyPrinting;
+    this.bufferSize = builder.bufferSize;
+    this.charset = builder.charset;
+    this.compression = builder.compression;
+    this.storeExecutor = builder.storeExecutor;
+    this.retrieveExecutor = builder.retrieveExecutor;
+    this.indexed = builder.indexed;
+    this.memoryMapped = builder.memoryMapped;
+    this.dictionaryEncoded = builder.dictionaryEncoded;
+    this.columnar = builder.columnar;
+    this.segmented = builder.segmented;
+    this.journaled = builder.journaled;
+    this.journalCompactionThreshold = builder.journalCompactionThreshold;
+    this.incrementalReload = builder.incrementalReload;
+  }
+
+  private Builder toBuilder() {
+    Builder builder = new Builder();
+    builder.prettyPrinting = prettyPrinting;
+    builder.bufferSize = bufferSize;
+    builder.charset = charset;
+    builder.compression = compression;
+    builder.storeExecutor = storeExecutor;
+    builder.retrieveExecutor = retrieveExecutor;
+    builder.indexed = indexed;
+    builder.memoryMapped = memoryMapped;
+    builder.dictionaryEncoded = dictionaryEncoded;
+    builder.columnar = columnar;
+    builder.segmented = segmented;
+    builder.journaled = journaled;
+    builder.journalCompactionThreshold = journalCompactionThreshold;
+    builder.incrementalReload = incrementalReload;
+
+    return builder;
+  }
+
+  /**
+   * @return true if output is indented for human readability, false if it is written with no
+   *         insignificant white space
+   */
+  public boolean isPrettyPrinting() {
+    return prettyPrinting;
+  }
+
+  /**
+   * @return the size, in characters, of the buffers used between the JSON reader/writer and the
+   *         file
+   */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * @return the character encoding used to read and write files
+   */
+  public Charset getCharset() {
+    return charset;
+  }
+
+  /**
+   * Return the codec used to compress files when they are written. When files are read, the codec
+   * is determined from the content of the file, regardless of this setting.
+   *
+   * @return the compression codec
+   */
+  public CompressionCodec getCompression() {
+    return compression;
+  }
+
+  /**
+   * Return the executor used to call managers' store methods concurrently when saving, or null if
+   * they are called sequentially on the thread that saves.
+   *
+   * @return the executor, or null
+   */
+  public Executor getStoreExecutor() {
+    return storeExecutor;
+  }
+
+  /**
+   * Return the executor used to call managers' retrieve methods concurrently when loading, or null
+   * if they are called sequentially on the thread that loads.
+   *
+   * @return the executor, or null
+   */
+  public Executor getRetrieveExecutor() {
+    return retrieveExecutor;
+  }
+
+  /**
+   * @return true if a sidecar index file is written alongside uncompressed files when saving
+   */
+  public boolean isIndexed() {
+    return indexed;
+  }
+
+  /**
+   * @return true if uncompressed binary files are memory-mapped when loading
+   */
+  public boolean isMemoryMapped() {
+    return memoryMapped;
+  }
+
+  /**
+   * @return true if files are written with a dictionary of the strings they repeat
+   */
+  public boolean isDictionaryEncoded() {
+    return dictionaryEncoded;
+  }
+
+  /**
+   * @return true if lists of record-like Metadata are written column by column
+   */
+  public boolean isColumnar() {
+    return columnar;
+  }
+
+  /**
+   * @return true if files are saved in segments, so that saving rewrites only what changed
+   */
+  public boolean isSegmented() {
+    return segmented;
+  }
+
+  /**
+   * @return true if saving appends what changed to a journal rather than rewriting the file
+   */
+  public boolean isJournaled() {
+    return journaled;
+  }
+
+  /**
+   * @return the number of bytes of superseded values a journal may hold before it is compacted
+   */
+  public long getJournalCompactionThreshold() {
+    return journalCompactionThreshold;
+  }
+
+  /**
+   * @return true if loading calls the retrieve methods only of managers whose state differs from
+   *         the loaded metadata
+   */
+  public boolean isIncrementalReload() {
+    return incrementalReload;
+  }
+
+  /**
+   * Return options identical to these except for pretty printing. Compact output (no pretty
+   * printing) is substantially smaller and faster to write for deeply nested state.
+   *
+   * @param prettyPrinting true to indent the output, false for compact output
+   * @return the options
+   */
+  public SerializerOptions withPrettyPrinting(boolean prettyPrinting) {
+    return toBuilder().prettyPrinting(prettyPrinting).build();
+  }
+
+  /**
+   * Return options identical to these except for the I/O buffer size.
+   *
+   * @param bufferSize the buffer size in characters, which must be positive
+   * @return the options
+   */
+  public SerializerOptions withBufferSize(int bufferSize) {
+    Preconditions.checkArgument(bufferSize > 0);
+
+    return toBuilder().bufferSize(bufferSize).build();
+  }
+
+  /**
+   * Return options identical to these except for the character encoding.
+   *
+   * @param charset the character encoding
+   * @return the options
+   */
+  public SerializerOptions withCharset(Charset charset) {
+    Preconditions.checkNotNull(charset);
+
+    return toBuilder().charset(charset).build();
+  }
+
+  /**
+   * Return options identical to these except for the codec used to compress written files.
+   *
+   * @param compression the codec, for example {@link CompressionCodecs#gzip()}, or
+   *        {@link CompressionCodecs#none()} for uncompressed output
+   * @return the options
+   */
+  public SerializerOptions withCompression(CompressionCodec compression) {
+    Preconditions.checkNotNull(compression);
+
+    return toBuilder().compression(compression).build();
+  }
+
+  /**
+   * Return options identical to these except for whether managers' store methods are called
+   * concurrently when saving. If so, they are run on {@link ForkJoinPool#commonPool()}. Managers
+   * that implement {@link edu.jhuapl.ses.jsqrl.api.ThreadConfined} are always called on the thread
+   * that saves. Whether or not this is enabled, the stored metadata are written in registration
+   * order.
+   *
+   * @param parallelStore true to call managers concurrently, false to call them sequentially
+   * @return the options
+   */
+  public SerializerOptions withParallelStore(boolean parallelStore) {
+    return toBuilder().storeExecutor(parallelStore ? ForkJoinPool.commonPool() : null).build();
+  }
+
+  /**
+   * Return options identical to these except that managers' store methods are called concurrently
+   * using the supplied executor. See {@link #withParallelStore(boolean)}.
+   *
+   * @param storeExecutor the executor
+   * @return the options
+   */
+  public SerializerOptions withStoreExecutor(Executor storeExecutor) {
+    Preconditions.checkNotNull(storeExecutor);
+
+    return toBuilder().storeExecutor(storeExecutor).build();
+  }
+
+  /**
+   * Return options identical to these except for whether managers' retrieve methods are called
+   * concurrently when loading. If so, they are run on {@link ForkJoinPool#commonPool()}.
+   * <p>
+   * When this is enabled, a manager's retrieve method is called only after the retrieve methods of
+   * all the managers on which it was declared to depend when it was registered (see
+   * {@link edu.jhuapl.ses.jsqrl.api.Serializer#register(edu.jhuapl.ses.jsqrl.api.Key,
+   * edu.jhuapl.ses.jsqrl.api.MetadataManager, Iterable)}) have completed. Managers registered
+   * without dependencies are assumed to be independent of all other managers. Managers that
+   * implement {@link edu.jhuapl.ses.jsqrl.api.ThreadConfined} are always called on the thread that
+   * loads, in registration order.
+   *
+   * @param parallelRetrieve true to call managers concurrently, false to call them sequentially
+   * @return the options
+   */
+  public SerializerOptions withParallelRetrieve(boolean parallelRetrieve) {
+    return toBuilder().retrieveExecutor(parallelRetrieve ? ForkJoinPool.commonPool() : null)
+        .build();
+  }
+
+  /**
+   * Return options identical to these except that managers' retrieve methods are called
+   * concurrently using the supplied executor. See {@link #withParallelRetrieve(boolean)}.
+   *
+   * @param retrieveExecutor the executor
+   * @return the options
+   */
+  public SerializerOptions withRetrieveExecutor(Executor retrieveExecutor) {
+    Preconditions.checkNotNull(retrieveExecutor);
+
+    return toBuilder().retrieveExecutor(retrieveExecutor).build();
+  }
+
+  /**
+   * Return options identical to these except for whether an index is written when saving. The
+   * index is a small sidecar file with the same name as the saved file plus the suffix ".idx". It
+   * records where each top-level value is in the saved file, so that loading only some of the
+   * values reads only those parts of the file. No index is written for compressed files.
+   * <p>
+   * An index is used when loading regardless of this setting, unless it is missing or does not
+   * match the file, in which case the file is scanned instead.
+   *
+   * @param indexed true to write an index, false not to
+   * @return the options
+   */
+  public SerializerOptions withIndex(boolean indexed) {
+    return toBuilder().indexed(indexed).build();
+  }
+
+  /**
+   * Return options identical to these except for whether files are memory-mapped when loading.
+   * This applies only to uncompressed files written by
+   * {@link edu.jhuapl.ses.jsqrl.impl.binary.BinarySerializer}; other files are read from streams
+   * as usual. In a mapped file, large arrays of numbers are not copied onto the heap until a
+   * manager gets them, and may be read in place using
+   * {@link edu.jhuapl.ses.jsqrl.impl.binary.MappedMetadata#getView}.
+   * <p>
+   * A mapped file must not be modified or replaced while any metadata loaded from it are in use.
+   *
+   * @param memoryMapped true to map files, false to read them from streams
+   * @return the options
+   */
+  public SerializerOptions withMemoryMapping(boolean memoryMapped) {
+    return toBuilder().memoryMapped(memoryMapped).build();
+  }
+
+  /**
+   * Return options identical to these except for whether files are written with a string
+   * dictionary. A file with a dictionary lists the field names, type identifiers, versions and key
+   * identifiers it uses once, at the start of the file, and elsewhere refers to them by number.
+   * This makes files that contain many small values substantially smaller and faster to read, but
+   * much harder for people to read. Files with a dictionary are read regardless of this setting.
+   *
+   * @param dictionaryEncoded true to write a dictionary, false to write all strings in full
+   * @return the options
+   */
+  public SerializerOptions withStringDictionary(boolean dictionaryEncoded) {
+    return toBuilder().dictionaryEncoded(dictionaryEncoded).build();
+  }
+
+  /**
+   * Return options identical to these except for whether lists of Metadata that all have the same
+   * keys, whose values are strings, booleans, characters or numbers of the same type for each key,
+   * are written column by column: the values of each key are written as one array. This makes such
+   * lists much smaller and faster to read, but they are then read as immutable
+   * {@link edu.jhuapl.ses.jsqrl.impl.ColumnarMetadataList}s of FixedMetadata rather than as lists
+   * of SettableMetadata, so only managers that do not modify the lists they retrieve should use
+   * this. Lists written in columns are read regardless of this setting.
+   *
+   * @param columnar true to write such lists column by column, false to write them row by row
+   * @return the options
+   */
+  public SerializerOptions withColumns(boolean columnar) {
+    return toBuilder().columnar(columnar).build();
+  }
+
+  /**
+   * Return options identical to these except for whether files are saved in segments. A segmented
+   * file consists of a small manifest, saved under the name of the file, and a data file next to it
+   * that holds one segment for each manager's metadata. Each segment is encoded using all the other
+   * options, exactly as a file containing only that manager's metadata would be. When a segmented
+   * file is saved again, only the segments whose content changed are written, after which the new
+   * manifest replaces the old one in a single atomic rename, so the file is never seen partly
+   * written. Unlike other files, a segmented file must be moved or copied together with its data
+   * file.
+   * <p>
+   * Segmented files are loaded regardless of this setting.
+   *
+   * @param segmented true to save files in segments, false to write each file as a whole
+   * @return the options
+   */
+  public SerializerOptions withSegments(boolean segmented) {
+    return toBuilder().segmented(segmented).build();
+  }
+
+  /**
+   * Return options identical to these except for whether files are saved as journals, which suits
+   * state that is saved every few seconds. Each save of a journal appends one record, which holds
+   * only the managers' metadata whose content changed since the previous save, each encoded using
+   * all the other options, exactly as a file containing only that manager's metadata would be. The
+   * record is forced to storage before the save returns. Loading replays the records in order, and
+   * decodes only the newest metadata of each manager. Metadata of a manager that is no longer
+   * saved remain in the journal.
+   * <p>
+   * Once the metadata superseded by later records exceed the compaction threshold (see
+   * {@link #withJournalCompactionThreshold(long)}), a background thread folds the journal into a
+   * new file that holds only the newest metadata, which replaces the journal in a single atomic
+   * rename. Saving continues while this happens.
+   * <p>
+   * This takes precedence over {@link #withSegments(boolean)}. Journals are loaded regardless of
+   * this setting.
+   *
+   * @param journaled true to append to a journal, false to write each file as a whole
+   * @return the options
+   */
+  public SerializerOptions withJournal(boolean journaled) {
+    return toBuilder().journaled(journaled).build();
+  }
+
+  /**
+   * Return options identical to these except for the number of bytes of superseded metadata a
+   * journal may hold before it is compacted. See {@link #withJournal(boolean)}.
+   *
+   * @param journalCompactionThreshold the threshold in bytes, which must not be negative
+   * @return the options
+   */
+  public SerializerOptions withJournalCompactionThreshold(long journalCompactionThreshold) {
+    Preconditions.checkArgument(journalCompactionThreshold >= 0);
+
+    return toBuilder().journalCompactionThreshold(journalCompactionThreshold).build();
+  }
+
+  /**
+   * Return options identical to these except for whether loading skips managers whose state would
+   * not change. If so, the serializer remembers a hash of the encoding of each manager's metadata
+   * when it loads or saves, and when a file is loaded again, calls the retrieve methods only of the
+   * managers whose metadata in the file hash differently. This makes reverting to the last saved
+   * state take time in proportion to what changed since it was saved, rather than to the whole
+   * state.
+   * <p>
+   * Only managers that implement {@link edu.jhuapl.ses.jsqrl.api.ChangeAwareMetadataManager} may
+   * be skipped, and only while their modification count is unchanged. The retrieve methods of
+   * other managers are always called, because telling whether their state differs from the file
+   * would require calling their store methods and encoding the result. The hashes recorded in
+   * segmented files, journals and snapshots are used as they are; the metadata loaded from other
+   * files are encoded to hash them. Files saved by other versions of the serializer are always
+   * loaded in full.
+   *
+   * @param incrementalReload true to skip managers whose state would not change, false to call
+   *        every manager
+   * @return the options
+   */
+  public SerializerOptions withIncrementalReload(boolean incrementalReload) {
+    return toBuilder().incrementalReload(incrementalReload).build();
+  }
+
+  @Override
+  public String toString() {
+    return "SerializerOptions [prettyPrinting=" + prettyPrinting + ", bufferSize=" + bufferSize
+        + ", charset=" + charset + ", compression=" + compression.getName() + ", storeExecutor="
+        + storeExecutor + ", retrieveExecutor=" + retrieveExecutor + ", indexed=" + indexed
+        + ", memoryMapped=" + memoryMapped + ", dictionaryEncoded=" + dictionaryEncoded
+        + ", columnar=" + columnar + ", segmented=" + segmented + ", journaled=" + journaled
+        + ", journalCompactionThreshold=" + journalCompactionThreshold + ", incrementalReload="
+        + incrementalReload + "]";
+  }
+
+
+  /**
+   * Mutable copy of the options, from which each "with" method builds new options that differ in
+   * one option only, so that adding an option only changes the builder and the constructor. The
+   * initial values are the defaults.
+   */
+  private static final class Builder {
+    private boolean prettyPrinting = true;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private Charset charset = StandardCharsets.UTF_8;
+    private CompressionCodec compression = CompressionCodecs.none();
+    private Executor storeExecutor = null;
+    private Executor retrieveExecutor = null;
+    private boolean indexed = false;
+    private boolean memoryMapped = false;
+    private boolean dictionaryEncoded = false;
+    private boolean columnar = false;
+    private boolean segmented = false;
+    private boolean journaled = false;
+    private long journalCompactionThreshold = DEFAULT_JOURNAL_COMPACTION_THRESHOLD;
+    private boolean incrementalReload = false;
+
+    Builder prettyPrinting(boolean prettyPrinting) {
+      this.prettyPrinting = prettyPrinting;
+      return this;
+    }
+
+    Builder bufferSize(int bufferSize) {
+      this.bufferSize = bufferSize;
+      return this;
+    }
+
+    Builder charset(Charset charset) {
+      this.charset = charset;
+      return this;
+    }
+
+    Builder compression(CompressionCodec compression) {
+      this.compression = compression;
+      return this;
+    }
+
+    Builder storeExecutor(Executor storeExecutor) {
+      this.storeExecutor = storeExecutor;
+      return this;
+    }
+
+    Builder retrieveExecutor(Executor retrieveExecutor) {
+      this.retrieveExecutor = retrieveExecutor;
+      return this;
+    }
+
+    Builder indexed(boolean indexed) {
+      this.indexed = indexed;
+      return this;
+    }
+
+    Builder memoryMapped(boolean memoryMapped) {
+      this.memoryMapped = memoryMapped;
+      return this;
+    }
+
+    Builder dictionaryEncoded(boolean dictionaryEncoded) {
+      this.dictionaryEncoded = dictionaryEncoded;
+      return this;
+    }
+
+    Builder columnar(boolean columnar) {
+      this.columnar = columnar;
+      return this;
+    }
+
+    Builder segmented(boolean segmented) {
+      this.segmented = segmented;
+      return this;
+    }
+
+    Builder journaled(boolean journaled) {
+      this.journaled = journaled;
+      return this;
+    }
+
+    Builder journalCompactionThreshold(long journalCompactionThreshold) {
+      this.journalCompactionThreshold = journalCompactionThreshold;
+      return this;
+    }
+
+    Builder incrementalReload(boolean incrementalReload) {
+      this.incrementalReload = incrementalReload;
+      return this;
+    }
+
+    SerializerOptions build() {
+      return new SerializerOptions(this);
+    }
+
+  }
+
+}
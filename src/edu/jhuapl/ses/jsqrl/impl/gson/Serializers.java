@@ -2,8 +2,14 @@ package edu.jhuapl.ses.jsqrl.impl.gson;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
 import edu.jhuapl.ses.jsqrl.api.Key;
 import edu.jhuapl.ses.jsqrl.api.Metadata;
@@ -12,11 +18,27 @@ import edu.jhuapl.ses.jsqrl.api.Serializer;
 import edu.jhuapl.ses.jsqrl.api.Version;
 import edu.jhuapl.ses.jsqrl.impl.FixedMetadata;
 import edu.jhuapl.ses.jsqrl.impl.SettableMetadata;
+import edu.jhuapl.ses.jsqrl.impl.binary.BinarySerializer;
 import edu.jhuapl.ses.jsqrl.impl.gson.GsonSerializer;
 
 public class Serializers {
   private static final Serializer INSTANCE = GsonSerializer.of();
 
+  /**
+   * File formats that may be written. Files in any format may be loaded by the serializers for all
+   * formats.
+   */
+  public enum Format {
+    /**
+     * Human-readable JSON, written by {@link GsonSerializer}.
+     */
+    JSON,
+    /**
+     * Compact binary, written by {@link BinarySerializer}.
+     */
+    BINARY,
+  }
+
   public static Serializer getDefault() {
     return INSTANCE;
   }
@@ -25,6 +47,28 @@ public class Serializers {
     return GsonSerializer.of();
   }
 
+  public static Serializer of(SerializerOptions options) {
+    return GsonSerializer.of(options);
+  }
+
+  public static Serializer of(Format format) {
+    return of(format, SerializerOptions.of());
+  }
+
+  public static Serializer of(Format format, SerializerOptions options) {
+    Preconditions.checkNotNull(format);
+    Preconditions.checkNotNull(options);
+
+    switch (format) {
+      case JSON:
+        return GsonSerializer.of(options);
+      case BINARY:
+        return BinarySerializer.of(options);
+      default:
+        throw new AssertionError("Unhandled format " + format);
+    }
+  }
+
   public static void serialize(String metadataId, MetadataManager manager, File file)
       throws IOException {
     Preconditions.checkNotNull(metadataId);
@@ -62,10 +106,10 @@ public class Serializers {
     Preconditions.checkNotNull(metadataId);
     Preconditions.checkNotNull(manager);
 
-    Serializer serializer = of();
+    GsonSerializer serializer = GsonSerializer.of();
     Key<Metadata> key = Key.of(metadataId);
     serializer.register(key, manager);
-    serializer.load(file);
+    serializer.load(file, ImmutableSet.of(key));
     serializer.deregister(key);
   }
 
@@ -95,6 +139,60 @@ public class Serializers {
     return FixedMetadata.of(manager.metadata);
   }
 
+  /**
+   * Load only the metadata associated with the supplied identifiers from the file. For files
+   * written by serializer version 3 or later, the rest of the file is skipped without being
+   * decoded.
+   * 
+   * @param file the file to load
+   * @param metadataIds the identifiers of the metadata to load
+   * @return map of identifier to metadata, for each of the identifiers present in the file, in the
+   *         order given by the metadataIds set
+   */
+  public static ImmutableMap<String, FixedMetadata> deserialize(File file, Set<String> metadataIds)
+      throws IOException {
+    Preconditions.checkNotNull(file);
+    Preconditions.checkNotNull(metadataIds);
+
+    class DirectMetadataManager implements MetadataManager {
+      Metadata metadata = null;
+
+      @Override
+      public Metadata store() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void retrieve(Metadata source) {
+        metadata = source;
+      }
+
+    }
+
+    GsonSerializer serializer = GsonSerializer.of();
+    Map<String, DirectMetadataManager> managers = new LinkedHashMap<>();
+    ImmutableSet.Builder<Key<? extends Metadata>> keys = ImmutableSet.builder();
+    for (String metadataId : metadataIds) {
+      Key<Metadata> key = Key.of(metadataId);
+      DirectMetadataManager manager = new DirectMetadataManager();
+      serializer.register(key, manager);
+      managers.put(metadataId, manager);
+      keys.add(key);
+    }
+
+    serializer.load(file, keys.build());
+
+    ImmutableMap.Builder<String, FixedMetadata> result = ImmutableMap.builder();
+    for (Entry<String, DirectMetadataManager> entry : managers.entrySet()) {
+      Metadata metadata = entry.getValue().metadata;
+      if (metadata != null) {
+        result.put(entry.getKey(), FixedMetadata.of(metadata));
+      }
+    }
+
+    return result.build();
+  }
+
   @SuppressWarnings("unchecked")
   private static <T> void put(Key<?> key, T object, SettableMetadata metadata) {
     metadata.put((Key<T>) key, object);
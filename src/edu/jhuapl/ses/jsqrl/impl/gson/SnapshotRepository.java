@@ -0,0 +1,346 @@
+package edu.jhuapl.ses.jsqrl.impl.gson;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.io.Files;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import edu.jhuapl.ses.jsqrl.api.Version;
+
+/**
+ * Directory that holds any number of snapshots of the state of a serializer's managers (see
+ * {@link GsonSerializer#saveSnapshot(File)}), stored in the manner of git objects. Each top-level
+ * value of a snapshot is encoded exactly as a whole file holding only that value would be, and the
+ * resulting block is stored in the "objects" subdirectory under the hash of its content. A
+ * snapshot itself is a small manifest, stored in the "snapshots" subdirectory under the hash of
+ * its own content, which is the snapshot's id. The manifest records the hash of the block of each
+ * value and the time the snapshot was saved.
+ * <p>
+ * Blocks that did not change are shared by all the snapshots that hold them, so each snapshot
+ * costs only the blocks that changed since any earlier one. Files are only ever added, each under
+ * a temporary name that is forced to storage and then renamed, and the manifest is added after all
+ * of its blocks, so a save that does not complete never leaves a partial snapshot, only blocks that
+ * no snapshot uses.
+ * <p>
+ * The "HEAD" file holds the id of the newest snapshot, which is replaced in the same way after
+ * each snapshot is added, so that adding a snapshot need not read the others to order it after
+ * them.
+ */
+final class SnapshotRepository {
+
+  private static final Version MANIFEST_VERSION = Version.of(1, 0);
+
+  /**
+   * Name of the first field of a manifest, which distinguishes it from other files.
+   */
+  private static final String MANIFEST_KEY = "snapshotManifest";
+
+  private static final String METADATA_VERSION_KEY = "metadataVersion";
+  private static final String TIME_KEY = "time";
+  private static final String BLOCKS_KEY = "blocks";
+
+  private static final String OBJECTS_DIRECTORY = "objects";
+  private static final String SNAPSHOTS_DIRECTORY = "snapshots";
+  private static final String HEAD_FILE = "HEAD";
+  private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+  private static final Pattern ID_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+  /**
+   * Manifest of one snapshot: the version of the outermost Metadata, the time it was saved, and the
+   * hash of the block of each top-level value.
+   */
+  static final class Snapshot {
+    private final Version version;
+    private final long time;
+    private final ImmutableMap<String, HashCode> blocks;
+
+    Snapshot(Version version, long time, Map<String, HashCode> blocks) {
+      this.version = Preconditions.checkNotNull(version);
+      this.time = time;
+      this.blocks = ImmutableMap.copyOf(blocks);
+    }
+
+    Version getVersion() {
+      return version;
+    }
+
+    /**
+     * @return the time the snapshot was saved, in milliseconds since the epoch
+     */
+    long getTime() {
+      return time;
+    }
+
+    /**
+     * @return the hashes of the blocks, by key identifier, in the order the values were saved
+     */
+    ImmutableMap<String, HashCode> getBlocks() {
+      return blocks;
+    }
+
+  }
+
+  /**
+   * @return true if the directory holds a snapshot repository
+   */
+  static boolean isRepository(File directory) {
+    return new File(directory, OBJECTS_DIRECTORY).isDirectory()
+        && new File(directory, SNAPSHOTS_DIRECTORY).isDirectory();
+  }
+
+  static SnapshotRepository of(File directory) {
+    Preconditions.checkNotNull(directory);
+
+    return new SnapshotRepository(directory);
+  }
+
+  private final File directory;
+
+  private SnapshotRepository(File directory) {
+    this.directory = directory;
+  }
+
+  private File blockFileFor(HashCode hash) {
+    // Blocks are spread over subdirectories named by the first two digits of their hashes.
+    String name = hash.toString();
+    return new File(new File(new File(directory, OBJECTS_DIRECTORY), name.substring(0, 2)),
+        name.substring(2));
+  }
+
+  private File snapshotFileFor(String id) {
+    return new File(new File(directory, SNAPSHOTS_DIRECTORY), id);
+  }
+
+  /**
+   * Add a block, unless the repository already holds one with the same hash, which then has the
+   * same content.
+   *
+   * @return the hash of the block
+   */
+  HashCode putBlock(byte[] content) throws IOException {
+    HashCode hash = SegmentManifest.hash(content);
+    File file = blockFileFor(hash);
+    if (!file.isFile() || file.length() != content.length) {
+      add(file, content);
+    }
+
+    return hash;
+  }
+
+  /**
+   * @return the content of the block with the supplied hash
+   * @throws IOException if there is no such block, or its content does not match its hash
+   */
+  byte[] getBlock(HashCode hash) throws IOException {
+    File file = blockFileFor(hash);
+    if (!file.isFile()) {
+      throw new IOException("Snapshot repository " + directory + " has no block " + hash);
+    }
+
+    byte[] result = Files.toByteArray(file);
+    if (!SegmentManifest.hash(result).equals(hash)) {
+      throw new IOException("Block " + file + " is corrupt");
+    }
+
+    return result;
+  }
+
+  /**
+   * Add a snapshot, whose blocks must all have been added already, saved now, or if that is not
+   * later than the newest snapshot, just after it, so that snapshots are always ordered as they
+   * were saved.
+   *
+   * @param version the version of the outermost Metadata
+   * @param blocks the hashes of the blocks, by key identifier
+   * @return the id of the snapshot
+   */
+  String putSnapshot(Version version, Map<String, HashCode> blocks) throws IOException {
+    long time = System.currentTimeMillis();
+    String headId = getHeadId();
+    if (headId != null) {
+      time = Math.max(time, getSnapshot(headId).getTime() + 1);
+    }
+
+    String result = putSnapshot(new Snapshot(version, time, blocks));
+    add(new File(directory, HEAD_FILE), (result + '\n').getBytes(StandardCharsets.UTF_8));
+
+    return result;
+  }
+
+  /**
+   * @return the id of the newest snapshot, or null if there is none. Repositories written before
+   *         the head was recorded are ordered by reading all their snapshots
+   */
+  private String getHeadId() throws IOException {
+    File headFile = new File(directory, HEAD_FILE);
+    if (headFile.isFile()) {
+      String id = Files.asCharSource(headFile, StandardCharsets.UTF_8).read().trim();
+      if (ID_PATTERN.matcher(id).matches() && snapshotFileFor(id).isFile()) {
+        return id;
+      }
+    }
+
+    ImmutableList<String> ids = getSnapshotIds();
+    return ids.isEmpty() ? null : ids.get(ids.size() - 1);
+  }
+
+  private String putSnapshot(Snapshot snapshot) throws IOException {
+    StringWriter writer = new StringWriter();
+    try (JsonWriter jsonWriter = new JsonWriter(writer)) {
+      jsonWriter.setIndent("  ");
+      jsonWriter.beginObject();
+      jsonWriter.name(MANIFEST_KEY).value(MANIFEST_VERSION.toString());
+      jsonWriter.name(METADATA_VERSION_KEY).value(snapshot.getVersion().toString());
+      jsonWriter.name(TIME_KEY).value(snapshot.getTime());
+      jsonWriter.name(BLOCKS_KEY);
+      jsonWriter.beginObject();
+      for (Map.Entry<String, HashCode> entry : snapshot.getBlocks().entrySet()) {
+        jsonWriter.name(entry.getKey()).value(entry.getValue().toString());
+      }
+      jsonWriter.endObject();
+      jsonWriter.endObject();
+    }
+    writer.write('\n');
+
+    byte[] content = writer.toString().getBytes(StandardCharsets.UTF_8);
+    String id = SegmentManifest.hash(content).toString();
+    File file = snapshotFileFor(id);
+    if (!file.isFile()) {
+      add(file, content);
+    }
+
+    return id;
+  }
+
+  /**
+   * @return the snapshot with the supplied id
+   * @throws IOException if there is no such snapshot, or it cannot be read
+   */
+  Snapshot getSnapshot(String id) throws IOException {
+    Preconditions.checkNotNull(id);
+    if (!ID_PATTERN.matcher(id).matches()) {
+      throw new IOException("Invalid snapshot id " + id);
+    }
+
+    File file = snapshotFileFor(id);
+    if (!file.isFile()) {
+      throw new IOException("Snapshot repository " + directory + " has no snapshot " + id);
+    }
+
+    String content = Files.asCharSource(file, StandardCharsets.UTF_8).read();
+    if (!SegmentManifest.hash(content.getBytes(StandardCharsets.UTF_8)).toString().equals(id)) {
+      throw new IOException("Snapshot " + file + " is corrupt");
+    }
+
+    try (JsonReader reader = new JsonReader(new StringReader(content))) {
+      reader.beginObject();
+      if (!reader.hasNext() || !reader.nextName().equals(MANIFEST_KEY)) {
+        throw new IOException("File " + file + " is not a snapshot manifest");
+      }
+
+      Version manifestVersion = Version.of(reader.nextString());
+      if (manifestVersion.getMajor() != MANIFEST_VERSION.getMajor()) {
+        throw new IOException("Unsupported snapshot manifest version " + manifestVersion);
+      }
+
+      Version version = null;
+      Long time = null;
+      Map<String, HashCode> blocks = new LinkedHashMap<>();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (name.equals(METADATA_VERSION_KEY)) {
+          version = Version.of(reader.nextString());
+        } else if (name.equals(TIME_KEY)) {
+          time = reader.nextLong();
+        } else if (name.equals(BLOCKS_KEY)) {
+          reader.beginObject();
+          while (reader.hasNext()) {
+            blocks.put(reader.nextName(), HashCode.fromString(reader.nextString()));
+          }
+          reader.endObject();
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+
+      if (version == null || time == null) {
+        throw new JsonParseException("Incomplete snapshot manifest " + file);
+      }
+
+      return new Snapshot(version, time, blocks);
+    } catch (RuntimeException e) {
+      throw new IOException("Unable to read snapshot manifest " + file, e);
+    }
+  }
+
+  /**
+   * @return the ids of all the snapshots, in the order in which they were saved
+   */
+  ImmutableList<String> getSnapshotIds() throws IOException {
+    File[] files = new File(directory, SNAPSHOTS_DIRECTORY).listFiles();
+    if (files == null) {
+      return ImmutableList.of();
+    }
+
+    Map<String, Long> times = new LinkedHashMap<>();
+    for (File file : files) {
+      if (ID_PATTERN.matcher(file.getName()).matches()) {
+        times.put(file.getName(), getSnapshot(file.getName()).getTime());
+      }
+    }
+
+    List<String> result = new ArrayList<>(times.keySet());
+    result.sort(Comparator.comparing((String id) -> times.get(id)).thenComparing(id -> id));
+
+    return ImmutableList.copyOf(result);
+  }
+
+  /**
+   * Write the content to a temporary file, force that to storage, and then rename it to the
+   * supplied file. Files other than the head are named by the hashes of their content, so if
+   * another save adds the same file at the same time, it does not matter which one is kept.
+   */
+  private static void add(File file, byte[] content) throws IOException {
+    File parent = file.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+      throw new IOException("Unable to create directory " + parent);
+    }
+
+    File temporaryFile =
+        File.createTempFile(file.getName(), TEMPORARY_FILE_SUFFIX, file.getParentFile());
+    try {
+      SegmentManifest.writeForced(temporaryFile, content);
+      try {
+        java.nio.file.Files.move(temporaryFile.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (@SuppressWarnings("unused") AtomicMoveNotSupportedException e) {
+        java.nio.file.Files.move(temporaryFile.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+      }
+      SegmentManifest.forceDirectory(parent);
+    } finally {
+      temporaryFile.delete();
+    }
+  }
+
+}
@@ -0,0 +1,135 @@
+package edu.jhuapl.ses.jsqrl.impl.gson;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Multisets;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Table of the strings that are repeated throughout a file: field names such as "valueType" and
+ * "value", type identifiers, versions, and the identifiers of keys. A file that has a dictionary
+ * lists each such string once, and everywhere else refers to it by its position in the list: a
+ * field name is replaced by the position written as a decimal string, and a string value by the
+ * position written as a number.
+ * <p>
+ * Strings are ordered from the most to the least frequently used, so that the most common
+ * references are also the shortest.
+ */
+final class StringDictionary {
+
+  /**
+   * Name of the field, immediately following the version of the outermost Metadata, that holds
+   * the dictionary.
+   */
+  static final String DICTIONARY_KEY = "dictionary";
+
+  /**
+   * Create a dictionary of the supplied strings, ordered by how many times each occurs.
+   */
+  static StringDictionary of(Multiset<String> strings) {
+    Preconditions.checkNotNull(strings);
+
+    ImmutableList.Builder<String> builder = ImmutableList.builder();
+    for (Multiset.Entry<String> entry : Multisets.copyHighestCountFirst(strings).entrySet()) {
+      builder.add(entry.getElement());
+    }
+
+    return new StringDictionary(builder.build());
+  }
+
+  /**
+   * Create a dictionary of the supplied strings, in the order supplied.
+   */
+  static StringDictionary of(List<String> strings) {
+    Preconditions.checkNotNull(strings);
+
+    return new StringDictionary(ImmutableList.copyOf(strings));
+  }
+
+  /**
+   * Read a dictionary written by {@link #write(JsonWriter)}.
+   */
+  static StringDictionary read(JsonReader in) throws IOException {
+    ImmutableList.Builder<String> builder = ImmutableList.builder();
+
+    in.beginArray();
+    while (in.hasNext()) {
+      builder.add(in.nextString());
+    }
+    in.endArray();
+
+    return new StringDictionary(builder.build());
+  }
+
+  private final ImmutableList<String> strings;
+  private final ImmutableMap<String, Integer> positions;
+
+  private StringDictionary(ImmutableList<String> strings) {
+    ImmutableMap.Builder<String, Integer> builder = ImmutableMap.builder();
+    for (int index = 0; index < strings.size(); ++index) {
+      builder.put(strings.get(index), index);
+    }
+
+    this.strings = strings;
+    this.positions = builder.build();
+  }
+
+  List<String> getStrings() {
+    return strings;
+  }
+
+  /**
+   * @param string a string in this dictionary
+   * @return the position of the string
+   * @throws IllegalArgumentException if the string is not in this dictionary
+   */
+  int positionOf(String string) {
+    Integer result = positions.get(string);
+    Preconditions.checkArgument(result != null, "String \"%s\" is not in the dictionary", string);
+
+    return result;
+  }
+
+  /**
+   * @param position the position of a string in this dictionary
+   * @return the string
+   * @throws JsonParseException if there is no string at the position
+   */
+  String get(int position) {
+    if (position < 0 || position >= strings.size()) {
+      throw new JsonParseException("Invalid reference " + position + " to a dictionary of "
+          + strings.size() + " strings");
+    }
+
+    return strings.get(position);
+  }
+
+  /**
+   * @param reference the position of a string in this dictionary, as a decimal string
+   * @return the string
+   * @throws JsonParseException if the reference is not a valid position
+   */
+  String get(String reference) {
+    try {
+      return get(Integer.parseInt(reference));
+    } catch (NumberFormatException e) {
+      throw new JsonParseException("Invalid reference \"" + reference + "\" to a dictionary", e);
+    }
+  }
+
+  void write(JsonWriter out) throws IOException {
+    out.beginArray();
+    for (String string : strings) {
+      out.value(string);
+    }
+    out.endArray();
+  }
+
+}
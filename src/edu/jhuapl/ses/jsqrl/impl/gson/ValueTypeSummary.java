@@ -0,0 +1,57 @@
+package edu.jhuapl.ses.jsqrl.impl.gson;
+
+import edu.jhuapl.ses.jsqrl.api.Version;
+
+/**
+ * Result of the first ("type-determining") pass that the v2 collection encoders make over the
+ * values in a map or iterable before writing anything. Both the tree-model encoders
+ * ({@link MapBaseIOv2}, {@link IterableIOv2}) and the streaming encoder ({@link MetadataStreamIO})
+ * use this so that they make identical decisions about what type information to hoist out of the
+ * individual values.
+ */
+final class ValueTypeSummary {
+
+  private final DataTypeInfo keyInfo;
+  private final String valueTypeId;
+  private final Version commonVersion;
+
+  ValueTypeSummary(DataTypeInfo keyInfo, String valueTypeId, Version commonVersion) {
+    this.keyInfo = keyInfo;
+    this.valueTypeId = valueTypeId;
+    this.commonVersion = commonVersion;
+  }
+
+  /**
+   * @return the type of all the keys, if this is a summary of a map, or null for an iterable
+   */
+  public DataTypeInfo getKeyInfo() {
+    return keyInfo;
+  }
+
+  /**
+   * @return true if all the values have the same type, in which case the type is written once and
+   *         the values are written without type information
+   */
+  public boolean isSameValueType() {
+    return valueTypeId != null;
+  }
+
+  /**
+   * @return the type identifier shared by all the values, or null if the values are heterogeneous
+   */
+  public String getValueTypeId() {
+    return valueTypeId;
+  }
+
+  /**
+   * @return the version shared by all Metadata values, or null if there is no common version
+   */
+  public Version getCommonVersion() {
+    return commonVersion;
+  }
+
+  public boolean excludeMetadataVersionInValues() {
+    return commonVersion != null;
+  }
+
+}